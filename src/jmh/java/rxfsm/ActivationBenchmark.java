@@ -0,0 +1,60 @@
+package rxfsm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rx.subjects.PublishSubject;
+
+// Activation (compiling the hierarchy and entering the initial state) of trees of
+// varying depth and width.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ActivationBenchmark {
+
+    @Param({"1", "3", "6"})
+    int depth;
+
+    @Param({"2", "4"})
+    int width;
+
+    rxfsm.State top;
+    String initialState;
+
+    @Setup
+    public void setup() {
+        initialState = Trees.initialLeaf("s", depth);
+        top = Trees.tree("s", depth, width, PublishSubject.<Integer>create(), initialState);
+    }
+
+    @Benchmark
+    public Fsm activate() {
+        Fsm fsm = Fsm.create()
+                .withInitialState(initialState)
+                .withTopStates(top);
+        fsm.activate();
+        return fsm;
+    }
+
+    @Benchmark
+    public FsmDefinition define() {
+        return Fsm.create()
+                .withInitialState(initialState)
+                .withTopStates(top)
+                .define();
+    }
+}
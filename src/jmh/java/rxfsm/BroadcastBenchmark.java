@@ -0,0 +1,83 @@
+package rxfsm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rx.Subscription;
+import rx.schedulers.Schedulers;
+import rx.subjects.PublishSubject;
+
+// Broadcasting an event to every instance of an FsmEngine (see FsmEngine.broadcast). The
+// shards run on the calling thread, so a broadcast has been handled by every instance when
+// it returns, each shard letting its instances handle it in parallel on the common pool.
+// Every instance switches state, with and without an occupancy index to update (see
+// FsmEngine.withOccupancyIndex).
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+    @Param({"100000", "1000000"})
+    int instances;
+
+    @Param({"false", "true"})
+    boolean occupancy;
+
+    final PublishSubject<Integer> toggle = PublishSubject.create();
+    final AtomicLong toggles = new AtomicLong();
+
+    FsmEngine<Integer> engine;
+    Subscription subscription;
+
+    @Setup
+    public void setup() {
+        PublishSubject<Integer> connect = PublishSubject.create();
+        FsmDefinition definition = Fsm.create()
+                .withInitialState("/idle")
+                .withTopStates(
+                    new rxfsm.State("idle")
+                        .withTransition("/connected", connect, n -> {}),
+                    new rxfsm.State("connected")
+                        .withInitialSubState(new rxfsm.State("on")
+                            .withTransition("/connected/off", toggle, n -> toggles.lazySet(n)))
+                        .withSubState(new rxfsm.State("off")
+                            .withTransition("/connected/on", toggle, n -> toggles.lazySet(n))))
+                .define();
+
+        PublishSubject<KeyedEvent<Integer>> events = PublishSubject.create();
+        engine = FsmEngine.<Integer>create(definition, 4, Schedulers.immediate());
+        if (occupancy) {
+            engine = engine.withOccupancyIndex();
+        }
+        subscription = engine.start(events);
+        for (int key = 0; key < instances; key++) {
+            events.onNext(new KeyedEvent<Integer>(key, connect, key));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        subscription.unsubscribe();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        engine.broadcast(toggle, 1);
+    }
+}
@@ -0,0 +1,93 @@
+package rxfsm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func1;
+import rx.subjects.PublishSubject;
+
+// Interpreted against compiled dispatch (FsmDefinition.compile), through an Fsm and directly
+// through an FsmInstance. The Fsm cycles through eight states, each with entry and exit
+// actions, a guard and a transition action of a class of its own, which makes the shared
+// call sites of the interpreter megamorphic.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompiledDispatchBenchmark {
+
+    @Param({"false", "true"})
+    boolean compiled;
+
+    final PublishSubject<Integer> next = PublishSubject.create();
+    long counter;
+
+    FsmInstance instance;
+    int nextEvent;
+
+    @Setup
+    public void setup() {
+        Action0[] entries = { () -> counter += 1, () -> counter += 2, () -> counter += 3, () -> counter += 4,
+                () -> counter += 5, () -> counter += 6, () -> counter += 7, () -> counter += 8 };
+        Action0[] exits = { () -> counter -= 1, () -> counter -= 2, () -> counter -= 3, () -> counter -= 4,
+                () -> counter -= 5, () -> counter -= 6, () -> counter -= 7, () -> counter -= 8 };
+        Action1<?>[] actions = { (Integer n) -> counter ^= 1, (Integer n) -> counter ^= 2, (Integer n) -> counter ^= 3,
+                (Integer n) -> counter ^= 4, (Integer n) -> counter ^= 5, (Integer n) -> counter ^= 6,
+                (Integer n) -> counter ^= 7, (Integer n) -> counter ^= 8 };
+        Func1<?, ?>[] guards = { (Integer n) -> n != 1, (Integer n) -> n != 2, (Integer n) -> n != 3,
+                (Integer n) -> n != 4, (Integer n) -> n != 5, (Integer n) -> n != 6, (Integer n) -> n != 7,
+                (Integer n) -> n != 8 };
+
+        rxfsm.State[] states = new rxfsm.State[entries.length];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = state(i, (i + 1) % states.length, entries[i], exits[i], actions[i], guards[i]);
+        }
+
+        FsmDefinition definition = Fsm.create()
+                .withInitialState("/s0")
+                .withTopStates(states)
+                .define();
+        if (compiled) {
+            definition = definition.compile();
+        }
+
+        Fsm fsm = Fsm.create(definition).withPersistentSubscriptions();
+        fsm.activate();
+
+        instance = definition.newInstance();
+        nextEvent = definition.eventId(next);
+    }
+
+    @SuppressWarnings("unchecked")
+    private rxfsm.State state(int i, int target, Action0 entry, Action0 exit, Action1<?> action, Func1<?, ?> guard) {
+        return new rxfsm.State("s" + i)
+                .withOnEntry(entry)
+                .withOnExit(exit)
+                .withTransition("/s" + target, next, (Action1<Integer>) action, (Func1<Integer, Boolean>) guard);
+    }
+
+    @Benchmark
+    public void fsmSwitchState() {
+        next.onNext(0);
+    }
+
+    @Benchmark
+    public void instanceSwitchState() {
+        instance.dispatch(nextEvent, 0);
+    }
+}
@@ -0,0 +1,99 @@
+package rxfsm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import rx.subjects.PublishSubject;
+
+// Throughput of events emitted by several threads into one Fsm, all of which are handled
+// one at a time by whichever thread is draining the event queue. Each producer keeps at
+// most MAX_PENDING events in flight, as the queue is unbounded.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RunToCompletionBenchmark {
+
+    static final int MAX_PRODUCERS = 8;
+    static final int MAX_PENDING = 1024;
+
+    @State(Scope.Benchmark)
+    public static class Machine {
+        final List<PublishSubject<Integer>> events = new ArrayList<PublishSubject<Integer>>();
+        final AtomicLongArray handled = new AtomicLongArray(MAX_PRODUCERS);
+
+        void handle(int producer) {
+            // Events are handled one at a time, so there is only ever one writer
+            handled.lazySet(producer, handled.get(producer) + 1);
+        }
+
+        @Setup
+        public void setup() {
+            rxfsm.State s1 = new rxfsm.State("s1");
+            rxfsm.State s2 = new rxfsm.State("s2");
+            for (int i = 0; i < MAX_PRODUCERS; i++) {
+                events.add(PublishSubject.<Integer>create());
+                s1 = s1.withTransition("/s2", events.get(i), this::handle);
+                s2 = s2.withTransition("/s1", events.get(i), this::handle);
+            }
+
+            Fsm.create()
+                .withPersistentSubscriptions()
+                .withInitialState("/s1")
+                .withTopStates(s1, s2)
+                .activate();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+        Machine machine;
+        int index;
+        PublishSubject<Integer> events;
+        long sent;
+
+        @Setup
+        public void setup(Machine machine, ThreadParams threads) {
+            this.machine = machine;
+            this.index = threads.getThreadIndex() % MAX_PRODUCERS;
+            this.events = machine.events.get(index);
+            this.sent = machine.handled.get(index);
+        }
+
+        void emit() {
+            while (sent - machine.handled.get(index) >= MAX_PENDING) {
+                Thread.yield();
+            }
+            sent++;
+            events.onNext(index);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void singleProducer(Producer producer) {
+        producer.emit();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void fourProducers(Producer producer) {
+        producer.emit();
+    }
+}
@@ -0,0 +1,75 @@
+package rxfsm;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rx.subjects.PublishSubject;
+
+// Taking and restoring snapshots of a large number of instances, spread over the leaves of
+// a tree of depth 3 and width 4.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SnapshotBenchmark {
+
+    @Param({"1000000"})
+    int instances;
+
+    FsmDefinition definition;
+    FsmInstance[] population;
+    ByteBuffer buffer;
+
+    @Setup
+    public void setup() {
+        String initialState = Trees.initialLeaf("s", 3);
+        definition = Fsm.create()
+                .withInitialState(initialState)
+                .withTopStates(Trees.tree("s", 3, 4, PublishSubject.<Integer>create(), initialState))
+                .define();
+
+        int[] leaves = new int[definition.stateCount()];
+        int leafCount = 0;
+        for (int state = 0; state < leaves.length; state++) {
+            if (definition.table.isLeaf(state)) {
+                leaves[leafCount++] = state;
+            }
+        }
+
+        population = definition.newInstances(instances);
+        for (int i = 0; i < instances; i++) {
+            population[i].state = leaves[i % leafCount];
+        }
+
+        buffer = ByteBuffer.allocateDirect(definition.snapshotSize(instances));
+    }
+
+    @Benchmark
+    public ByteBuffer snapshot() {
+        buffer.clear();
+        definition.snapshot(population, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public FsmInstance[] restore() {
+        buffer.clear();
+        definition.snapshot(population, buffer);
+        buffer.flip();
+        return definition.restore(buffer);
+    }
+}
@@ -0,0 +1,68 @@
+package rxfsm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rx.subjects.PublishSubject;
+
+// Constructing states with the State.with* builder methods, which copy on every call, and
+// with a StateBuilder
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StateBuilderBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int size;
+
+    final PublishSubject<Integer> event = PublishSubject.create();
+
+    @Benchmark
+    public rxfsm.State withTransitions() {
+        rxfsm.State state = new rxfsm.State("s");
+        for (int i = 0; i < size; i++) {
+            state = state.withTransition("/s", event, n -> {});
+        }
+        return state;
+    }
+
+    @Benchmark
+    public rxfsm.State withSubStates() {
+        rxfsm.State state = new rxfsm.State("s").withInitialSubState(new rxfsm.State("s_0"));
+        for (int i = 1; i < size; i++) {
+            state = state.withSubState(new rxfsm.State("s_" + i));
+        }
+        return state;
+    }
+
+    @Benchmark
+    public rxfsm.State builderTransitions() {
+        StateBuilder state = new StateBuilder("s");
+        for (int i = 0; i < size; i++) {
+            state.transition("/s", event, n -> {});
+        }
+        return state.build();
+    }
+
+    @Benchmark
+    public rxfsm.State builderSubStates() {
+        StateBuilder state = new StateBuilder("s").initialSubState(new StateBuilder("s_0"));
+        for (int i = 1; i < size; i++) {
+            state.subState(new StateBuilder("s_" + i));
+        }
+        return state.build();
+    }
+}
@@ -0,0 +1,111 @@
+package rxfsm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rx.subjects.PublishSubject;
+
+// Dispatching events: state switches between two leaves on the given depth (1 is flat),
+// internal transitions and guarded transitions, through an Fsm (in either subscription
+// mode, with and without metrics) and directly through an FsmInstance, as well as state
+// switches triggered by an int code (Fsm.fire) rather than an Observable.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransitionBenchmark {
+
+    @Param({"1", "8"})
+    int depth;
+
+    @Param({"false", "true"})
+    boolean persistentSubscriptions;
+
+    @Param({"false", "true"})
+    boolean metrics;
+
+    final PublishSubject<Integer> switchEvent = PublishSubject.create();
+    final PublishSubject<Integer> internalEvent = PublishSubject.create();
+    final PublishSubject<Integer> guardedEvent = PublishSubject.create();
+    static final int SWITCH_CODE = 1;
+    long handled;
+    int value;
+
+    Fsm fsm;
+    FsmInstance instance;
+    int instanceSwitchEvent;
+
+    @Setup
+    public void setup() {
+        String leafA = Trees.initialLeaf("a", depth - 1);
+        String leafB = Trees.initialLeaf("b", depth - 1);
+
+        rxfsm.State a = Trees.chain("a", depth - 1, switchEvent, leafB)
+                .withInternalTransition(internalEvent, n -> handled++)
+                .withTransition(leafA, guardedEvent, n -> handled++, n -> (n & 1) == 0)
+                .withTransition(leafB, SWITCH_CODE, n -> handled++);
+        rxfsm.State b = Trees.chain("b", depth - 1, switchEvent, leafA)
+                .withInternalTransition(internalEvent, n -> handled++)
+                .withTransition(leafB, guardedEvent, n -> handled++, n -> (n & 1) == 0)
+                .withTransition(leafA, SWITCH_CODE, n -> handled++);
+
+        Fsm fsm = Fsm.create()
+                .withInitialState(leafA)
+                .withTopStates(a, b);
+        if (persistentSubscriptions) {
+            fsm = fsm.withPersistentSubscriptions();
+        }
+        if (metrics) {
+            fsm = fsm.withMetrics(new StripedFsmMetrics());
+        }
+        fsm.activate();
+        this.fsm = fsm;
+
+        FsmDefinition definition = fsm.define();
+        instance = definition.newInstance();
+        instanceSwitchEvent = definition.eventId(switchEvent);
+    }
+
+    @Benchmark
+    public void switchState() {
+        switchEvent.onNext(1);
+    }
+
+    @Benchmark
+    public void internalTransition() {
+        internalEvent.onNext(1);
+    }
+
+    @Benchmark
+    public void guardedTransition() {
+        guardedEvent.onNext(value++ & 0xff);
+    }
+
+    @Benchmark
+    public void instanceSwitchState() {
+        instance.dispatch(instanceSwitchEvent, null);
+    }
+
+    @Benchmark
+    public void fireSwitchState() {
+        fsm.fire(SWITCH_CODE, value++);
+    }
+
+    @Benchmark
+    public void instanceFireSwitchState() {
+        instance.fire(SWITCH_CODE, value++);
+    }
+}
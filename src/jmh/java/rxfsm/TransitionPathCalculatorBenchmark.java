@@ -0,0 +1,49 @@
+package rxfsm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Calculating the path between two state configurations that share half of their ancestors
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransitionPathCalculatorBenchmark {
+
+    @Param({"2", "8", "32"})
+    int depth;
+
+    List<rxfsm.State> source;
+    List<rxfsm.State> target;
+
+    @Setup
+    public void setup() {
+        source = new ArrayList<rxfsm.State>();
+        target = new ArrayList<rxfsm.State>();
+        for (int i = 0; i < depth; i++) {
+            rxfsm.State s = new rxfsm.State("s" + i);
+            source.add(s);
+            target.add(i < depth / 2 ? s : new rxfsm.State("t" + i));
+        }
+    }
+
+    @Benchmark
+    public TransitionPath calculateTransitionPath() {
+        return TransitionPathCalculator.calculateTransitionPath(source, target);
+    }
+}
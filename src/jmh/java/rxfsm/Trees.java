@@ -0,0 +1,45 @@
+package rxfsm;
+
+import rx.Observable;
+
+// State hierarchies used by the benchmarks
+final class Trees {
+
+    private Trees() {
+    }
+
+    // A top state with the given number of sub states on every level, down to the given depth.
+    // Every leaf has a transition to the initial leaf of the tree on the event.
+    static State tree(String name, int depth, int width, Observable<Integer> event, String pathToTarget) {
+        State state = new State(name);
+        if (depth == 0) {
+            return state.withTransition(pathToTarget, event, n -> {});
+        }
+
+        state = state.withInitialSubState(tree(name + "_0", depth - 1, width, event, pathToTarget));
+        for (int i = 1; i < width; i++) {
+            state = state.withSubState(tree(name + "_" + i, depth - 1, width, event, pathToTarget));
+        }
+        return state;
+    }
+
+    // The path of the initial leaf of tree(name, depth, ...)
+    static String initialLeaf(String name, int depth) {
+        StringBuilder path = new StringBuilder("/" + name);
+        String current = name;
+        for (int i = 0; i < depth; i++) {
+            current = current + "_0";
+            path.append('/').append(current);
+        }
+        return path.toString();
+    }
+
+    // A top state with a single chain of sub states down to the given depth, the leaf of
+    // which has a transition to the target on the event.
+    static State chain(String name, int depth, Observable<Integer> event, String pathToTarget) {
+        if (depth == 0) {
+            return new State(name).withTransition(pathToTarget, event, n -> {});
+        }
+        return new State(name).withInitialSubState(chain(name + "_0", depth - 1, event, pathToTarget));
+    }
+}
@@ -0,0 +1,35 @@
+package rxfsm;
+
+import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func1;
+
+// An action that completes asynchronously, see State.withOnEntryAsync and
+// State.withTransitionAsync. An Fsm starts it and handles the next event once the
+// Observable it returns completes, without blocking a thread. Everywhere else (instances
+// that events are dispatched to explicitly, regions and measured Fsms) it is called like any
+// other action, and the calling thread waits for it to complete.
+final class AsyncAction implements Action0, Action1<Object> {
+
+    private final Func1<Object, ? extends Observable<?>> action;
+
+    @SuppressWarnings("unchecked")
+    AsyncAction(Func1<?, ? extends Observable<?>> action) {
+        this.action = (Func1<Object, ? extends Observable<?>>) action;
+    }
+
+    Observable<?> start(Object value) {
+        return action.call(value);
+    }
+
+    @Override
+    public void call() {
+        call(null);
+    }
+
+    @Override
+    public void call(Object value) {
+        start(value).toBlocking().lastOrDefault(null);
+    }
+}
@@ -0,0 +1,12 @@
+package rxfsm;
+
+import java.nio.ByteBuffer;
+
+// Writes and reads the context of an FsmInstance when taking and restoring snapshots (see
+// FsmDefinition.snapshot). The codec has to read exactly what it wrote.
+public interface ContextCodec<C> {
+
+    void write(C context, ByteBuffer buffer);
+
+    C read(ByteBuffer buffer);
+}
@@ -0,0 +1,12 @@
+package rxfsm;
+
+// What to do with an event that is deferred (see State.withDeferredEvent) while the deferred
+// events of an instance already fill its buffer. Overflows are counted either way.
+public enum DeferredEventOverflow {
+    // Drop the new event
+    DROP_NEWEST,
+    // Drop the oldest deferred event to make room for the new one
+    DROP_OLDEST,
+    // Throw an IllegalStateException
+    FAIL
+}
@@ -0,0 +1,73 @@
+package rxfsm;
+
+// The deferred events of an instance (see State.withDeferredEvent), in the order they
+// arrived, in a ring buffer of fixed capacity. Not thread safe.
+final class DeferredEvents {
+
+    private final int[] events;
+    private final Object[] values;
+    private final DeferredEventOverflow overflow;
+    private int head;
+    private int size;
+    private long overflows;
+
+    DeferredEvents(int capacity, DeferredEventOverflow overflow) {
+        this.events = new int[capacity];
+        this.values = new Object[capacity];
+        this.overflow = overflow;
+    }
+
+    void offer(int event, Object value) {
+        if (size == events.length) {
+            overflows++;
+            switch (overflow) {
+                case DROP_NEWEST:
+                    return;
+                case DROP_OLDEST:
+                    remove(0);
+                    break;
+                default:
+                    throw new IllegalStateException("The deferred events exceed the capacity of " + events.length);
+            }
+        }
+
+        int index = (head + size) % events.length;
+        events[index] = event;
+        values[index] = value;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long overflows() {
+        return overflows;
+    }
+
+    // The event id of the i:th oldest deferred event
+    int event(int i) {
+        return events[(head + i) % events.length];
+    }
+
+    // Removes the i:th oldest deferred event and returns its value
+    Object remove(int i) {
+        int index = (head + i) % events.length;
+        Object value = values[index];
+        if (i == 0) {
+            values[head] = null;
+            head = (head + 1) % events.length;
+        } else {
+            // Close the gap by moving the younger events one step towards the head
+            for (int j = i; j < size - 1; j++) {
+                int to = (head + j) % events.length;
+                int from = (to + 1) % events.length;
+                events[to] = events[from];
+                values[to] = values[from];
+            }
+            values[(head + size - 1) % events.length] = null;
+        }
+        size--;
+        return value;
+    }
+}
@@ -0,0 +1,21 @@
+package rxfsm;
+
+// The transitions of a definition compiled into a class of its own (see DispatcherCompiler),
+// in which every guard, action and entry and exit action is called from a call site of its
+// own, rather than from the few shared call sites of the table driven dispatch.
+abstract class Dispatcher {
+
+    // The guards, actions and states called by the generated code
+    final Object[] constants;
+
+    Dispatcher(Object[] constants) {
+        this.constants = constants;
+    }
+
+    // Evaluates the guard and executes the action of the transition that handles the event in
+    // the given leaf state, returns the slot of the transition or NONE if it was not accepted
+    abstract int fire(int state, int event, Object value);
+
+    // Runs the exit and entry actions of the route from the leaf state to the target leaf
+    abstract void run(int state, int target);
+}
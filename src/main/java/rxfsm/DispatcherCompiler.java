@@ -0,0 +1,534 @@
+package rxfsm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.functions.Action0;
+
+// Generates a Dispatcher for a state table. The generated class has a method per leaf state
+// with a switch over its events, in which the guard and action of each transition are
+// called, and a method per leaf state with a switch over the targets of its routes, in which
+// the exit and entry actions are called in order. As every action has a call site of its
+// own, the call sites stay monomorphic and the JIT can inline the actions.
+//
+// The class file is written by hand (version 49, so that no stack map frames are needed) and
+// defined as a hidden class where available (Java 15), otherwise with Lookup.defineClass
+// (Java 9) or ClassLoader.defineClass (Java 8).
+final class DispatcherCompiler {
+
+    private static final String DISPATCHER = "rxfsm/Dispatcher";
+    private static final String CONSTANTS = "[Ljava/lang/Object;";
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    private final StateTable table;
+    private final String name;
+    private final Map<String, Integer> pool = new HashMap<String, Integer>();
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(poolBytes);
+    private int poolCount = 1;
+    private final List<Object> constants = new ArrayList<Object>();
+    private final Map<Object, Integer> constantIndexes = new IdentityHashMap<Object, Integer>();
+    private final List<byte[]> methods = new ArrayList<byte[]>();
+
+    private DispatcherCompiler(StateTable table) {
+        this.table = table;
+        this.name = "rxfsm/GeneratedDispatcher" + COUNT.incrementAndGet();
+    }
+
+    static Dispatcher compile(StateTable table) {
+        if (table.hasRegions || table.hasHistory || table.hasTimeouts || table.hasDeferredEvents) {
+            throw new IllegalArgumentException("Definitions with regions, history, timeouts or deferred events can not be compiled");
+        }
+
+        DispatcherCompiler compiler = new DispatcherCompiler(table);
+        byte[] bytes = compiler.generate();
+        try {
+            return (Dispatcher) define(bytes).getDeclaredConstructor(Object[].class)
+                    .newInstance((Object) compiler.constants.toArray());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("The generated dispatcher could not be instantiated", e);
+        }
+    }
+
+    private byte[] generate() {
+        int n = table.states.length;
+        int[] fireMethods = new int[n];
+        int[] runMethods = new int[n];
+        Arrays.fill(fireMethods, StateTable.NONE);
+        Arrays.fill(runMethods, StateTable.NONE);
+        for (int state = 0; state < n; state++) {
+            if (table.isLeaf(state) && table.transitions[state].length > 0) {
+                fireMethods[state] = method(0x0002, "fire" + state, "(ILjava/lang/Object;)I", 4, fireState(state));
+                if (!targets(state).isEmpty()) {
+                    runMethods[state] = method(0x0002, "run" + state, "(I)V", 3, runState(state));
+                }
+            }
+        }
+        method(0x0001, "fire", "(IILjava/lang/Object;)I", 4, fire(fireMethods));
+        method(0x0001, "run", "(II)V", 3, run(runMethods));
+        method(0x0001, "<init>", "(" + CONSTANTS + ")V", 2, constructor());
+
+        int thisClass = classRef(name);
+        int superClass = classRef(DISPATCHER);
+        if (poolCount > 0xffff) {
+            throw new IllegalArgumentException("The definition is too large to be compiled");
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            poolOut.flush();
+            poolBytes.writeTo(out);
+            out.writeShort(0x0030); // ACC_FINAL | ACC_SUPER
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // Interfaces
+            out.writeShort(0); // Fields
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0); // Attributes
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // The distinct targets of the routes of a leaf, each with its route
+    private Map<Integer, Route> targets(int state) {
+        Map<Integer, Route> targets = new TreeMap<Integer, Route>();
+        for (Route route : table.routes[state]) {
+            if (route != null) {
+                targets.put(route.target, route);
+            }
+        }
+        return targets;
+    }
+
+    private Code constructor() {
+        Code code = new Code();
+        code.u1(0x2a); // aload_0
+        code.u1(0x2b); // aload_1
+        code.u1(0xb7).u2(methodRef(DISPATCHER, "<init>", "(" + CONSTANTS + ")V")); // invokespecial
+        code.u1(0xb1); // return
+        return code;
+    }
+
+    // fire(state, event, value): a table switch over the leaf states
+    private Code fire(int[] fireMethods) {
+        Code code = new Code();
+        code.u1(0x1b); // iload_1
+        Switch cases = code.tableSwitch(fireMethods.length);
+        for (int state = 0; state < fireMethods.length; state++) {
+            if (fireMethods[state] != StateTable.NONE) {
+                code.label(cases, state + 1);
+                code.u1(0x2a); // aload_0
+                code.u1(0x1c); // iload_2
+                code.u1(0x2d); // aload_3
+                code.u1(0xb7).u2(fireMethods[state]); // invokespecial
+                code.u1(0xac); // ireturn
+            }
+        }
+        code.label(cases, 0);
+        code.label(cases, fireMethods);
+        code.u1(0x02); // iconst_m1
+        code.u1(0xac); // ireturn
+        return code;
+    }
+
+    // fire<state>(event, value): a lookup switch over the events handled by the leaf
+    private Code fireState(int state) {
+        Code code = new Code();
+        loadConstants(code, 3);
+        code.u1(0x1b); // iload_1
+        Map<Integer, Integer> slots = new TreeMap<Integer, Integer>();
+        for (int slot = 0; slot < table.transitions[state].length; slot++) {
+            slots.put(table.transitionEvents[state][slot], slot);
+        }
+        Switch cases = code.lookupSwitch(slots.keySet());
+
+        List<Integer> rejects = new ArrayList<Integer>();
+        int i = 1;
+        for (int slot : slots.values()) {
+            code.label(cases, i++);
+            Transition transition = table.transitions[state][slot];
+            if (transition.guard() != null) {
+                loadConstant(code, 3, transition.guard(), "rx/functions/Func1");
+                code.u1(0x2c); // aload_2
+                code.u1(0xb9).u2(interfaceMethodRef("rx/functions/Func1", "call", "(Ljava/lang/Object;)Ljava/lang/Object;"))
+                        .u1(2).u1(0); // invokeinterface
+                code.u1(0xc0).u2(classRef("java/lang/Boolean")); // checkcast
+                code.u1(0xb6).u2(methodRef("java/lang/Boolean", "booleanValue", "()Z")); // invokevirtual
+                rejects.add(code.branch(0x99)); // ifeq
+            }
+            loadConstant(code, 3, transition.action(), "rx/functions/Action1");
+            code.u1(0x2c); // aload_2
+            code.u1(0xb9).u2(interfaceMethodRef("rx/functions/Action1", "call", "(Ljava/lang/Object;)V"))
+                    .u1(2).u1(0); // invokeinterface
+            pushInt(code, slot);
+            code.u1(0xac); // ireturn
+        }
+        code.label(cases, 0);
+        for (int reject : rejects) {
+            code.patchBranch(reject);
+        }
+        code.u1(0x02); // iconst_m1
+        code.u1(0xac); // ireturn
+        return code;
+    }
+
+    // run(state, target): a table switch over the leaf states
+    private Code run(int[] runMethods) {
+        Code code = new Code();
+        code.u1(0x1b); // iload_1
+        Switch cases = code.tableSwitch(runMethods.length);
+        for (int state = 0; state < runMethods.length; state++) {
+            if (runMethods[state] != StateTable.NONE) {
+                code.label(cases, state + 1);
+                code.u1(0x2a); // aload_0
+                code.u1(0x1c); // iload_2
+                code.u1(0xb7).u2(runMethods[state]); // invokespecial
+                code.u1(0xb1); // return
+            }
+        }
+        code.label(cases, 0);
+        code.label(cases, runMethods);
+        code.u1(0xb1); // return
+        return code;
+    }
+
+    // run<state>(target): a lookup switch over the targets of the routes of the leaf
+    private Code runState(int state) {
+        Code code = new Code();
+        loadConstants(code, 2);
+        code.u1(0x1b); // iload_1
+        Map<Integer, Route> targets = targets(state);
+        Switch cases = code.lookupSwitch(targets.keySet());
+        int i = 1;
+        for (Route route : targets.values()) {
+            code.label(cases, i++);
+            for (State s : route.statesToExit) {
+                callAction(code, s, false);
+            }
+            for (State s : route.statesToEnter) {
+                callAction(code, s, true);
+            }
+            code.u1(0xb1); // return
+        }
+        code.label(cases, 0);
+        code.u1(0xb1); // return
+        return code;
+    }
+
+    // Calls the entry or exit action of a state, if it has one. The enter and exit methods
+    // of subclasses of State are called instead, as they may do more than that.
+    private void callAction(Code code, State state, boolean enter) {
+        if (state.getClass() != State.class) {
+            loadConstant(code, 2, state, "rxfsm/State");
+            code.u1(0xb6).u2(methodRef("rxfsm/State", enter ? "enter" : "exit", "()V")); // invokevirtual
+            return;
+        }
+
+        Action0 action = enter ? state.entryAction() : state.exitAction();
+        if (action != null) {
+            loadConstant(code, 2, action, "rx/functions/Action0");
+            code.u1(0xb9).u2(interfaceMethodRef("rx/functions/Action0", "call", "()V")).u1(1).u1(0); // invokeinterface
+        }
+    }
+
+    private void loadConstants(Code code, int local) {
+        code.u1(0x2a); // aload_0
+        code.u1(0xb4).u2(fieldRef(DISPATCHER, "constants", CONSTANTS)); // getfield
+        code.u1(0x4b + local); // astore_<local>
+    }
+
+    private void loadConstant(Code code, int local, Object constant, String type) {
+        Integer index = constantIndexes.get(constant);
+        if (index == null) {
+            index = constants.size();
+            constants.add(constant);
+            constantIndexes.put(constant, index);
+        }
+        code.u1(0x2a + local); // aload_<local>
+        pushInt(code, index);
+        code.u1(0x32); // aaload
+        code.u1(0xc0).u2(classRef(type)); // checkcast
+    }
+
+    private void pushInt(Code code, int value) {
+        if (value >= -1 && value <= 5) {
+            code.u1(0x03 + value); // iconst_<value>
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.u1(0x10).u1(value); // bipush
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.u1(0x11).u2(value); // sipush
+        } else {
+            code.u1(0x13).u2(integer(value)); // ldc_w
+        }
+    }
+
+    // Adds a method, returns a reference to it
+    private int method(int access, String methodName, String descriptor, int maxLocals, Code code) {
+        if (code.size > 0xffff) {
+            throw new IllegalArgumentException("The definition is too large to be compiled");
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(methodName));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1); // Attributes
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + code.size);
+            out.writeShort(4); // Max stack
+            out.writeShort(maxLocals);
+            out.writeInt(code.size);
+            out.write(code.bytes, 0, code.size);
+            out.writeShort(0); // Exception table
+            out.writeShort(0); // Attributes
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methods.add(bytes.toByteArray());
+        return methodRef(name, methodName, descriptor);
+    }
+
+    // The constant pool, entries are added as they are referenced
+
+    private int utf8(String value) {
+        return entry("U" + value, 1, out -> out.writeUTF(value));
+    }
+
+    private int integer(int value) {
+        return entry("I" + value, 3, out -> out.writeInt(value));
+    }
+
+    private int classRef(String className) {
+        int nameIndex = utf8(className);
+        return entry("C" + className, 7, out -> out.writeShort(nameIndex));
+    }
+
+    private int nameAndType(String memberName, String descriptor) {
+        int nameIndex = utf8(memberName);
+        int descriptorIndex = utf8(descriptor);
+        return entry("N" + memberName + ":" + descriptor, 12, out -> {
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+    }
+
+    private int fieldRef(String owner, String memberName, String descriptor) {
+        return memberRef(9, owner, memberName, descriptor);
+    }
+
+    private int methodRef(String owner, String memberName, String descriptor) {
+        return memberRef(10, owner, memberName, descriptor);
+    }
+
+    private int interfaceMethodRef(String owner, String memberName, String descriptor) {
+        return memberRef(11, owner, memberName, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String memberName, String descriptor) {
+        int classIndex = classRef(owner);
+        int nameAndTypeIndex = nameAndType(memberName, descriptor);
+        return entry("M" + tag + owner + "." + memberName + ":" + descriptor, tag, out -> {
+            out.writeShort(classIndex);
+            out.writeShort(nameAndTypeIndex);
+        });
+    }
+
+    private interface EntryWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int entry(String key, int tag, EntryWriter writer) {
+        Integer index = pool.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        try {
+            poolOut.writeByte(tag);
+            writer.write(poolOut);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        pool.put(key, poolCount);
+        return poolCount++;
+    }
+
+    // A switch instruction and the positions of its offsets, the default one first
+    private static final class Switch {
+        final int position;
+        final int[] offsets;
+
+        Switch(int position, int cases) {
+            this.position = position;
+            this.offsets = new int[cases + 1];
+        }
+    }
+
+    // The code of a method, with switches and branches whose offsets are patched once the
+    // code they jump to has been written
+    private static final class Code {
+        byte[] bytes = new byte[256];
+        int size;
+
+        Code u1(int value) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte) value;
+            return this;
+        }
+
+        Code u2(int value) {
+            return u1(value >> 8).u1(value);
+        }
+
+        Code u4(int value) {
+            return u2(value >> 16).u2(value);
+        }
+
+        // Writes a table switch over 0 to count - 1, case i + 1 of which is key i
+        Switch tableSwitch(int count) {
+            Switch instruction = new Switch(size, count);
+            u1(0xaa);
+            while (size % 4 != 0) {
+                u1(0);
+            }
+            instruction.offsets[0] = size;
+            u4(0);
+            u4(0);
+            u4(count - 1);
+            for (int i = 0; i < count; i++) {
+                instruction.offsets[i + 1] = size;
+                u4(0);
+            }
+            return instruction;
+        }
+
+        // Writes a lookup switch over the (sorted) keys, case i + 1 of which is the i:th key
+        Switch lookupSwitch(Collection<Integer> keys) {
+            Switch instruction = new Switch(size, keys.size());
+            u1(0xab);
+            while (size % 4 != 0) {
+                u1(0);
+            }
+            instruction.offsets[0] = size;
+            u4(0);
+            u4(keys.size());
+            int i = 1;
+            for (int key : keys) {
+                u4(key);
+                instruction.offsets[i++] = size;
+                u4(0);
+            }
+            return instruction;
+        }
+
+        // Points case i (0 being the default) of a switch at the current position
+        void label(Switch instruction, int i) {
+            patch4(instruction.offsets[i], size - instruction.position);
+        }
+
+        // Points the cases of a table switch over states without a method at the current
+        // position
+        void label(Switch instruction, int[] methods) {
+            for (int i = 0; i < methods.length; i++) {
+                if (methods[i] == StateTable.NONE) {
+                    label(instruction, i + 1);
+                }
+            }
+        }
+
+        // Writes a branch instruction, returns its position
+        int branch(int opcode) {
+            int position = size;
+            u1(opcode);
+            u2(0);
+            return position;
+        }
+
+        // Points a branch at the current position, which has to be within the signed 16 bit
+        // offset of the branch
+        void patchBranch(int position) {
+            int offset = size - position;
+            if (offset > Short.MAX_VALUE) {
+                throw new IllegalArgumentException("The definition is too large to be compiled");
+            }
+            bytes[position + 1] = (byte) (offset >> 8);
+            bytes[position + 2] = (byte) offset;
+        }
+
+        private void patch4(int position, int value) {
+            bytes[position] = (byte) (value >> 24);
+            bytes[position + 1] = (byte) (value >> 16);
+            bytes[position + 2] = (byte) (value >> 8);
+            bytes[position + 3] = (byte) value;
+        }
+    }
+
+    // Defines the class in this package, with the most recent means available
+    private static Class<?> define(byte[] bytes) throws ReflectiveOperationException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            Method defineHiddenClass = MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+                    byte[].class, boolean.class, Array.newInstance(option, 0).getClass());
+            return ((MethodHandles.Lookup) invoke(defineHiddenClass, lookup, bytes, true, Array.newInstance(option, 0)))
+                    .lookupClass();
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            // Before Java 15
+        }
+        try {
+            Method defineClass = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+            return (Class<?>) invoke(defineClass, lookup, bytes);
+        } catch (NoSuchMethodException e) {
+            // Java 8
+        }
+        Method defineClass = ClassLoader.class.getDeclaredMethod("defineClass",
+                String.class, byte[].class, int.class, int.class);
+        defineClass.setAccessible(true);
+        return (Class<?>) invoke(defineClass, DispatcherCompiler.class.getClassLoader(),
+                null, bytes, 0, bytes.length);
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) throws ReflectiveOperationException {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package rxfsm;
+
+// The event of a transition that is triggered by an int code (see Fsm.fire) rather than by
+// an Observable. Codes are equal if their values are, so that a transition for a code in a
+// sub state overrides one for the same code in its ancestors. An enum constant is fired by
+// its ordinal, its code keeps the constant so that codes of different enums (or of an enum
+// and int codes) can be told apart, see StateTable.collectEvents.
+final class EventCode {
+
+    // Codes index a table of each definition, so they are kept small
+    static final int MAX_CODE = 0xffff;
+
+    final int code;
+    final Enum<?> constant; // null for an int code
+
+    EventCode(int code) {
+        this(code, null);
+    }
+
+    EventCode(Enum<?> constant) {
+        this(constant.ordinal(), constant);
+    }
+
+    private EventCode(int code, Enum<?> constant) {
+        if (code < 0 || code > MAX_CODE) {
+            throw new IllegalArgumentException("Event codes have to be between 0 and " + MAX_CODE);
+        }
+        this.code = code;
+        this.constant = constant;
+    }
+
+    // True if both codes are ordinals of the same enum, or both are int codes
+    boolean isSameKind(EventCode other) {
+        return constant == null
+                ? other.constant == null
+                : other.constant != null && constant.getDeclaringClass() == other.constant.getDeclaringClass();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof EventCode && ((EventCode) o).code == code;
+    }
+
+    @Override
+    public int hashCode() {
+        return code;
+    }
+
+    @Override
+    public String toString() {
+        return constant == null ? "code " + code : constant.getDeclaringClass().getSimpleName() + "." + constant.name();
+    }
+}
@@ -0,0 +1,57 @@
+package rxfsm;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+// An unbounded, lock-free, multi producer single consumer queue of events (an event id and
+// a value). Any thread can offer events, but only one thread at a time may poll.
+final class EventQueue {
+
+    static final class Node {
+        final int event;
+        Object value;
+        volatile Node next;
+
+        Node(int event, Object value) {
+            this.event = event;
+            this.value = value;
+        }
+    }
+
+    private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+    // Producers swap in new nodes at the head, the consumer follows the links from the tail.
+    // The tail is always an already consumed node.
+    private final AtomicReference<Node> head;
+    private Node tail;
+
+    EventQueue() {
+        Node stub = new Node(StateTable.NONE, null);
+        this.head = new AtomicReference<Node>(stub);
+        this.tail = stub;
+    }
+
+    void offer(int event, Object value) {
+        Node node = new Node(event, value);
+        Node previous = head.getAndSet(node);
+        NEXT.lazySet(previous, node);
+    }
+
+    // Returns the next node, or null if the queue is empty. The value of the returned node
+    // is valid until the next call to poll.
+    Node poll() {
+        Node next = tail.next;
+        if (next == null) {
+            return null;
+        }
+
+        tail.value = null;
+        tail = next;
+        return next;
+    }
+
+    boolean isEmpty() {
+        return tail.next == null;
+    }
+}
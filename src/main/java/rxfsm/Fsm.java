@@ -1,33 +1,83 @@
 package rxfsm;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import rx.Observable;
-import rx.Subscription;
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.plugins.RxJavaPlugins;
 import rx.subscriptions.CompositeSubscription;
+import rx.subscriptions.Subscriptions;
 
+// Events are processed with run-to-completion semantics: events may be emitted from any
+// thread, they are queued and handled one at a time, and an event emitted while another one
+// is being handled (e.g. from within an action) is handled once the current one completes.
 public class Fsm {
 
-    private final String pathToInitialState;
+    // Events with this id carry an Action0 that is executed in turn with other events
+    private static final int CONTROL = StateTable.NONE;
 
-    private State initialState; // Lazy construction, hence not final
-    private Map<String, State> pathToStateMap; // Lazy construction, hence not final
-    private Map<State, List<State>> stateAncestorMap; // Lazy construction, hence not final
+    // The settings are copied into fields, which are read on every event
+    private final FsmSettings settings;
+    private final String pathToInitialState;
+    private final boolean persistentSubscriptions;
+    private final Scheduler scheduler;
+    private final FsmMetrics metrics;
+    private final FsmJournal journal;
+    private final ForkJoinPool regionPool;
+    private final HashedWheelTimer timer;
+    private final int deferredCapacity;
+    private final DeferredEventOverflow deferredOverflow;
+    private final Executor actionExecutor;
+    private final Action1<Throwable> actionErrorHandler;
+
+    private FsmDefinition definition; // Lazy construction, hence not final
+    private FsmInstance instance; // Lazy construction, hence not final
     private CompositeSubscription transitionsSubscriptions; // Lazy construction, hence not final
+    private EventQueue queue; // Lazy construction, hence not final
+    private Scheduler.Worker worker; // Lazy construction, hence not final
+    private Action0 drainAction; // Lazy construction, hence not final
+    private RegionBatch regionBatch; // Lazy construction, hence not final
+    private long[] enteredAt; // Lazy construction, hence not final
+    private StateChangeBuffer[] stateChangeBuffers = new StateChangeBuffer[0];
+    private final AtomicInteger wip = new AtomicInteger();
+
+    // The actions in progress, only used if actions are run asynchronously (see proceed). The
+    // steps of a state change are run one at a time, and no event is handled while one of
+    // them is in progress (suspended).
+    private boolean async;
+    private boolean suspended;
+    private volatile boolean stepCompleted;
+    private volatile Throwable stepFailure;
+    private int[] steps;
+    private int step;
+    private Transition transition; // The transition of the steps, null on activation
+    private Route route; // The route of the steps, null for internal transitions
+    private int source;
+    private int target;
+    private int event;
+    private Object value;
     private final List<State> topStates;
-    private State currentState;
 
     public static Fsm create() {
-        return new Fsm(null, null);
+        return new Fsm(new FsmSettings());
+    }
+
+    // Creates an Fsm from an already compiled definition, which can be shared between any
+    // number of Fsms.
+    public static Fsm create(FsmDefinition definition) {
+        return new Fsm(new FsmSettings().with(s -> s.definition = definition));
     }
 
 
     public Fsm withInitialState(String pathToInitialState) {
-        return new Fsm(pathToInitialState, topStates);
+        return new Fsm(settings.with(s -> s.pathToInitialState = pathToInitialState));
     }
 
     public Fsm withTopStates(State... topStates) {
@@ -35,182 +85,741 @@ public class Fsm {
             throw new IllegalArgumentException("Top states can only be declared once");
         }
 
-        return new Fsm(pathToInitialState, Arrays.asList(topStates));
+        return new Fsm(settings.with(s -> s.topStates = Arrays.asList(topStates)));
+    }
+
+    // Subscribe once to every event at activation and route each emission through the
+    // transitions of the current state, instead of subscribing to the events of a state
+    // every time it is entered and unsubscribing when it is exited. This avoids subscription
+    // churn for hot events, but note that events are subscribed to even while no active state
+    // handles them (they are dropped, just as they would have been otherwise).
+    public Fsm withPersistentSubscriptions() {
+        return new Fsm(settings.with(s -> s.persistentSubscriptions = true));
+    }
+
+    // Execute everything (activation, guards, actions and state switches) on a worker of the
+    // given scheduler instead of on the thread that emitted the event. A worker executes one
+    // task at a time, so with e.g. Schedulers.computation() or FsmEventLoops each Fsm is
+    // pinned to one of a fixed set of event loops.
+    public Fsm withScheduler(Scheduler scheduler) {
+        return new Fsm(settings.with(s -> s.scheduler = scheduler));
+    }
+
+    // Report transitions, time in state and action and guard latencies to the given metrics
+    // (e.g. StripedFsmMetrics). Without metrics nothing is measured.
+    public Fsm withMetrics(FsmMetrics metrics) {
+        return new Fsm(settings.with(s -> s.metrics = metrics));
+    }
+
+    // Record every state change in the journal, so that the state can be recovered (see
+    // recover). Activating the Fsm starts the journal over.
+    public Fsm withJournal(FsmJournal journal) {
+        return new Fsm(settings.with(s -> s.journal = journal));
+    }
+
+    // Let the regions of a state (see State.withRegions) handle events in parallel on the given
+    // pool. Consecutive events that only concern regions are collected per region, and each
+    // region handles its events in order, in parallel with the other regions. An event that
+    // the state itself has a transition for waits for all regions to be done (and is then
+    // handled by the regions first, as always). Actions of different regions may hence run
+    // concurrently.
+    public Fsm withParallelRegions(ForkJoinPool pool) {
+        return new Fsm(settings.with(s -> s.regionPool = pool));
+    }
+
+    // Drive the timeouts of states (see State.withTimeout) with the given timer instead of
+    // HashedWheelTimer.shared(). Timeouts are handled like any other event, on the thread of
+    // the timer unless the Fsm has a scheduler (or is already handling events).
+    public Fsm withTimer(HashedWheelTimer timer) {
+        return new Fsm(settings.with(s -> s.timer = timer));
+    }
+
+    // Keep up to capacity deferred events (see State.withDeferredEvent), with the given
+    // overflow policy, see FsmDefinition.withDeferredEvents. Not applied to a definition that
+    // the Fsm was created from.
+    public Fsm withDeferredEvents(int capacity, DeferredEventOverflow overflow) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity has to be at least one");
+        }
+
+        return new Fsm(settings.with(s -> {
+            s.deferredCapacity = capacity;
+            s.deferredOverflow = overflow;
+        }));
+    }
+
+    // Run the actions that are not asynchronous (see State.withOnEntryAsync) on the given
+    // executor, e.g. one that starts a virtual thread per task, instead of on the thread that
+    // handles events. Actions still run one at a time and events are handled once the actions
+    // they trigger have completed, but a blocking action does not block the thread that
+    // handles events. Guards are evaluated on that thread as before. Can not be combined with
+    // regions or metrics.
+    public Fsm withActionExecutor(Executor executor) {
+        return new Fsm(settings.with(s -> s.actionExecutor = executor));
+    }
+
+    // Pass the failures of asynchronous actions (and of actions run on the action executor)
+    // to the given handler, on the thread that handles events, instead of to the error
+    // handler of RxJavaPlugins. A failed action abandons its state change, see resume.
+    public Fsm withActionErrorHandler(Action1<Throwable> handler) {
+        return new Fsm(settings.with(s -> s.actionErrorHandler = handler));
+    }
+
+    // Compiles the state hierarchy into a definition that can be shared by many instances
+    public FsmDefinition define() {
+        if (definition != null) {
+            return definition;
+        }
+        FsmDefinition definition = new FsmDefinition(pathToInitialState, topStates);
+        return deferredOverflow == null ? definition : definition.withDeferredEvents(deferredCapacity, deferredOverflow);
     }
 
+    // Activates the initial state, asynchronously if the Fsm has a scheduler
     public void activate() {
-        if (topStates == null || topStates.isEmpty()) {
-            throw new IllegalArgumentException("Top states needs to be provided");
+        activate(null, true);
+    }
+
+    // Activates the Fsm in the state of a snapshot (see snapshot) instead of its initial
+    // state. Entry actions are only run if enter is true.
+    public void restore(ByteBuffer snapshot, boolean enter) {
+        this.definition = define();
+        FsmInstance[] instances = definition.restore(snapshot);
+        if (instances.length != 1) {
+            throw new IllegalArgumentException("Not a snapshot of an Fsm");
         }
+        activate(instances[0], enter);
+    }
+
+    public void restore(ByteBuffer snapshot) {
+        restore(snapshot, false);
+    }
 
-        this.pathToStateMap = generatePathToStateMap(topStates);
-        this.stateAncestorMap = generateStateAncestorMap(topStates);
-        this.initialState = pathToStateMap.get(pathToInitialState);
+    // Activates the Fsm in the last state recorded by its journal, without running any
+    // actions on the way there. Entry actions of that state are only run if enter is true.
+    // If nothing has been recorded the Fsm is activated in its initial state.
+    public void recover(boolean enter) {
+        if (journal == null) {
+            throw new IllegalStateException("The Fsm has no journal");
+        }
+        if (journal.isEmpty()) {
+            activate();
+            return;
+        }
+
+        this.definition = define();
+        int state = definition.table.idOfStable(journal.lastState());
+        if (state == StateTable.NONE) {
+            throw new IllegalArgumentException("The journal contains a state that does not exist");
+        }
+        if (definition.table.isPruned(definition.table.initialLeaves[state])) {
+            throw new IllegalArgumentException("The journal contains a state that can not be reached from the initial state");
+        }
+        activate(new FsmInstance(definition, definition.table.initialLeaves[state]), enter);
+    }
+
+    public void recover() {
+        recover(false);
+    }
+
+    // Writes the current state to the buffer, see FsmDefinition.snapshot. If taken from
+    // another thread than the one handling events, the state may have changed already.
+    public void snapshot(ByteBuffer buffer) {
+        if (instance == null) {
+            throw new IllegalStateException("The Fsm has not been activated");
+        }
+
+        definition.snapshot(new FsmInstance[] { instance }, buffer);
+    }
+
+    private void activate(FsmInstance restored, boolean enter) {
+        this.definition = define();
+        if (actionExecutor != null && (definition.table.hasRegions || metrics != null)) {
+            throw new IllegalStateException("An action executor can not be combined with regions or metrics");
+        }
+        // Asynchronous actions of regions and measured Fsms are waited for by blocking
+        this.async = (actionExecutor != null || definition.table.hasAsyncActions)
+                && !definition.table.hasRegions && metrics == null;
         this.transitionsSubscriptions = new CompositeSubscription();
+        this.queue = new EventQueue();
+
+        // Events emitted before activation has completed are handled once it has
+        wip.incrementAndGet();
+        if (scheduler == null) {
+            start(restored, enter);
+        } else {
+            this.worker = scheduler.createWorker();
+            this.drainAction = this::drain;
+            worker.schedule(() -> start(restored, enter));
+        }
+    }
 
-        if (initialState == null) {
-            throw new IllegalArgumentException("Initial state needs to be provided");
+    private void start(FsmInstance restored, boolean enter) {
+        if (metrics != null) {
+            metrics.bind(definition);
+            this.enteredAt = new long[definition.stateCount()];
+        }
+        if (async) {
+            // The states are entered once the Fsm is set up, see below
+            this.instance = restored == null ? new FsmInstance(definition, definition.initialState) : restored;
+            this.steps = restored == null ? definition.initialEntries()
+                    : enter ? definition.configuration(restored.state) : new int[0];
+        } else if (restored == null) {
+            this.instance = new FsmInstance(definition, metrics == null
+                    ? definition.enter()
+                    : definition.enter(metrics, enteredAt));
+            definition.enterRegions(instance, true);
+        } else {
+            this.instance = restored;
+            if (metrics == null) {
+                definition.restore(restored.state, enter);
+            } else {
+                definition.restore(restored.state, enter, metrics, enteredAt);
+            }
+            definition.restoreRegions(instance, enter);
+        }
+        if (definition.table.hasTimeouts) {
+            InstanceTimers.attach(instance, instance, timer == null ? HashedWheelTimer.shared() : timer,
+                    node -> post(node.event, node));
+        }
+        if (regionPool != null && definition.table.hasRegions) {
+            this.regionBatch = new RegionBatch(regionPool);
+        }
+        if (journal != null) {
+            journal.checkpoint(definition.table.stableIds[instance.state]);
+        }
+        if (persistentSubscriptions) {
+            subscribeToEvents();
+        } else {
+            activateTransitions();
         }
+        if (async) {
+            this.step = 0;
+            proceed();
+        }
+        drain();
+    }
 
-        // TODO: Verify that the FSM is valid (e.g. all transition targets are valid states)
-        enter(initialState);
+    // The effective transitions of a leaf state, i.e. those that are triggered when the state
+    // is active (transitions of ancestors that are overridden by the state are excluded).
+    public List<Transition> effectiveTransitions(String pathToState) {
+        if (queue == null) {
+            throw new IllegalStateException("The Fsm has not been activated");
+        }
+
+        return definition.effectiveTransitions(pathToState);
     }
 
-    private Fsm(String pathToInitialState, List<State> topStates) {
-        this.pathToInitialState = pathToInitialState;
-        this.pathToStateMap = null; //generatePathToStateMap(topStates);
-        this.initialState = null; //pathToStateMap.get(pathToInitialState);
-        this.currentState = null;
-        this.transitionsSubscriptions = null;
-        this.topStates = topStates;
-        this.stateAncestorMap = null;
+    // The path of the current (leaf) state. If read from another thread than the one handling
+    // events, the state may have changed already.
+    public String currentStatePath() {
+        if (instance == null) {
+            throw new IllegalStateException("The Fsm has not been activated");
+        }
+
+        return instance.getCurrentStatePath();
     }
 
-    private void switchState(State targetState) {
-        State actualTargetState = targetState;
-        while (actualTargetState.getInitialSubState() != null) {
-            actualTargetState = actualTargetState.getInitialSubState();
+    // The paths of all active leaf states, see FsmInstance.getCurrentStatePaths
+    public List<String> currentStatePaths() {
+        if (instance == null) {
+            throw new IllegalStateException("The Fsm has not been activated");
         }
 
-        TransitionPath path =
-                TransitionPathCalculator.calculateTransitionPath(
-                        stateAncestorMap.get(currentState),
-                        stateAncestorMap.get(actualTargetState));
+        return instance.getCurrentStatePaths();
+    }
 
-        deactivateTransitions();
-        exit(currentState);
-        exitStates(path.getStatesToExit());
-        enterStates(path.getStatesToEnter());
-        enter(actualTargetState);
+    // The number of deferred events that were dropped (or failed) because the buffer of
+    // deferred events was full, see withDeferredEvents
+    public long deferredEventOverflows() {
+        if (instance == null) {
+            throw new IllegalStateException("The Fsm has not been activated");
+        }
+
+        return instance.getDeferredEventOverflows();
     }
 
-    private void enter(State state) {
-        state.enter();
+    // State changes caused by transitions (internal transitions excluded). Each subscriber gets
+    // a buffer of 128 records and fails once it overflows, see
+    // stateChanges(StateChangeBackpressure, int).
+    public Observable<StateChange> stateChanges() {
+        return stateChanges(StateChangeBackpressure.FAIL, 128);
+    }
 
-        State initialSubState = state.getInitialSubState();
-        if (initialSubState != null)
-        {
-            enter(initialSubState);
+    // State changes caused by transitions (internal transitions excluded). State changes are
+    // delivered on the thread that handles events, into a buffer of preallocated records per
+    // subscriber, so that a subscriber that does not keep up (does not request more) never
+    // stalls the Fsm. Once the buffer is full, the backpressure strategy decides what happens.
+    // Records are reused, see StateChange.
+    public Observable<StateChange> stateChanges(StateChangeBackpressure backpressure, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity has to be at least one");
         }
-        else
-        {
-            // The base case
-            currentState = state;
+
+        return Observable.create(subscriber -> {
+            if (queue == null) {
+                subscriber.onError(new IllegalStateException("The Fsm has not been activated"));
+                return;
+            }
+
+            StateChangeBuffer buffer = new StateChangeBuffer(definition, subscriber, backpressure, capacity);
+            post(CONTROL, (Action0) () -> addStateChangeBuffer(buffer));
+            subscriber.add(Subscriptions.create(() -> post(CONTROL, (Action0) () -> removeStateChangeBuffer(buffer))));
+            subscriber.setProducer(n -> {
+                buffer.request(n);
+                post(CONTROL, (Action0) buffer::drain);
+            });
+        });
+    }
+
+    private Fsm(FsmSettings settings) {
+        this.settings = settings;
+        this.pathToInitialState = settings.pathToInitialState;
+        this.persistentSubscriptions = settings.persistentSubscriptions;
+        this.scheduler = settings.scheduler;
+        this.metrics = settings.metrics;
+        this.journal = settings.journal;
+        this.regionPool = settings.regionPool;
+        this.timer = settings.timer;
+        this.deferredCapacity = settings.deferredCapacity;
+        this.deferredOverflow = settings.deferredOverflow;
+        this.actionExecutor = settings.actionExecutor;
+        this.actionErrorHandler = settings.actionErrorHandler;
+        this.definition = settings.definition;
+        this.instance = null;
+        this.transitionsSubscriptions = null;
+        this.queue = null;
+        this.worker = null;
+        this.drainAction = null;
+        this.regionBatch = null;
+        this.enteredAt = null;
+        this.topStates = settings.topStates;
+    }
+
+    // An exit or entry action that throws leaves the instance in the state it was in (or had
+    // been entered), whose transitions are subscribed to again
+    private void switchState(int source, Route route, int event) {
+        deactivateTransitions();
+        try {
+            if (metrics == null) {
+                definition.run(instance, route);
+            } else {
+                definition.run(instance, route, event, metrics, enteredAt);
+            }
+        } finally {
             activateTransitions();
         }
+        if (journal != null) {
+            journal.append(event, definition.table.stableIds[source], definition.table.stableIds[instance.state]);
+        }
+    }
 
+    // Fires an event that is triggered by a code (see State.withTransition(String, int,
+    // LongConsumer)). Unless the Fsm has a scheduler or another thread is handling events, the
+    // event is handled right away without allocating anything. Otherwise it is queued (with a
+    // boxed payload) like any other event. Codes that trigger no transition are ignored, as
+    // are int codes if the transitions are triggered by enum constants.
+    public void fire(int event, long payload) {
+        fire(event, null, payload);
     }
 
-    private void exit(State state) {
-        state.exit();
+    // Fires an enum constant by its ordinal, see State.withTransition(String, Enum, LongConsumer).
+    // Constants of an enum other than the one the transitions are triggered by are ignored.
+    public void fire(Enum<?> event, long payload) {
+        fire(event.ordinal(), event.getDeclaringClass(), payload);
     }
 
-    private void exitStates(List<State> statesToExit) {
-        for (State s : statesToExit) {
-            s.exit();
+    private void fire(int event, Class<?> enumClass, long payload) {
+        if (queue == null) {
+            throw new IllegalStateException("The Fsm has not been activated");
         }
+
+        int id = definition.table.codeEvent(event, enumClass);
+        if (id == StateTable.NONE) {
+            return;
+        }
+        if (worker == null && !async && wip.compareAndSet(0, 1)) {
+            try {
+                handle(id, payload);
+            } catch (Throwable e) {
+                release(e);
+                throw e;
+            }
+            drain();
+        } else {
+            post(id, payload);
+        }
+    }
+
+    // Queues an event, and handles it right away (or on the scheduler) unless another thread
+    // (or an action further up the stack) is already handling events, in which case that
+    // one will handle it.
+    private void post(int event, Object value) {
+        queue.offer(event, value);
+        signal();
     }
 
-    private void enterStates(List<State> statesToEnter) {
-        for (State s: statesToEnter) {
-            s.enter();
+    private void signal() {
+        if (wip.getAndIncrement() == 0) {
+            if (worker == null) {
+                drain();
+            } else {
+                worker.schedule(drainAction);
+            }
         }
     }
 
-    private void activateTransitions() {
-        List<Observable<String>> observableTransitions
-                = generateObservableTransitionList(currentState, stateAncestorMap.get(currentState));
+    // An exception thrown by an action or guard is passed on to the thread that handled the
+    // event, and leaves the Fsm ready for the next one. Events queued meanwhile are handled
+    // along with it.
+    private void drain() {
+        try {
+            drainQueue();
+        } catch (Throwable e) {
+            release(e);
+            throw e;
+        }
+    }
 
-        if (!observableTransitions.isEmpty()) {
-            Subscription s = Observable
-                    .merge(observableTransitions)
-                    .subscribe(pathToNewState -> {
-                        // pathToNewState is null for internal transitions (by convention).
-                        if (pathToNewState != null) {
-                            Fsm.this.switchState(pathToStateMap.get(pathToNewState));
-                        } else {
-                            // Do nothing, for internal transitions this subscription is only here to
-                            // enable actions to be executed when the transition triggers
-                        }
-                    });
+    // Gives up handling events after an action or guard threw. The events that were queued
+    // meanwhile (by other threads or by the action itself) were left to this thread, so they
+    // are handled (or scheduled) before the exception is passed on. Exceptions thrown while
+    // handling them are added to it as suppressed.
+    private void release(Throwable failure) {
+        wip.set(0);
+        if (!queue.isEmpty()) {
+            try {
+                signal();
+            } catch (Throwable e) {
+                failure.addSuppressed(e);
+            }
+        }
+    }
 
-            transitionsSubscriptions.add(s);
+    private void drainQueue() {
+        int missed = 1;
+        for (;;) {
+            if (suspended && stepCompleted) {
+                resume();
+            }
+            EventQueue.Node node;
+            while (!suspended && (node = queue.poll()) != null) {
+                if (regionBatch == null) {
+                    handle(node.event, node.value);
+                } else if (!regionBatch.offer(instance, node.event, node.value)) {
+                    regionBatch.run();
+                    handle(node.event, node.value);
+                }
+            }
+            if (regionBatch != null) {
+                regionBatch.run();
+            }
+            if (journal != null) {
+                journal.flush();
+            }
+
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
         }
     }
 
-    private void deactivateTransitions() {
-        transitionsSubscriptions.clear();
+    private void handle(int event, Object value) {
+        if (event == CONTROL) {
+            ((Action0) value).call();
+            return;
+        }
+        if (value instanceof HashedWheelTimer.Node && !((HashedWheelTimer.Node) value).consume()) {
+            return; // The timeout was cancelled after it expired
+        }
+
+        if (dispatch(event, value) && instance.deferred != null && instance.deferred.size() > 0) {
+            replayDeferred();
+        }
     }
 
-    private static List<Observable<String>> generateObservableTransitionList(
-            State sourceState, List<State> ancestors) {
+    // Lets the instance handle an event, regions first, or defers it. Returns true if the
+    // event was accepted by a region or triggered a state change.
+    private boolean dispatch(int event, Object value) {
+        if (async) {
+            return dispatchAsync(event, value);
+        }
+        if (instance.regions != null && definition.dispatchToRegions(instance, event, value)) {
+            return true;
+        }
+        if (definition.table.hasDeferredEvents && definition.defers(instance, event)) {
+            definition.defer(instance, event, value);
+            return false;
+        }
 
-        final Map<Object, Boolean> seen = new HashMap<>();
+        int source = instance.state;
+        Route route = metrics == null
+                ? definition.handle(source, event, value)
+                : definition.handle(source, event, value, metrics);
+        if (route == null) {
+            return false;
+        }
 
-        return Observable.concat(Observable.just(sourceState), Observable.from(ancestors))
-                .map(State::getTransitions)
-                .flatMap(Observable::from)
-                // Filter out those observables whose event is already handled by another observable.
-                // This is to handle "overriding" of event handling (ultimate hook pattern)
-                // http://stackoverflow.com/questions/27870136/java-lambda-stream-distinct-on-arbitrary-key
-                .filter(transition -> {
-                    Object key = transition.event();
-                    if (seen.get(key) == null) {
-                        seen.put(key, Boolean.TRUE);
-                        return true;
-                    }
-                    return false;
-                })
-                .map(Transition::observable)
-                        .toList()
-                        .toBlocking()
-                        .first();
+        switchState(source, route, event);
+        if (stateChangeBuffers.length != 0) {
+            publishStateChange(source, instance.state, event, value);
+        }
+        return true;
     }
 
-    // Generates a map where each state in the FSM is mapped against a list of its ancestors
-    private static Map<State, List<State>> generateStateAncestorMap(List<State> topStates) {
-        Map<State, List<State>> stateAncestorMap = new HashMap<State, List<State>>();
-        for (State state: topStates) {
-            stateAncestorMap.putAll(generateStateAncestorMap(state, new ArrayList<State>()));
+    // The unboxed counterpart of handle, for events triggered by codes. Regions, deferred
+    // events and metrics take the boxed path.
+    private void handle(int event, long payload) {
+        if (instance.regions != null || definition.table.hasDeferredEvents || metrics != null || async) {
+            handle(event, (Object) payload);
+            return;
         }
 
-        return stateAncestorMap;
+        int source = instance.state;
+        Route route = definition.handle(source, event, payload);
+        if (route != null) {
+            switchState(source, route, event);
+            if (stateChangeBuffers.length != 0) {
+                publishStateChange(source, instance.state, event, payload);
+            }
+        }
     }
 
-    private static Map<State, List<State>> generateStateAncestorMap(State state, List<State> ancestors) {
-        Map<State, List<State>> stateAncestorMap = new HashMap<State, List<State>>();
-        stateAncestorMap.put(state, ancestors);
+    // Dispatches the deferred events that are no longer deferred, oldest first (see
+    // FsmDefinition.replayDeferred)
+    private void replayDeferred() {
+        DeferredEvents deferred = instance.deferred;
+        int i = 0;
+        while (i < deferred.size() && !suspended) {
+            int event = deferred.event(i);
+            if (definition.defers(instance, event)) {
+                i++;
+            } else {
+                dispatch(event, deferred.remove(i));
+                i = 0;
+            }
+        }
+    }
 
-        List<State> subStateAncestors = new ArrayList<State>(ancestors);
-        subStateAncestors.add(state);
+    // The asynchronous counterpart of dispatch, returns true if the event triggered a state
+    // change that has already completed. Otherwise, once the steps of the state change have
+    // completed, the deferred events are dispatched again by resume.
+    private boolean dispatchAsync(int event, Object value) {
+        if (definition.table.hasDeferredEvents && definition.defers(instance, event)) {
+            definition.defer(instance, event, value);
+            return false;
+        }
 
-        for (State subState: state.getSubStates())
-        {
-            stateAncestorMap.putAll(generateStateAncestorMap(subState, subStateAncestors));
+        int slot = definition.accepts(instance.state, event, value);
+        if (slot == StateTable.NONE) {
+            return false;
         }
 
-        return stateAncestorMap;
+        this.transition = definition.table.transitions[instance.state][slot];
+        this.route = definition.table.routes[instance.state][slot];
+        this.source = instance.state;
+        this.event = event;
+        this.value = value;
+        if (route == null) {
+            this.steps = null;
+        } else {
+            deactivateTransitions();
+            this.target = route.history == StateTable.NONE
+                    ? route.target
+                    : definition.historyLeaf(instance, route.history, route.deep);
+            this.steps = definition.steps(instance, route, target);
+        }
+        this.step = -1; // The transition action comes first
+        return proceed() && complete();
     }
 
-    // Generates a where the path to each state in the FSM is the key and the corresponding state is the value
-    private static Map<String, State> generatePathToStateMap(List<State> topStates) {
-        Map<String, State> pathToStateMap = new HashMap<String, State>();
-        for (State state: topStates) {
-            pathToStateMap.putAll(generatePathToStateMap(state, "/" + state.getName()));
+    // Runs the transition action, exit and entry actions of a state change (or activation)
+    // one at a time, until all have completed or one of them is in progress, in which case
+    // the Fsm is suspended until it completes (see resume). Returns true if all completed.
+    private boolean proceed() {
+        int length = steps == null ? 0 : steps.length;
+        while (step < length) {
+            int current = step++;
+            boolean completed = current < 0
+                    ? start(transition.action(), value)
+                    : start(steps[current]);
+            if (!completed) {
+                suspended = true;
+                return false;
+            }
         }
+        return true;
+    }
 
-        return pathToStateMap;
+    // Exits (if negative) or enters a state. Subclasses of State are exited and entered
+    // through their methods.
+    private boolean start(int step) {
+        int state = step < 0 ? ~step : step;
+        State s = definition.table.states[state];
+        if (step < 0) {
+            definition.exiting(instance, state);
+        } else if (instance.timers != null && route != null) {
+            // On activation the timeouts have been scheduled already, see InstanceTimers.attach
+            instance.timers.schedule(state);
+        }
+        Action0 action;
+        if (s.getClass() != State.class) {
+            action = step < 0 ? s::exit : s::enter;
+        } else {
+            action = step < 0 ? s.exitAction() : s.entryAction();
+        }
+        return action == null || start(action, null);
     }
 
-    private static Map<String, State> generatePathToStateMap(State state, String pathToState) {
-        Map<String, State> pathToStateMap = new HashMap<String, State>();
-        pathToStateMap.put(pathToState, state);
+    // Starts an action, returns true if it has completed already
+    private boolean start(Object action, Object value) {
+        if (action instanceof AsyncAction) {
+            ((AsyncAction) action).start(value).subscribe(v -> {}, this::completed, () -> completed(null));
+            return false;
+        }
+        if (actionExecutor != null) {
+            actionExecutor.execute(() -> {
+                Throwable failure = null;
+                try {
+                    call(action, value);
+                } catch (Throwable e) {
+                    failure = e;
+                }
+                completed(failure);
+            });
+            return false;
+        }
+        call(action, value);
+        return true;
+    }
 
-        for (State subState: state.getSubStates())
-        {
-            pathToStateMap.putAll(generatePathToStateMap(subState, pathToState + "/" + subState.getName()));
+    @SuppressWarnings("unchecked")
+    private static void call(Object action, Object value) {
+        if (action instanceof Action0) {
+            ((Action0) action).call();
+        } else {
+            ((Action1<Object>) action).call(value);
         }
+    }
+
+    // Called on any thread as an action completes (or fails)
+    private void completed(Throwable failure) {
+        stepFailure = failure;
+        stepCompleted = true;
+        signal();
+    }
+
+    // Continues with the steps after the one that completed. An action that failed abandons
+    // the state change: the remaining actions are not run and the instance stays in the state
+    // it was in (as it would had a synchronous action thrown), or in the initial state on
+    // activation. Its events are subscribed to again, and the failure is passed to the action
+    // error handler.
+    private void resume() {
+        suspended = false;
+        stepCompleted = false;
+        Throwable failure = stepFailure;
+        if (failure != null) {
+            stepFailure = null;
+            boolean stateChange = route != null;
+            this.transition = null;
+            this.route = null;
+            this.value = null;
+            this.steps = null;
+            if (stateChange) {
+                activateTransitions();
+            }
+            if (actionErrorHandler == null) {
+                RxJavaPlugins.getInstance().getErrorHandler().handleError(failure);
+            } else {
+                actionErrorHandler.call(failure);
+            }
+            return;
+        }
+
+        if (proceed() && complete() && instance.deferred != null && instance.deferred.size() > 0) {
+            replayDeferred();
+        }
+    }
+
+    // Completes the state change whose steps have completed, returns false if there was none
+    // (i.e. for internal transitions and activation)
+    private boolean complete() {
+        Route route = this.route;
+        Object value = this.value;
+        this.transition = null;
+        this.route = null;
+        this.value = null;
+        this.steps = null;
+        if (route == null) {
+            return false;
+        }
+
+        instance.state = target;
+        activateTransitions();
+        if (journal != null) {
+            journal.append(event, definition.table.stableIds[source], definition.table.stableIds[target]);
+        }
+        if (stateChangeBuffers.length != 0) {
+            publishStateChange(source, target, event, value);
+        }
+        return true;
+    }
 
-        return pathToStateMap;
+    private void publishStateChange(int source, int target, int event, Object value) {
+        long timestamp = System.currentTimeMillis();
+        for (StateChangeBuffer buffer : stateChangeBuffers) {
+            if (!buffer.offer(source, target, event, value, timestamp)) {
+                removeStateChangeBuffer(buffer);
+            }
+        }
+    }
+
+    private void addStateChangeBuffer(StateChangeBuffer buffer) {
+        StateChangeBuffer[] buffers = Arrays.copyOf(stateChangeBuffers, stateChangeBuffers.length + 1);
+        buffers[buffers.length - 1] = buffer;
+        stateChangeBuffers = buffers;
+    }
+
+    private void removeStateChangeBuffer(StateChangeBuffer buffer) {
+        StateChangeBuffer[] buffers = new StateChangeBuffer[stateChangeBuffers.length];
+        int count = 0;
+        for (StateChangeBuffer b : stateChangeBuffers) {
+            if (b != buffer) {
+                buffers[count++] = b;
+            }
+        }
+        stateChangeBuffers = Arrays.copyOf(buffers, count);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void activateTransitions() {
+        if (persistentSubscriptions) {
+            return;
+        }
+
+        for (int event : definition.table.subscribedEvents[instance.state]) {
+            Observable<Object> observable = (Observable<Object>) definition.table.events[event];
+            transitionsSubscriptions.add(observable.subscribe(value -> post(event, value)));
+        }
+    }
+
+    private void deactivateTransitions() {
+        if (persistentSubscriptions) {
+            return;
+        }
+
+        transitionsSubscriptions.clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void subscribeToEvents() {
+        for (int i = 0; i < definition.table.events.length; i++) {
+            final int event = i;
+            if (!definition.table.isObservable(event)) {
+                continue;
+            }
+            Observable<Object> observable = (Observable<Object>) definition.table.events[event];
+            transitionsSubscriptions.add(observable.subscribe(value -> post(event, value)));
+        }
     }
 }
@@ -0,0 +1,43 @@
+package rxfsm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A mutable counterpart of Fsm.create().withInitialState(..).withTopStates(..) for large
+// hierarchies built with StateBuilders, see StateBuilder. Other options are given to the Fsm
+// created from the definition, e.g. Fsm.create(builder.define()).withScheduler(scheduler).
+public final class FsmBuilder {
+
+    private String pathToInitialState;
+    private final List<StateBuilder> topStates = new ArrayList<StateBuilder>();
+
+    public static FsmBuilder create() {
+        return new FsmBuilder();
+    }
+
+    private FsmBuilder() {
+    }
+
+    public FsmBuilder initialState(String pathToInitialState) {
+        this.pathToInitialState = pathToInitialState;
+        return this;
+    }
+
+    public FsmBuilder topState(StateBuilder topState) {
+        topStates.add(topState);
+        return this;
+    }
+
+    // Builds the states and compiles them into a definition
+    public FsmDefinition define() {
+        List<State> states = new ArrayList<State>(topStates.size());
+        for (StateBuilder topState : topStates) {
+            states.add(topState.build());
+        }
+        return new FsmDefinition(pathToInitialState, states);
+    }
+
+    public Fsm build() {
+        return Fsm.create(define());
+    }
+}
@@ -0,0 +1,832 @@
+package rxfsm;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A compiled, immutable state hierarchy. A definition is built once and can then be shared
+// by any number of state machine instances, each of which only holds its current state (see
+// FsmInstance). States and events are identified by dense int ids within a definition.
+public final class FsmDefinition {
+
+    // Snapshot header: magic, version, flags and instance count
+    private static final int SNAPSHOT_MAGIC = 0x52784673; // "RxFs"
+    private static final byte SNAPSHOT_VERSION = 1;
+    private static final byte SNAPSHOT_CONTEXT = 1;
+    private static final byte SNAPSHOT_REGIONS = 2;
+    private static final byte SNAPSHOT_HISTORY = 4;
+    private static final int SNAPSHOT_HEADER_SIZE = 10;
+
+    final StateTable table;
+    final int initialState;
+    private final State[] statesToEnterInitially;
+    private final int[] idsToEnterInitially;
+    private final int deferredCapacity;
+    private final DeferredEventOverflow deferredOverflow;
+    private final Dispatcher dispatcher; // null unless compiled
+
+    FsmDefinition(String pathToInitialState, List<State> topStates) {
+        this(pathToInitialState, topStates, null, null);
+    }
+
+    // A definition of a region, which shares the events of the definition it is part of
+    FsmDefinition(String pathToInitialState, List<State> topStates, Map<Object, Integer> eventToId, List<Object> events) {
+        if (topStates == null || topStates.isEmpty()) {
+            throw new IllegalArgumentException("Top states needs to be provided");
+        }
+
+        // Transition targets and the initial state are verified by StateTable.compile
+        this.table = events == null
+                ? StateTable.compile(topStates, pathToInitialState)
+                : StateTable.compile(topStates, pathToInitialState, eventToId, events);
+
+        int initialState = table.initialState;
+        List<State> statesToEnter = new ArrayList<State>();
+        List<Integer> idsToEnter = new ArrayList<Integer>();
+        for (int state = initialState; state != StateTable.NONE; state = table.initialSubStates[state]) {
+            statesToEnter.add(table.states[state]);
+            idsToEnter.add(state);
+        }
+        this.initialState = table.initialLeaves[initialState];
+        this.statesToEnterInitially = statesToEnter.toArray(new State[statesToEnter.size()]);
+        this.idsToEnterInitially = new int[idsToEnter.size()];
+        for (int i = 0; i < idsToEnterInitially.length; i++) {
+            idsToEnterInitially[i] = idsToEnter.get(i);
+        }
+        this.deferredCapacity = 16;
+        this.deferredOverflow = DeferredEventOverflow.DROP_NEWEST;
+        this.dispatcher = null;
+    }
+
+    private FsmDefinition(FsmDefinition definition, int deferredCapacity, DeferredEventOverflow deferredOverflow,
+                          Dispatcher dispatcher) {
+        this.table = definition.table;
+        this.initialState = definition.initialState;
+        this.statesToEnterInitially = definition.statesToEnterInitially;
+        this.idsToEnterInitially = definition.idsToEnterInitially;
+        this.deferredCapacity = deferredCapacity;
+        this.deferredOverflow = deferredOverflow;
+        this.dispatcher = dispatcher;
+    }
+
+    // A definition of the same states whose instances keep up to capacity deferred events
+    // (see State.withDeferredEvent), 16 by default. The overflow policy decides what happens
+    // to events that are deferred while the buffer is full, by default they are dropped.
+    public FsmDefinition withDeferredEvents(int capacity, DeferredEventOverflow overflow) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity has to be at least one");
+        }
+        return new FsmDefinition(this, capacity, overflow, dispatcher);
+    }
+
+    // A definition of the same states whose transitions are dispatched by a class generated
+    // for it, in which every guard and action (including entry and exit actions) is called
+    // from a call site of its own so that the JIT can inline it. Worthwhile for large, hot
+    // hierarchies. Definitions with regions, history, timeouts or deferred events can not be
+    // compiled. Events fired with codes and measured Fsms (see Fsm.withMetrics) are
+    // dispatched by the tables as before.
+    public FsmDefinition compile() {
+        if (dispatcher != null) {
+            return this;
+        }
+        return new FsmDefinition(this, deferredCapacity, deferredOverflow, DispatcherCompiler.compile(table));
+    }
+
+    // Creates an instance and enters its initial state
+    public FsmInstance newInstance() {
+        return newInstance(true);
+    }
+
+    // Creates a number of instances, all of which have entered their initial state
+    public FsmInstance[] newInstances(int count) {
+        FsmInstance[] instances = new FsmInstance[count];
+        for (int i = 0; i < count; i++) {
+            instances[i] = newInstance(true);
+        }
+        return instances;
+    }
+
+    // Creates an instance in its initial state, running the entry actions if enter is true
+    FsmInstance newInstance(boolean enter) {
+        FsmInstance instance = new FsmInstance(this, enter ? enter() : initialState);
+        enterRegions(instance, enter);
+        return instance;
+    }
+
+    public int stateCount() {
+        return table.states.length;
+    }
+
+    public int eventCount() {
+        return table.events.length;
+    }
+
+    public int stateId(String pathToState) {
+        int state = table.id(pathToState);
+        if (state == StateTable.NONE) {
+            throw new IllegalArgumentException(pathToState + " is not a valid state");
+        }
+        return state;
+    }
+
+    public String statePath(int stateId) {
+        return table.paths[stateId];
+    }
+
+    public int eventId(Object event) {
+        int id = table.eventId(event);
+        if (id == StateTable.NONE) {
+            throw new IllegalArgumentException("No transition is triggered by " + event);
+        }
+        return id;
+    }
+
+    // The effective transitions of a leaf state, i.e. those that are triggered when the state
+    // is active (transitions of ancestors that are overridden by the state are excluded).
+    public List<Transition> effectiveTransitions(String pathToState) {
+        int state = table.id(pathToState);
+        if (state == StateTable.NONE || !table.isLeaf(state)) {
+            throw new IllegalArgumentException(pathToState + " is not a leaf state");
+        }
+
+        return Collections.unmodifiableList(table.effectiveTransitions(state));
+    }
+
+    // The paths of the states that no instance can ever be in, as neither the initial state
+    // nor any transition leads to them (including the states of regions of reachable states).
+    // They are not compiled, i.e. take no memory for transitions and are never subscribed.
+    public List<String> unreachableStates() {
+        List<String> unreachable = new ArrayList<String>();
+        for (int state = 0; state < table.states.length; state++) {
+            if (!table.reachable[state]) {
+                unreachable.add(table.paths[state]);
+            }
+            for (int i = 0; table.regions[state] != null && i < table.regions[state].length; i++) {
+                for (String path : table.regions[state][i].unreachableStates()) {
+                    unreachable.add(table.paths[state] + path);
+                }
+            }
+        }
+        return unreachable;
+    }
+
+    // The transitions of reachable states that can never be triggered, by the path of the state
+    // that declares them. Each is overridden in every reachable leaf that it is visible from,
+    // by a transition for the same event of the leaf itself or of another ancestor (or by an
+    // earlier transition of the same state). They are left out like unreachable states.
+    public Map<String, List<Transition>> shadowedTransitions() {
+        Map<String, List<Transition>> shadowed = new LinkedHashMap<String, List<Transition>>();
+        for (int state = 0; state < table.states.length; state++) {
+            if (table.shadowedTransitions[state].length > 0) {
+                List<Transition> transitions = new ArrayList<Transition>();
+                for (int i : table.shadowedTransitions[state]) {
+                    transitions.add(table.states[state].getTransitions().get(i));
+                }
+                shadowed.put(table.paths[state], transitions);
+            }
+            for (int i = 0; table.regions[state] != null && i < table.regions[state].length; i++) {
+                for (Map.Entry<String, List<Transition>> entry : table.regions[state][i].shadowedTransitions().entrySet()) {
+                    shadowed.put(table.paths[state] + entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return shadowed;
+    }
+
+    // Writes the current state (and the context, if a codec is given) of the instances to the
+    // buffer. States are written as stable ids derived from their paths, so a snapshot can be
+    // restored by a definition in which states have been added, removed or reordered, as long
+    // as the states that were active still exist. The states of regions and the history of
+    // states are included, but regions whose number has changed are restored in their
+    // initial states. Without a codec (and regions and history) a snapshot takes
+    // snapshotSize(instances.length) bytes.
+    public <C> void snapshot(FsmInstance[] instances, ByteBuffer buffer, ContextCodec<C> codec) {
+        buffer.putInt(SNAPSHOT_MAGIC);
+        buffer.put(SNAPSHOT_VERSION);
+        buffer.put((byte) ((codec == null ? 0 : SNAPSHOT_CONTEXT)
+                | (table.hasRegions ? SNAPSHOT_REGIONS : 0)
+                | (table.hasHistory ? SNAPSHOT_HISTORY : 0)));
+        buffer.putInt(instances.length);
+        for (FsmInstance instance : instances) {
+            writeState(instance, buffer, table.hasRegions, table.hasHistory);
+            if (codec != null) {
+                codec.write(instance.<C>context(), buffer);
+            }
+        }
+    }
+
+    // The stable id of the state, followed by the recorded history (the number of entries and
+    // pairs of stable ids of a state and its last active sub state) and the number of regions
+    // and their states, if the definition has history and regions respectively
+    private void writeState(FsmInstance instance, ByteBuffer buffer, boolean regions, boolean history) {
+        buffer.putInt(table.stableIds[instance.state]);
+        if (history) {
+            int count = 0;
+            for (int state = 0; instance.history != null && state < instance.history.length; state++) {
+                count += instance.history[state] == StateTable.NONE ? 0 : 1;
+            }
+            buffer.putInt(count);
+            for (int state = 0; count > 0 && state < instance.history.length; state++) {
+                if (instance.history[state] != StateTable.NONE) {
+                    buffer.putInt(table.stableIds[state]);
+                    buffer.putInt(table.stableIds[instance.history[state]]);
+                }
+            }
+        }
+        if (regions) {
+            buffer.put((byte) (instance.regions == null ? 0 : instance.regions.length));
+            if (instance.regions != null) {
+                for (FsmInstance region : instance.regions) {
+                    region.getDefinition().writeState(region, buffer, true, history);
+                }
+            }
+        }
+    }
+
+    public void snapshot(FsmInstance[] instances, ByteBuffer buffer) {
+        snapshot(instances, buffer, null);
+    }
+
+    public int snapshotSize(int instances) {
+        return SNAPSHOT_HEADER_SIZE + instances * 4;
+    }
+
+    // Restores instances from a snapshot, without running any entry actions unless enter is
+    // true, in which case the entry actions of the restored states are run (top state first)
+    // as if the states had been entered. The codec has to match the one the snapshot was
+    // taken with.
+    public <C> FsmInstance[] restore(ByteBuffer buffer, ContextCodec<C> codec, boolean enter) {
+        if (buffer.getInt() != SNAPSHOT_MAGIC || buffer.get() != SNAPSHOT_VERSION) {
+            throw new IllegalArgumentException("Not a snapshot");
+        }
+        byte flags = buffer.get();
+        if (((flags & SNAPSHOT_CONTEXT) != 0) != (codec != null)) {
+            throw new IllegalArgumentException(codec == null
+                    ? "The snapshot has a context, a codec needs to be provided"
+                    : "The snapshot has no context");
+        }
+
+        boolean regions = (flags & SNAPSHOT_REGIONS) != 0;
+        boolean history = (flags & SNAPSHOT_HISTORY) != 0;
+        FsmInstance[] instances = new FsmInstance[buffer.getInt()];
+        for (int i = 0; i < instances.length; i++) {
+            instances[i] = readState(buffer, regions, history, enter);
+            if (codec != null) {
+                instances[i].setContext(codec.read(buffer));
+            }
+        }
+        return instances;
+    }
+
+    private FsmInstance readState(ByteBuffer buffer, boolean regions, boolean history, boolean enter) {
+        FsmInstance instance = new FsmInstance(this, restore(restoredState(buffer.getInt()), enter));
+        for (int entries = history ? buffer.getInt() : 0; entries > 0; entries--) {
+            // History of states that no longer exist (or have been moved) is dropped
+            int state = table.idOfStable(buffer.getInt());
+            int subState = table.idOfStable(buffer.getInt());
+            if (instance.history != null && state != StateTable.NONE && subState != StateTable.NONE
+                    && table.parents[subState] == state) {
+                instance.history[state] = subState;
+            }
+        }
+
+        int count = regions ? buffer.get() : 0;
+        FsmDefinition[] definitions = table.regions[instance.state];
+        if (definitions == null || definitions.length != count) {
+            for (int i = 0; i < count; i++) {
+                skipState(buffer, history);
+            }
+            enterRegions(instance, enter);
+        } else {
+            instance.regions = new FsmInstance[count];
+            for (int i = 0; i < count; i++) {
+                instance.regions[i] = definitions[i].readState(buffer, true, history, enter);
+            }
+        }
+        return instance;
+    }
+
+    private static void skipState(ByteBuffer buffer, boolean history) {
+        buffer.getInt();
+        if (history) {
+            int entries = buffer.getInt();
+            buffer.position(buffer.position() + entries * 8);
+        }
+        for (int count = buffer.get(); count > 0; count--) {
+            skipState(buffer, history);
+        }
+    }
+
+    public FsmInstance[] restore(ByteBuffer buffer) {
+        return restore(buffer, null, false);
+    }
+
+    private int restoredState(int stableId) {
+        int state = table.idOfStable(stableId);
+        if (state == StateTable.NONE) {
+            throw new IllegalArgumentException("The snapshot contains a state that does not exist");
+        }
+        if (table.isPruned(table.initialLeaves[state])) {
+            throw new IllegalArgumentException("The snapshot contains a state that can not be reached from the initial state");
+        }
+        // The state may have been given sub states since the snapshot was taken
+        return table.initialLeaves[state];
+    }
+
+    // The active states when the given leaf is active, top state first
+    int[] configuration(int leaf) {
+        int depth = 0;
+        for (int id = leaf; id != StateTable.NONE; id = table.parents[id]) {
+            depth++;
+        }
+        int[] configuration = new int[depth];
+        for (int id = leaf; id != StateTable.NONE; id = table.parents[id]) {
+            configuration[--depth] = id;
+        }
+        return configuration;
+    }
+
+    // Runs the entry actions of the initial state configuration, returns the initial leaf state
+    int enter() {
+        for (State s : statesToEnterInitially) {
+            s.enter();
+        }
+        return initialState;
+    }
+
+    // Lets an instance handle an event, its regions (if any) first. Returns true if the event
+    // was accepted by a region or the current state, or deferred. Deferred events are
+    // dispatched again as soon as the instance has handled an event.
+    boolean dispatch(FsmInstance instance, int event, Object value) {
+        if (accept(instance, event, value)) {
+            if (instance.deferred != null && instance.deferred.size() > 0) {
+                replayDeferred(instance);
+            }
+            return true;
+        }
+
+        if (table.hasDeferredEvents && defers(instance, event)) {
+            defer(instance, event, value);
+            return true;
+        }
+        return false;
+    }
+
+    // Lets an instance handle an event without deferring it, regions first. An event that a
+    // region defers is not handled by the state that has the regions.
+    private boolean accept(FsmInstance instance, int event, Object value) {
+        if (instance.regions != null && dispatchToRegions(instance, event, value)) {
+            return true;
+        }
+        if (table.hasDeferredEvents && defers(instance, event)) {
+            return false;
+        }
+
+        int state = instance.state;
+        int slot = fire(state, event, value);
+        if (slot == StateTable.NONE) {
+            return false;
+        }
+
+        Route route = table.routes[state][slot];
+        if (route != null) {
+            run(instance, route);
+        }
+        return true;
+    }
+
+    // True if the current state of the instance, or that of any of its regions, defers the
+    // event
+    boolean defers(FsmInstance instance, int event) {
+        if (table.defers(instance.state, event)) {
+            return true;
+        }
+        if (instance.regions != null) {
+            for (FsmInstance region : instance.regions) {
+                if (region.getDefinition().defers(region, event)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Keeps a deferred event, the buffer is allocated as the first event of an instance is
+    // deferred
+    void defer(FsmInstance instance, int event, Object value) {
+        if (instance.deferred == null) {
+            instance.deferred = new DeferredEvents(deferredCapacity, deferredOverflow);
+        }
+        instance.deferred.offer(event, value);
+    }
+
+    // Dispatches the deferred events that are no longer deferred, oldest first. Handling one
+    // may change the state, so the events that were still deferred are checked again.
+    private void replayDeferred(FsmInstance instance) {
+        DeferredEvents deferred = instance.deferred;
+        int i = 0;
+        while (i < deferred.size()) {
+            int event = deferred.event(i);
+            if (defers(instance, event)) {
+                i++;
+            } else {
+                accept(instance, event, deferred.remove(i));
+                i = 0;
+            }
+        }
+    }
+
+    // Lets an instance handle an event that is triggered by a code (see Fsm.fire), the ordinal
+    // of a constant of enumClass or an int code if it is null. Returns false if the code is
+    // unknown or the event was not accepted. The payload is only boxed if the instance has
+    // regions or its states defer events.
+    boolean fire(FsmInstance instance, int code, Class<?> enumClass, long payload) {
+        int event = table.codeEvent(code, enumClass);
+        if (event == StateTable.NONE) {
+            return false;
+        }
+        if (instance.regions != null || table.hasDeferredEvents) {
+            return dispatch(instance, event, payload);
+        }
+
+        int state = instance.state;
+        int slot = table.slot(state, event);
+        if (slot == StateTable.NONE || !table.transitions[state][slot].fire(payload)) {
+            return false;
+        }
+
+        Route route = table.routes[state][slot];
+        if (route != null) {
+            run(instance, route);
+        }
+        return true;
+    }
+
+    // Lets every region handle an event, returns true if any of them accepted it
+    boolean dispatchToRegions(FsmInstance instance, int event, Object value) {
+        boolean accepted = false;
+        for (FsmInstance region : instance.regions) {
+            accepted |= region.getDefinition().accept(region, event, value);
+        }
+        return accepted;
+    }
+
+    // Switches the state of an instance, exiting and entering regions along the way
+    void run(FsmInstance instance, Route route) {
+        if (instance.regions != null) {
+            exitRegions(instance);
+        }
+        if (route.history != StateTable.NONE) {
+            runToHistory(instance, route, null, null);
+        } else {
+            if (instance.history != null) {
+                recordHistory(instance, route.idsToExit);
+            }
+            if (instance.timers != null) {
+                for (int state : route.idsToExit) {
+                    instance.timers.cancel(state);
+                }
+            }
+            run(instance.state, route);
+            instance.state = route.target;
+            if (instance.timers != null) {
+                for (int state : route.idsToEnter) {
+                    instance.timers.schedule(state);
+                }
+            }
+        }
+        if (table.regions[instance.state] != null) {
+            enterRegions(instance, true);
+        }
+    }
+
+    // Records the exited states as the last active sub states of their parents
+    private void recordHistory(FsmInstance instance, int[] exited) {
+        for (int state : exited) {
+            int parent = table.parents[state];
+            if (parent != StateTable.NONE) {
+                instance.history[parent] = state;
+            }
+        }
+    }
+
+    // The leaf state to resume when entering the history of a state, the initial sub state
+    // is used for states that have not been active before
+    int historyLeaf(FsmInstance instance, int state, boolean deep) {
+        int child = instance.history[state] == StateTable.NONE ? table.initialSubStates[state] : instance.history[state];
+        if (!deep) {
+            return table.initialLeaves[child];
+        }
+        while (!table.isLeaf(child)) {
+            child = instance.history[child] == StateTable.NONE ? table.initialSubStates[child] : instance.history[child];
+        }
+        return child;
+    }
+
+    // Exits the current state and its ancestors that are not ancestors of the history leaf,
+    // and enters the rest of the ancestors of the leaf and the leaf itself (measured, if
+    // metrics are given)
+    private void runToHistory(FsmInstance instance, Route route, FsmMetrics metrics, long[] enteredAt) {
+        int target = historyLeaf(instance, route.history, route.deep);
+        int state = instance.state;
+        while (state != StateTable.NONE && !table.isAncestor(state, target)) {
+            if (instance.timers != null) {
+                instance.timers.cancel(state);
+            }
+            if (metrics == null) {
+                table.states[state].exit();
+            } else {
+                exit(state, metrics, enteredAt);
+            }
+            int parent = table.parents[state];
+            if (parent != StateTable.NONE) {
+                instance.history[parent] = state;
+            }
+            state = parent;
+        }
+        enterDown(instance, state, target, metrics, enteredAt);
+        instance.state = target;
+    }
+
+    // Enters the states below the ancestor down to and including the state, top first
+    private void enterDown(FsmInstance instance, int ancestor, int state, FsmMetrics metrics, long[] enteredAt) {
+        if (state == ancestor) {
+            return;
+        }
+        enterDown(instance, ancestor, table.parents[state], metrics, enteredAt);
+        if (metrics == null) {
+            table.states[state].enter();
+        } else {
+            enter(state, metrics, enteredAt);
+        }
+        if (instance.timers != null) {
+            instance.timers.schedule(state);
+        }
+    }
+
+    // Creates the regions of the current state of an instance, if it has any
+    void enterRegions(FsmInstance instance, boolean enter) {
+        FsmDefinition[] definitions = table.regions[instance.state];
+        if (definitions == null) {
+            instance.regions = null;
+            return;
+        }
+
+        instance.regions = new FsmInstance[definitions.length];
+        for (int i = 0; i < definitions.length; i++) {
+            instance.regions[i] = definitions[i].newInstance(enter);
+        }
+        if (instance.timers != null) {
+            instance.timers.attachRegions(instance);
+        }
+    }
+
+    // Creates the regions of a restored instance unless they were restored as well, in which
+    // case their entry actions are run if enter is true
+    void restoreRegions(FsmInstance instance, boolean enter) {
+        if (instance.regions == null) {
+            enterRegions(instance, enter);
+        } else if (enter) {
+            for (FsmInstance region : instance.regions) {
+                region.getDefinition().restore(region.state, true);
+                region.getDefinition().restoreRegions(region, true);
+            }
+        }
+    }
+
+    // Exits all states of the regions of an instance, innermost first
+    private void exitRegions(FsmInstance instance) {
+        for (FsmInstance region : instance.regions) {
+            FsmDefinition definition = region.getDefinition();
+            if (region.regions != null) {
+                definition.exitRegions(region);
+            }
+            int[] configuration = definition.configuration(region.state);
+            for (int i = configuration.length - 1; i >= 0; i--) {
+                if (region.timers != null) {
+                    region.timers.cancel(configuration[i]);
+                }
+                definition.table.states[configuration[i]].exit();
+            }
+        }
+        instance.regions = null;
+    }
+
+    // Lets the given leaf state handle an event, returns the resulting leaf state. Only for
+    // definitions without regions, history and timeouts.
+    int dispatch(int state, int event, Object value) {
+        Route route = handle(state, event, value);
+        if (route == null) {
+            return state;
+        }
+
+        run(state, route);
+        return route.target;
+    }
+
+    // Evaluates the guard and executes the action of the transition that handles the event
+    // in the given leaf state. Returns the route to take, or null if the event was not
+    // accepted or triggered an internal transition.
+    Route handle(int state, int event, Object value) {
+        int slot = fire(state, event, value);
+        return slot == StateTable.NONE ? null : table.routes[state][slot];
+    }
+
+    // Evaluates the guard and executes the action of the transition that handles the event
+    // in the given leaf state, returns the slot of the transition or NONE if the event was
+    // not accepted
+    private int fire(int state, int event, Object value) {
+        if (dispatcher != null) {
+            return dispatcher.fire(state, event, value);
+        }
+
+        int slot = table.slot(state, event);
+        if (slot == StateTable.NONE || table.transitions[state][slot].isDeferred()
+                || !table.transitions[state][slot].fire(value)) {
+            return StateTable.NONE;
+        }
+        return slot;
+    }
+
+    // The states to exit (as the complement of their ids) and enter, in order, to take the
+    // route from the current state of the instance to the given target leaf. For Fsms that
+    // run the actions of a route one at a time, see Fsm.proceed.
+    int[] steps(FsmInstance instance, Route route, int target) {
+        if (route.history == StateTable.NONE) {
+            int[] steps = new int[route.idsToExit.length + route.idsToEnter.length];
+            for (int i = 0; i < route.idsToExit.length; i++) {
+                steps[i] = ~route.idsToExit[i];
+            }
+            System.arraycopy(route.idsToEnter, 0, steps, route.idsToExit.length, route.idsToEnter.length);
+            return steps;
+        }
+
+        List<Integer> steps = new ArrayList<Integer>();
+        int state = instance.state;
+        for (; state != StateTable.NONE && !table.isAncestor(state, target); state = table.parents[state]) {
+            steps.add(~state);
+        }
+        int exits = steps.size();
+        for (int entered = target; entered != state; entered = table.parents[entered]) {
+            steps.add(exits, entered);
+        }
+        int[] result = new int[steps.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = steps.get(i);
+        }
+        return result;
+    }
+
+    // Records the history of a state that is about to be exited, and cancels its timeouts
+    void exiting(FsmInstance instance, int state) {
+        if (instance.history != null && table.parents[state] != StateTable.NONE) {
+            instance.history[table.parents[state]] = state;
+        }
+        if (instance.timers != null) {
+            instance.timers.cancel(state);
+        }
+    }
+
+    // The states entered on activation, top first
+    int[] initialEntries() {
+        return idsToEnterInitially;
+    }
+
+    // Evaluates the guard of the transition that handles the event in the given leaf state,
+    // without executing its action. Returns the slot of the transition or NONE if the event
+    // was not accepted.
+    int accepts(int state, int event, Object value) {
+        int slot = table.slot(state, event);
+        if (slot == StateTable.NONE || table.transitions[state][slot].isDeferred()
+                || !table.transitions[state][slot].accepts(value)) {
+            return StateTable.NONE;
+        }
+        return slot;
+    }
+
+    // Runs the exit and entry actions of a route from the given leaf state
+    private void run(int state, Route route) {
+        if (dispatcher == null) {
+            route.run();
+        } else {
+            dispatcher.run(state, route.target);
+        }
+    }
+
+    // The unboxed counterpart of handle, for events triggered by codes
+    Route handle(int state, int event, long payload) {
+        int slot = table.slot(state, event);
+        if (slot == StateTable.NONE || table.transitions[state][slot].isDeferred()
+                || !table.transitions[state][slot].fire(payload)) {
+            return null;
+        }
+        return table.routes[state][slot];
+    }
+
+    // The measured counterparts of enter, handle and Route.run. The time at which each state
+    // was entered is kept in enteredAt, indexed by state id.
+
+    int enter(FsmMetrics metrics, long[] enteredAt) {
+        for (int state : idsToEnterInitially) {
+            enter(state, metrics, enteredAt);
+        }
+        return initialState;
+    }
+
+    Route handle(int state, int event, Object value, FsmMetrics metrics) {
+        int slot = table.slot(state, event);
+        if (slot == StateTable.NONE || table.transitions[state][slot].isDeferred()) {
+            return null;
+        }
+
+        Transition transition = table.transitions[state][slot];
+        long start = System.nanoTime();
+        boolean accepted = transition.accepts(value);
+        long end = System.nanoTime();
+        metrics.onGuard(state, event, end - start);
+        if (!accepted) {
+            return null;
+        }
+
+        transition.execute(value);
+        metrics.onTransitionAction(state, event, System.nanoTime() - end);
+
+        Route route = table.routes[state][slot];
+        if (route == null) {
+            metrics.onTransition(state, state, event);
+        }
+        return route;
+    }
+
+    // Regions are not measured, only the state that has them
+    void run(FsmInstance instance, Route route, int event, FsmMetrics metrics, long[] enteredAt) {
+        int source = instance.state;
+        if (instance.regions != null) {
+            exitRegions(instance);
+        }
+        if (route.history != StateTable.NONE) {
+            runToHistory(instance, route, metrics, enteredAt);
+        } else {
+            if (instance.history != null) {
+                recordHistory(instance, route.idsToExit);
+            }
+            for (int state : route.idsToExit) {
+                if (instance.timers != null) {
+                    instance.timers.cancel(state);
+                }
+                exit(state, metrics, enteredAt);
+            }
+            for (int state : route.idsToEnter) {
+                enter(state, metrics, enteredAt);
+                if (instance.timers != null) {
+                    instance.timers.schedule(state);
+                }
+            }
+            instance.state = route.target;
+        }
+        metrics.onTransition(source, instance.state, event);
+        if (table.regions[instance.state] != null) {
+            enterRegions(instance, true);
+        }
+    }
+
+    private void exit(int state, FsmMetrics metrics, long[] enteredAt) {
+        long start = System.nanoTime();
+        table.states[state].exit();
+        long end = System.nanoTime();
+        metrics.onExitAction(state, end - start);
+        metrics.onTimeInState(state, end - enteredAt[state]);
+    }
+
+    // Restores a leaf state, running the entry actions of its configuration if enter is true
+    int restore(int state, boolean enter) {
+        if (enter) {
+            for (int id : configuration(state)) {
+                table.states[id].enter();
+            }
+        }
+        return state;
+    }
+
+    int restore(int state, boolean enter, FsmMetrics metrics, long[] enteredAt) {
+        for (int id : configuration(state)) {
+            if (!enter) {
+                enteredAt[id] = System.nanoTime();
+            } else {
+                enter(id, metrics, enteredAt);
+            }
+        }
+        return state;
+    }
+
+    private void enter(int state, FsmMetrics metrics, long[] enteredAt) {
+        long start = System.nanoTime();
+        table.states[state].enter();
+        metrics.onEntryAction(state, System.nanoTime() - start);
+        enteredAt[state] = start;
+    }
+}
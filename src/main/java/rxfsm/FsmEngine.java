@@ -0,0 +1,708 @@
+package rxfsm;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.schedulers.Schedulers;
+import rx.subscriptions.CompositeSubscription;
+
+// Runs one instance of a shared definition per key, driven by a single stream of keyed
+// events. Keys are partitioned over a number of shards. Each shard drains its events on its
+// own scheduler worker, so the instances of a shard are only ever touched by one thread at a
+// time and need no locking. An instance is created (and enters its initial state) when the
+// first event for its key arrives, and can be passivated while idle (see withPassivation).
+public final class FsmEngine<K> {
+
+    private final FsmDefinition definition;
+    private final Scheduler scheduler;
+    private final HashedWheelTimer timer;
+    private final Passivation<K> passivation;
+    private final ForkJoinPool broadcastPool;
+    private final boolean occupancy;
+    private final Shard<K>[] shards;
+    private boolean started;
+
+    public static <K> FsmEngine<K> create(FsmDefinition definition, int shards) {
+        return new FsmEngine<K>(definition, shards, Schedulers.computation(), null, null, null, false);
+    }
+
+    public static <K> FsmEngine<K> create(FsmDefinition definition, int shards, Scheduler scheduler) {
+        return new FsmEngine<K>(definition, shards, scheduler, null, null, null, false);
+    }
+
+    // Drives the timeouts of states (see State.withTimeout) with the given timer instead of
+    // HashedWheelTimer.shared()
+    public static <K> FsmEngine<K> create(FsmDefinition definition, int shards, Scheduler scheduler,
+                                          HashedWheelTimer timer) {
+        return new FsmEngine<K>(definition, shards, scheduler, timer, null, null, false);
+    }
+
+    // Passivates instances that have not handled an event for the given idle time, and the
+    // least recently used instances of a shard once it holds more than its share of
+    // maxResidentInstances. The state of a passivated instance (and its context, if a codec is
+    // given) is written to the store as a snapshot, and the instance is restored from it,
+    // without running any entry actions, as the next event for its key arrives. Instances
+    // with deferred events or pending timeouts are not passivated. An idle time of 0 only
+    // passivates instances beyond maxResidentInstances.
+    public <C> FsmEngine<K> withPassivation(long idleTime, TimeUnit unit, int maxResidentInstances,
+                                            PassivationStore<K> store, ContextCodec<C> codec) {
+        if (idleTime < 0 || maxResidentInstances < 1) {
+            throw new IllegalArgumentException("The idle time can not be negative and at least one instance has to be resident");
+        }
+
+        int perShard = (maxResidentInstances + shards.length - 1) / shards.length;
+        return new FsmEngine<K>(definition, shards.length, scheduler, timer,
+                new Passivation<K>(unit.toNanos(idleTime), perShard, store, codec), broadcastPool, occupancy);
+    }
+
+    public FsmEngine<K> withPassivation(long idleTime, TimeUnit unit, int maxResidentInstances, PassivationStore<K> store) {
+        return withPassivation(idleTime, unit, maxResidentInstances, store, null);
+    }
+
+    // Deliver broadcasts (see broadcast) with the given pool instead of the common pool
+    public FsmEngine<K> withBroadcastPool(ForkJoinPool pool) {
+        return new FsmEngine<K>(definition, shards.length, scheduler, timer, passivation, pool, occupancy);
+    }
+
+    // Keep track of the instances in each state (see occupancy and occupants), updated as
+    // instances change state. An instance is in its current leaf state and all ancestors of
+    // it, also while it is passivated. The states of regions are not tracked.
+    public FsmEngine<K> withOccupancyIndex() {
+        return new FsmEngine<K>(definition, shards.length, scheduler, timer, passivation, broadcastPool, true);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private FsmEngine(FsmDefinition definition, int shards, Scheduler scheduler, HashedWheelTimer timer,
+                      Passivation<K> passivation, ForkJoinPool broadcastPool, boolean occupancy) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("There has to be at least one shard");
+        }
+
+        this.definition = definition;
+        this.scheduler = scheduler;
+        this.timer = timer;
+        this.passivation = passivation;
+        this.broadcastPool = broadcastPool;
+        this.occupancy = occupancy;
+        this.shards = new Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = new Shard<K>(definition, timer, passivation,
+                    broadcastPool == null ? ForkJoinPool.commonPool() : broadcastPool, occupancy, i, shards);
+        }
+    }
+
+    // Subscribes to the events, unsubscribing the returned subscription stops the engine
+    public Subscription start(Observable<KeyedEvent<K>> events) {
+        if (started) {
+            throw new IllegalStateException("The engine can only be started once");
+        }
+        started = true;
+
+        CompositeSubscription subscription = new CompositeSubscription();
+        for (Shard<K> shard : shards) {
+            shard.worker = scheduler.createWorker();
+            subscription.add(shard.worker);
+            if (passivation != null && passivation.idleNanos > 0) {
+                shard.worker.schedulePeriodically(shard::passivateIdle, passivation.idleNanos, passivation.idleNanos,
+                        TimeUnit.NANOSECONDS);
+            }
+        }
+        subscription.add(events.subscribe(this::route));
+        return subscription;
+    }
+
+    public FsmDefinition getDefinition() {
+        return definition;
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    // The number of events that have been processed since the engine was started
+    public long processedEvents() {
+        long processed = 0;
+        for (Shard<K> shard : shards) {
+            processed += shard.processed;
+        }
+        return processed;
+    }
+
+    public long processedEvents(int shard) {
+        return shards[shard].processed;
+    }
+
+    // The number of events that are waiting to be processed by a shard
+    public long queueDepth(int shard) {
+        return shards[shard].offered - shards[shard].processed;
+    }
+
+    // Passivation counters, see withPassivation. A hit is an event for a resident instance, a
+    // miss one for an instance that had to be restored (or created).
+    public long passivationHits() {
+        long hits = 0;
+        for (Shard<K> shard : shards) {
+            hits += shard.hits;
+        }
+        return hits;
+    }
+
+    public long passivationMisses() {
+        long misses = 0;
+        for (Shard<K> shard : shards) {
+            misses += shard.misses;
+        }
+        return misses;
+    }
+
+    public long passivations() {
+        long passivations = 0;
+        for (Shard<K> shard : shards) {
+            passivations += shard.passivations;
+        }
+        return passivations;
+    }
+
+    // The number of instances that are held by the shards, i.e. not passivated
+    public long residentInstances() {
+        long resident = 0;
+        for (Shard<K> shard : shards) {
+            resident += shard.resident;
+        }
+        return resident;
+    }
+
+    // The number of instances in the state, see withOccupancyIndex. Read while instances
+    // change state, the count may be slightly behind.
+    public long occupancy(String pathToState) {
+        int state = occupiedState(pathToState);
+        long count = 0;
+        for (Shard<K> shard : shards) {
+            count += shard.occupancy.count(state);
+        }
+        return count;
+    }
+
+    // The keys of the instances in the state, see withOccupancyIndex
+    public List<K> occupants(String pathToState) {
+        int state = occupiedState(pathToState);
+        List<K> keys = new ArrayList<K>();
+        for (Shard<K> shard : shards) {
+            AtomicReferenceArray<K> shardKeys = shard.keys;
+            shard.occupancy.forEach(state, id -> {
+                // An instance that was just added may not be visible yet
+                K key = id < shardKeys.length() ? shardKeys.get(id) : null;
+                if (key != null) {
+                    keys.add(key);
+                }
+            });
+        }
+        return keys;
+    }
+
+    private int occupiedState(String pathToState) {
+        if (!occupancy) {
+            throw new IllegalStateException("The engine has no occupancy index");
+        }
+        return definition.stateId(pathToState);
+    }
+
+    // Sends an event to every instance, including the ones passivated by the engine (which are
+    // restored, handle the event and are passivated again). Each shard handles the broadcast in
+    // turn with its other events, but lets its instances handle it in parallel, in fork join
+    // tasks of the broadcast pool. Each instance still handles one event at a time, but the actions of
+    // different instances of a shard may run concurrently. Broadcasts are not counted as
+    // processed events, and do not keep instances from being passivated as idle.
+    public void broadcast(Object event, Object value) {
+        if (!started) {
+            throw new IllegalStateException("The engine has not been started");
+        }
+
+        int id = definition.table.eventId(event);
+        if (id == StateTable.NONE) {
+            return; // Not handled by any state
+        }
+
+        Broadcast broadcast = new Broadcast(value);
+        for (Shard<K> shard : shards) {
+            shard.enqueue(id, broadcast);
+        }
+    }
+
+    private void route(KeyedEvent<K> event) {
+        int id = definition.table.eventId(event.getEvent());
+        if (id == StateTable.NONE) {
+            return; // Not handled by any state
+        }
+
+        shards[shard(event.getKey(), shards.length)].offer(id, event);
+    }
+
+    private static int shard(Object key, int shards) {
+        int h = key.hashCode();
+        return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % shards;
+    }
+
+    private static final class Broadcast {
+        final Object value;
+
+        Broadcast(Object value) {
+            this.value = value;
+        }
+    }
+
+    // Lets a range of the population of a shard handle a broadcast, split in halves until
+    // the range is small enough to be handled by one task
+    @SuppressWarnings("serial")
+    private static final class BroadcastTask extends RecursiveAction {
+
+        private final Shard<?> shard;
+        private final int from;
+        private final int to;
+        private final int threshold;
+        private final int event;
+        private final Object value;
+
+        BroadcastTask(Shard<?> shard, int from, int to, int threshold, int event, Object value) {
+            this.shard = shard;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+            this.event = event;
+            this.value = value;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= threshold) {
+                shard.broadcast(from, to, event, value);
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new BroadcastTask(shard, from, middle, threshold, event, value),
+                    new BroadcastTask(shard, middle, to, threshold, event, value));
+        }
+    }
+
+    private static final class Passivation<K> {
+        final long idleNanos;
+        final int maxResident; // Per shard
+        final PassivationStore<K> store;
+        final ContextCodec<?> codec;
+
+        Passivation(long idleNanos, int maxResident, PassivationStore<K> store, ContextCodec<?> codec) {
+            this.idleNanos = idleNanos;
+            this.maxResident = maxResident;
+            this.store = store;
+            this.codec = codec;
+        }
+    }
+
+    private static final class Shard<K> implements Action0, HashedWheelTimer.TimeoutSink {
+
+        private final FsmDefinition definition;
+        private final HashedWheelTimer timer;
+        private final Passivation<K> passivation;
+        private final ForkJoinPool broadcastPool;
+        private final int index;
+        private final int shards;
+        private final EventQueue queue = new EventQueue();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final Map<K, FsmInstance> instances;
+        private Scheduler.Worker worker;
+        private ByteBuffer snapshot; // Reused for all passivations of the shard
+
+        // The instances that handle a broadcast, reused for all broadcasts. The resident
+        // instances come first, followed by the passivated ones (whose keys are in
+        // populationKeys), which the broadcast tasks restore and leave out again once they
+        // are passivated again. The tasks record the previous and new state of each instance
+        // in populationMoves if there is an occupancy index.
+        private FsmInstance[] population = new FsmInstance[0];
+        private Object[] populationKeys = new Object[0];
+        private int[] populationMoves = new int[0];
+        private int populationResident;
+
+        // The keys of the instances passivated by the shard, with their occupancy ids. Null
+        // without passivation.
+        private final Map<K, Integer> passivated;
+
+        // The occupancy index, null unless enabled. Instances are identified by dense ids per
+        // shard, and keys maps them back to their keys.
+        private final OccupancyIndex occupancy;
+        private volatile AtomicReferenceArray<K> keys;
+        private int nextId;
+
+        // Each counter has a single writer, offered is written by the thread emitting the
+        // events and the others by the worker of the shard
+        private volatile long offered;
+        private volatile long processed;
+        private volatile long hits;
+        private volatile long misses;
+        private volatile long passivations;
+        private volatile int resident;
+
+        Shard(FsmDefinition definition, HashedWheelTimer timer, Passivation<K> passivation,
+              ForkJoinPool broadcastPool, boolean occupancy, int index, int shards) {
+            this.definition = definition;
+            this.timer = timer;
+            this.passivation = passivation;
+            this.broadcastPool = broadcastPool;
+            this.occupancy = occupancy ? new OccupancyIndex(definition.table) : null;
+            this.keys = occupancy ? new AtomicReferenceArray<K>(64) : null;
+            this.passivated = passivation == null ? null : new HashMap<K, Integer>();
+            this.index = index;
+            this.shards = shards;
+            // In access order, so that the least recently used instance comes first
+            this.instances = passivation == null
+                    ? new HashMap<K, FsmInstance>()
+                    : new LinkedHashMap<K, FsmInstance>(16, 0.75f, true);
+        }
+
+        // Expired timeouts are queued like any other event, but they are not counted as the
+        // counters only have a single writer each
+        @Override
+        public void onTimeout(HashedWheelTimer.Node node) {
+            enqueue(node.event, node);
+        }
+
+        void offer(int id, KeyedEvent<K> event) {
+            offered++;
+            enqueue(id, event);
+        }
+
+        private void enqueue(int id, Object event) {
+            queue.offer(id, event);
+            if (wip.getAndIncrement() == 0) {
+                worker.schedule(this);
+            }
+        }
+
+        // Drains the queue, only ever executed by one thread at a time
+        @Override
+        @SuppressWarnings("unchecked")
+        public void call() {
+            int missed = 1;
+            for (;;) {
+                EventQueue.Node node;
+                while ((node = queue.poll()) != null) {
+                    if (node.value instanceof HashedWheelTimer.Node) {
+                        handleTimeout(node.event, (HashedWheelTimer.Node) node.value);
+                    } else if (node.value instanceof Broadcast) {
+                        handleBroadcast(node.event, ((Broadcast) node.value).value);
+                    } else {
+                        handle(node.event, (KeyedEvent<K>) node.value);
+                        processed++;
+                    }
+                }
+
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void handle(int id, KeyedEvent<K> event) {
+            FsmInstance instance = instances.get(event.getKey());
+            if (instance == null) {
+                instance = activate(event.getKey());
+            } else if (passivation != null) {
+                hits++;
+            }
+
+            if (passivation != null) {
+                instance.lastActive = System.nanoTime();
+            }
+            dispatch(instance, id, event.getValue());
+        }
+
+        // Lets an instance handle an event, and keeps the occupancy index up to date
+        private void dispatch(FsmInstance instance, int id, Object value) {
+            int state = instance.state;
+            instance.dispatch(id, value);
+            if (occupancy != null && instance.state != state) {
+                occupancy.move(instance.occupancyId, state, instance.state);
+            }
+        }
+
+        // Adds a created or restored instance to the occupancy index. A passivated one keeps the
+        // id it had, and is indexed in the state of the new instance if its snapshot was lost.
+        private void index(K key, FsmInstance instance, Integer passivatedId, boolean restored) {
+            if (passivatedId != null) {
+                instance.occupancyId = passivatedId;
+                if (!restored) {
+                    occupancy.remove(passivatedId);
+                    occupancy.add(passivatedId, instance.state);
+                }
+                return;
+            }
+
+            instance.occupancyId = nextId++;
+            if (instance.occupancyId == keys.length()) {
+                AtomicReferenceArray<K> grown = new AtomicReferenceArray<K>(keys.length() * 2);
+                for (int i = 0; i < keys.length(); i++) {
+                    grown.lazySet(i, keys.get(i));
+                }
+                keys = grown;
+            }
+            keys.lazySet(instance.occupancyId, key);
+            occupancy.add(instance.occupancyId, instance.state);
+        }
+
+        // Creates the instance of a key, or restores it if it was passivated
+        private FsmInstance activate(K key) {
+            FsmInstance instance = null;
+            Integer passivatedId = null;
+            if (passivation != null) {
+                misses++;
+                passivateLeastRecentlyUsed(passivation.maxResident - 1);
+                passivatedId = passivated.remove(key);
+                byte[] snapshot = passivation.store.take(key);
+                if (snapshot != null) {
+                    instance = definition.restore(ByteBuffer.wrap(snapshot), passivation.codec, false)[0];
+                }
+            }
+            boolean restored = instance != null;
+            if (!restored) {
+                instance = definition.newInstance();
+            }
+            if (occupancy != null) {
+                index(key, instance, passivatedId, restored);
+            }
+            attachTimers(instance);
+            instances.put(key, instance);
+            resident = instances.size();
+            return instance;
+        }
+
+        private void attachTimers(FsmInstance instance) {
+            if (definition.table.hasTimeouts) {
+                InstanceTimers.attach(instance, instance, timer == null ? HashedWheelTimer.shared() : timer, this);
+            }
+        }
+
+        // The instance of a timeout is known, so there is no need to look it up
+        private void handleTimeout(int id, HashedWheelTimer.Node timeout) {
+            if (timeout.consume()) {
+                timeout.root.lastActive = System.nanoTime();
+                dispatch(timeout.root, id, timeout);
+            }
+        }
+
+        // Lets every instance of the shard handle a broadcast, including the passivated ones,
+        // in parallel once there are enough of them. Passivated instances that can not be
+        // passivated again stay resident, and the least recently used instances are passivated
+        // afterwards if that leaves too many resident.
+        private void handleBroadcast(int id, Object value) {
+            int residentCount = instances.size();
+            int count = residentCount + (passivated == null ? 0 : passivated.size());
+            if (population.length < count) {
+                population = new FsmInstance[count];
+                populationKeys = new Object[count];
+                populationMoves = occupancy == null ? populationMoves : new int[2 * count];
+            }
+            instances.values().toArray(population);
+            populationResident = residentCount;
+            if (passivated != null) {
+                int i = residentCount;
+                for (K key : passivated.keySet()) {
+                    populationKeys[i++] = key;
+                }
+            }
+
+            try {
+                int threshold = Math.max(256, count / (broadcastPool.getParallelism() * 8));
+                if (count <= threshold) {
+                    broadcast(0, count, id, value);
+                } else {
+                    broadcastPool.invoke(new BroadcastTask(this, 0, count, threshold, id, value));
+                }
+
+                // The index and the resident instances are only written by the shard, once all
+                // instances are done
+                for (int i = 0; i < residentCount; i++) {
+                    move(population[i].occupancyId, i);
+                }
+                if (passivated != null) {
+                    // In the same order as the keys were added to the population
+                    Iterator<Map.Entry<K, Integer>> entries = passivated.entrySet().iterator();
+                    for (int i = residentCount; i < count; i++) {
+                        Map.Entry<K, Integer> entry = entries.next();
+                        FsmInstance instance = population[i];
+                        if (populationKeys[i] == null) {
+                            // The snapshot is gone, and so is the instance
+                            entries.remove();
+                            if (occupancy != null) {
+                                occupancy.remove(entry.getValue());
+                                keys.lazySet(entry.getValue(), null);
+                            }
+                        } else if (instance == null) {
+                            move(entry.getValue(), i);
+                            passivations++;
+                        } else {
+                            move(entry.getValue(), i);
+                            entries.remove();
+                            instance.occupancyId = entry.getValue();
+                            instance.lastActive = System.nanoTime();
+                            attachTimers(instance);
+                            instances.put(entry.getKey(), instance);
+                        }
+                    }
+                    passivateLeastRecentlyUsed(passivation.maxResident);
+                }
+            } finally {
+                Arrays.fill(population, 0, count, null);
+                Arrays.fill(populationKeys, residentCount, count, null);
+            }
+            resident = instances.size();
+        }
+
+        private void move(int occupancyId, int i) {
+            if (occupancy != null && populationMoves[2 * i] != populationMoves[2 * i + 1]) {
+                occupancy.move(occupancyId, populationMoves[2 * i], populationMoves[2 * i + 1]);
+            }
+        }
+
+        // Lets a range of the population handle a broadcast. Executed by the broadcast tasks,
+        // concurrently for disjoint ranges, so it only touches that range and the store.
+        // Passivated instances are restored from the store, and written back to it (and left
+        // out of the population) if they can be passivated again.
+        @SuppressWarnings("unchecked")
+        void broadcast(int from, int to, int event, Object value) {
+            ByteBuffer buffer = null;
+            for (int i = from; i < to; i++) {
+                FsmInstance instance = population[i];
+                if (instance == null) {
+                    byte[] snapshot = passivation.store.take((K) populationKeys[i]);
+                    if (snapshot == null) {
+                        populationKeys[i] = null;
+                        continue;
+                    }
+                    instance = definition.restore(ByteBuffer.wrap(snapshot), passivation.codec, false)[0];
+                }
+
+                int state = instance.state;
+                instance.dispatch(event, value);
+                if (occupancy != null) {
+                    populationMoves[2 * i] = state;
+                    populationMoves[2 * i + 1] = instance.state;
+                }
+
+                if (i >= populationResident) {
+                    if (canPassivate(instance)) {
+                        buffer = snapshot(definition, instance, buffer, passivation.codec);
+                        passivation.store.write((K) populationKeys[i], Arrays.copyOf(buffer.array(), buffer.position()));
+                    } else {
+                        population[i] = instance;
+                    }
+                }
+            }
+        }
+
+        // Passivates the instances that have not handled an event for the idle time, least
+        // recently used first. Executed periodically by the worker of the shard. All resident
+        // instances are looked at, as timeouts (which do not know the key of their instance)
+        // make an instance active without moving it in the access order.
+        void passivateIdle() {
+            long idleSince = System.nanoTime() - passivation.idleNanos;
+            Iterator<Map.Entry<K, FsmInstance>> entries = instances.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<K, FsmInstance> entry = entries.next();
+                if (entry.getValue().lastActive - idleSince > 0) {
+                    continue;
+                }
+                if (passivate(entry.getKey(), entry.getValue())) {
+                    entries.remove();
+                }
+            }
+            resident = instances.size();
+        }
+
+        // Passivates the least recently used instances until no more than limit are resident,
+        // or none of the others can be passivated
+        private void passivateLeastRecentlyUsed(int limit) {
+            Iterator<Map.Entry<K, FsmInstance>> entries = instances.entrySet().iterator();
+            while (instances.size() > limit && entries.hasNext()) {
+                Map.Entry<K, FsmInstance> entry = entries.next();
+                if (passivate(entry.getKey(), entry.getValue())) {
+                    entries.remove();
+                }
+            }
+        }
+
+        // Writes a snapshot of the instance to the store, unless it has deferred events or
+        // pending timeouts, which would be lost. Returns true if it was passivated.
+        private boolean passivate(K key, FsmInstance instance) {
+            if (!canPassivate(instance)) {
+                return false;
+            }
+
+            snapshot = snapshot(definition, instance, snapshot, passivation.codec);
+            passivation.store.write(key, Arrays.copyOf(snapshot.array(), snapshot.position()));
+            passivations++;
+            passivated.put(key, instance.occupancyId);
+            return true;
+        }
+
+        private static boolean canPassivate(FsmInstance instance) {
+            return instance.getDeferredEventCount() == 0 && !hasTimeouts(instance);
+        }
+
+        // Writes a snapshot of the instance to the buffer, or to a larger one if it does not
+        // fit (or is null), and returns the buffer that holds it
+        private static ByteBuffer snapshot(FsmDefinition definition, FsmInstance instance, ByteBuffer buffer,
+                                           ContextCodec<?> codec) {
+            FsmInstance[] instances = { instance };
+            for (;;) {
+                try {
+                    if (buffer == null) {
+                        buffer = ByteBuffer.allocate(256);
+                    }
+                    buffer.clear();
+                    definition.snapshot(instances, buffer, codec);
+                    return buffer;
+                } catch (BufferOverflowException e) {
+                    buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                }
+            }
+        }
+
+        // True if any active state of the instance (or its regions) has a timeout
+        private static boolean hasTimeouts(FsmInstance instance) {
+            StateTable table = instance.getDefinition().table;
+            if (!table.hasTimeouts) {
+                return false;
+            }
+            for (int state : instance.getDefinition().configuration(instance.state)) {
+                if (table.timeouts[state].length > 0) {
+                    return true;
+                }
+            }
+            if (instance.regions != null) {
+                for (FsmInstance region : instance.regions) {
+                    if (hasTimeouts(region)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+}
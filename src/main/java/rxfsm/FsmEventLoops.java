@@ -0,0 +1,63 @@
+package rxfsm;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.Scheduler;
+import rx.Subscription;
+import rx.schedulers.Schedulers;
+
+// A fixed set of single threaded event loops. Every worker created by this scheduler is
+// pinned to one of the loops (round robin), so any number of Fsms created with
+// withScheduler(eventLoops) are executed by a small, fixed number of threads.
+// Unsubscribing shuts the event loops down.
+public final class FsmEventLoops extends Scheduler implements Subscription {
+
+    private final ExecutorService[] executors;
+    private final Scheduler[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public static FsmEventLoops create(int count) {
+        return new FsmEventLoops(count);
+    }
+
+    private FsmEventLoops(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("There has to be at least one event loop");
+        }
+
+        this.executors = new ExecutorService[count];
+        this.loops = new Scheduler[count];
+        for (int i = 0; i < count; i++) {
+            String name = "rxfsm-event-loop-" + i;
+            executors[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            loops[i] = Schedulers.from(executors[i]);
+        }
+    }
+
+    public int size() {
+        return loops.length;
+    }
+
+    @Override
+    public Worker createWorker() {
+        return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length].createWorker();
+    }
+
+    @Override
+    public void unsubscribe() {
+        for (ExecutorService executor : executors) {
+            executor.shutdown();
+        }
+    }
+
+    @Override
+    public boolean isUnsubscribed() {
+        return executors[0].isShutdown();
+    }
+}
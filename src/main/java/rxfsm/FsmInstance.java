@@ -0,0 +1,105 @@
+package rxfsm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// A state machine instance of a shared FsmDefinition. An instance holds its current (leaf)
+// state and an optional, user defined context, along with what only some definitions or
+// engines need: the instances of the regions of its state, the history of its states, its
+// timers and deferred events, and the bookkeeping of an FsmEngine (when it was last active
+// and its id in the occupancy index). Instances are not thread safe.
+public final class FsmInstance {
+
+    private final FsmDefinition definition;
+    int state;
+    FsmInstance[] regions; // The regions of the current state, null if it has none
+    final int[] history; // The last active sub state of each state, null without history
+    InstanceTimers timers; // The timeouts of the instance, null unless driven by a timer
+    DeferredEvents deferred; // Null until an event is deferred
+    long lastActive; // When the instance last handled an event, see FsmEngine.withPassivation
+    int occupancyId; // The id of the instance in the occupancy index, see FsmEngine.withOccupancyIndex
+    private Object context;
+
+    FsmInstance(FsmDefinition definition, int state) {
+        this.definition = definition;
+        this.state = state;
+        this.context = null;
+        if (definition.table.hasHistory) {
+            this.history = new int[definition.stateCount()];
+            Arrays.fill(history, StateTable.NONE);
+        } else {
+            this.history = null;
+        }
+    }
+
+    // Lets the current state handle an event (see FsmDefinition.eventId)
+    public void dispatch(int event, Object value) {
+        definition.dispatch(this, event, value);
+    }
+
+    // Lets the current state handle an event that is triggered by a code (see Fsm.fire)
+    public void fire(int event, long payload) {
+        definition.fire(this, event, null, payload);
+    }
+
+    // Fires an enum constant by its ordinal, see Fsm.fire(Enum, long)
+    public void fire(Enum<?> event, long payload) {
+        definition.fire(this, event.ordinal(), event.getDeclaringClass(), payload);
+    }
+
+    public FsmDefinition getDefinition() {
+        return definition;
+    }
+
+    public int getCurrentState() {
+        return state;
+    }
+
+    public String getCurrentStatePath() {
+        return definition.statePath(state);
+    }
+
+    // The paths of all active leaf states, i.e. the current state or, if it has regions, the
+    // active leaf states of its regions (e.g. /s1/region/state)
+    public List<String> getCurrentStatePaths() {
+        List<String> paths = new ArrayList<String>();
+        addCurrentStatePaths("", paths);
+        return paths;
+    }
+
+    private void addCurrentStatePaths(String prefix, List<String> paths) {
+        String path = prefix + definition.statePath(state);
+        if (regions == null) {
+            paths.add(path);
+            return;
+        }
+        for (FsmInstance region : regions) {
+            region.addCurrentStatePaths(path, paths);
+        }
+    }
+
+    // The number of events that are deferred (see State.withDeferredEvent)
+    public int getDeferredEventCount() {
+        return deferred == null ? 0 : deferred.size();
+    }
+
+    // The number of events that were deferred while the buffer of deferred events was full,
+    // see FsmDefinition.withDeferredEvents
+    public long getDeferredEventOverflows() {
+        return deferred == null ? 0 : deferred.overflows();
+    }
+
+    public Object getContext() {
+        return context;
+    }
+
+    public void setContext(Object context) {
+        this.context = context;
+    }
+
+    @SuppressWarnings("unchecked")
+    <C> C context() {
+        return (C) context;
+    }
+}
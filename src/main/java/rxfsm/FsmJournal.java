@@ -0,0 +1,245 @@
+package rxfsm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// An append only journal of the state changes of an Fsm (see Fsm.withJournal), from which
+// the current state can be recovered after a crash without running any actions. The
+// journal is a directory of segment files of fixed width records: a sequence number, the
+// event id and the stable ids of the source and target states, and a checksum. Records are
+// buffered, written when the Fsm runs out of events to handle and synced to disk every
+// syncEvery records. When a segment grows past the segment size a new one is started with
+// a checkpoint of the current state, and the older segments are deleted. Only the state of
+// the Fsm itself is recorded, regions are recovered in their initial states. A journal is
+// used by one Fsm at a time.
+public final class FsmJournal implements Closeable {
+
+    private static final int RECORD_SIZE = 24;
+    private static final int CHECKPOINT = -1;
+    private static final String SUFFIX = ".journal";
+
+    private final Path directory;
+    private final long segmentSize;
+    private final int syncEvery;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE * 1024);
+    private final List<Path> segments = new ArrayList<Path>();
+    private FileChannel channel;
+    private long segmentBytes;
+    private long sequence;
+    private int unsynced;
+    private boolean empty;
+    private int lastState;
+
+    // Opens (or creates) the journal in the given directory and recovers the last recorded
+    // state from it
+    public static FsmJournal open(Path directory, long segmentSize, int syncEvery) throws IOException {
+        if (segmentSize < RECORD_SIZE || syncEvery < 1) {
+            throw new IllegalArgumentException("The segment size has to fit a record and syncEvery has to be positive");
+        }
+
+        Files.createDirectories(directory);
+        FsmJournal journal = new FsmJournal(directory, segmentSize, syncEvery);
+        journal.recover();
+        return journal;
+    }
+
+    private FsmJournal(Path directory, long segmentSize, int syncEvery) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncEvery = syncEvery;
+        this.empty = true;
+    }
+
+    // True if nothing has been recorded
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    // The sequence number of the next record
+    public long sequence() {
+        return sequence;
+    }
+
+    // Writes buffered records and syncs them to disk
+    public void sync() {
+        flush();
+        if (channel != null && unsynced > 0) {
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        unsynced = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            sync();
+            channel.close();
+            channel = null;
+        }
+    }
+
+    // The stable id of the state that was last recorded
+    int lastState() {
+        if (empty) {
+            throw new IllegalStateException("The journal is empty");
+        }
+        return lastState;
+    }
+
+    void append(int event, int source, int target) {
+        write(event, source, target);
+        if (segmentBytes >= segmentSize) {
+            checkpoint(target);
+        }
+    }
+
+    // Starts a new segment with the given (stable) state and deletes the older ones
+    void checkpoint(int state) {
+        try {
+            if (channel != null) {
+                flush();
+                channel.force(false);
+                channel.close();
+            }
+
+            Path segment = directory.resolve(String.format("%020d", sequence) + SUFFIX);
+            channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            segmentBytes = 0;
+            write(CHECKPOINT, state, state);
+            flush();
+            channel.force(false);
+            unsynced = 0;
+
+            for (Path old : segments) {
+                Files.deleteIfExists(old);
+            }
+            segments.clear();
+            segments.add(segment);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Writes buffered records, syncing them if enough have been written since the last sync
+    void flush() {
+        if (buffer.position() == 0) {
+            return;
+        }
+
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (unsynced >= syncEvery) {
+                channel.force(false);
+                unsynced = 0;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private void write(int event, int source, int target) {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+
+        buffer.putLong(sequence);
+        buffer.putInt(event);
+        buffer.putInt(source);
+        buffer.putInt(target);
+        buffer.putInt(checksum(sequence, event, source, target));
+        sequence++;
+        segmentBytes += RECORD_SIZE;
+        unsynced++;
+        empty = false;
+        lastState = target;
+    }
+
+    private static int checksum(long sequence, int event, int source, int target) {
+        int hash = 0x811c9dc5;
+        hash = (hash ^ (int) sequence) * 0x01000193;
+        hash = (hash ^ (int) (sequence >>> 32)) * 0x01000193;
+        hash = (hash ^ event) * 0x01000193;
+        hash = (hash ^ source) * 0x01000193;
+        return (hash ^ target) * 0x01000193;
+    }
+
+    // Fast forwards through the segments to the last state. Reading stops at the first record
+    // that is incomplete or does not check out (e.g. one that was being written during a
+    // crash), and the segment is truncated there so that new records follow the valid ones.
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments);
+
+        ByteBuffer records = ByteBuffer.allocate(RECORD_SIZE * 4096);
+        for (int i = 0; i < segments.size(); i++) {
+            Path segment = segments.get(i);
+            long valid = 0;
+            boolean corrupt = false;
+            try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ)) {
+                records.clear();
+                while (!corrupt && in.read(records) > 0) {
+                    records.flip();
+                    while (records.remaining() >= RECORD_SIZE) {
+                        long recordSequence = records.getLong();
+                        int event = records.getInt();
+                        int source = records.getInt();
+                        int target = records.getInt();
+                        int checksum = records.getInt();
+                        if (checksum != checksum(recordSequence, event, source, target)
+                                || (!empty && recordSequence != sequence)) {
+                            corrupt = true;
+                            break;
+                        }
+                        sequence = recordSequence + 1;
+                        lastState = target;
+                        empty = false;
+                        valid += RECORD_SIZE;
+                    }
+                    records.compact();
+                }
+            }
+
+            if (valid < Files.size(segment)) {
+                // Nothing after a torn record can be trusted
+                try (FileChannel out = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                    out.truncate(valid);
+                }
+                for (Path later : segments.subList(i + 1, segments.size())) {
+                    Files.delete(later);
+                }
+                segments.subList(i + 1, segments.size()).clear();
+                break;
+            }
+        }
+
+        if (!segments.isEmpty()) {
+            Path last = segments.get(segments.size() - 1);
+            channel = FileChannel.open(last, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            segmentBytes = channel.size();
+        }
+    }
+}
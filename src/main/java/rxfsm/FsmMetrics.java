@@ -0,0 +1,27 @@
+package rxfsm;
+
+// Receives measurements from the Fsms it is registered with (see Fsm.withMetrics). States
+// and events are identified by their ids in the definition the metrics are bound to, and
+// all durations are in nanoseconds. Callbacks are made on the thread that handles the
+// events of an Fsm, so implementations that are shared between Fsms must be thread safe.
+public interface FsmMetrics {
+
+    // Called as an Fsm using these metrics is activated
+    void bind(FsmDefinition definition);
+
+    // An event triggered a transition from the source (leaf) state. The target is the leaf
+    // state that was entered, or the source state for internal transitions.
+    void onTransition(int source, int target, int event);
+
+    // A state was exited after having been active for the given time
+    void onTimeInState(int state, long nanos);
+
+    void onEntryAction(int state, long nanos);
+
+    void onExitAction(int state, long nanos);
+
+    // The guard of the transition that handles the event in the source state was evaluated
+    void onGuard(int source, int event, long nanos);
+
+    void onTransitionAction(int source, int event, long nanos);
+}
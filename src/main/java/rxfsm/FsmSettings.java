@@ -0,0 +1,54 @@
+package rxfsm;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+import rx.Scheduler;
+import rx.functions.Action1;
+
+// The configuration of an Fsm as given to its with* methods. Settings are only changed on a
+// copy that is not shared yet (see with), so once handed to an Fsm they never change.
+final class FsmSettings {
+
+    String pathToInitialState;
+    List<State> topStates;
+    boolean persistentSubscriptions;
+    Scheduler scheduler;
+    FsmMetrics metrics;
+    FsmJournal journal;
+    ForkJoinPool regionPool;
+    HashedWheelTimer timer;
+    int deferredCapacity;
+    DeferredEventOverflow deferredOverflow;
+    Executor actionExecutor;
+    Action1<Throwable> actionErrorHandler;
+    FsmDefinition definition; // An already compiled definition, null unless given
+
+    FsmSettings() {
+    }
+
+    private FsmSettings(FsmSettings settings) {
+        this.pathToInitialState = settings.pathToInitialState;
+        this.topStates = settings.topStates;
+        this.persistentSubscriptions = settings.persistentSubscriptions;
+        this.scheduler = settings.scheduler;
+        this.metrics = settings.metrics;
+        this.journal = settings.journal;
+        this.regionPool = settings.regionPool;
+        this.timer = settings.timer;
+        this.deferredCapacity = settings.deferredCapacity;
+        this.deferredOverflow = settings.deferredOverflow;
+        this.actionExecutor = settings.actionExecutor;
+        this.actionErrorHandler = settings.actionErrorHandler;
+        this.definition = settings.definition;
+    }
+
+    // A copy of the settings with the given change applied
+    FsmSettings with(Consumer<FsmSettings> change) {
+        FsmSettings settings = new FsmSettings(this);
+        change.accept(settings);
+        return settings;
+    }
+}
@@ -0,0 +1,202 @@
+package rxfsm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// A timer for the timeouts of states (see State.withTimeout), shared by any number of Fsms
+// and engines. Time is divided into ticks and timeouts are kept in a wheel of buckets, one
+// per tick, wrapping around. Each timeout of each instance is a preallocated node that is
+// linked into (and out of) a bucket when the state is entered (and exited), so scheduling
+// and cancelling take constant time and do not allocate. A single daemon thread advances
+// the wheel and hands expired timeouts to the Fsm or engine they belong to, which handles
+// them as events. Timeouts fire within one tick after they expire.
+public final class HashedWheelTimer {
+
+    private static HashedWheelTimer shared; // Lazy construction, hence not final
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+    private final Thread worker;
+    private volatile long tick;
+    private volatile boolean stopped;
+
+    // A timer with 10 ms ticks, created on first use and never stopped
+    public static synchronized HashedWheelTimer shared() {
+        if (shared == null) {
+            shared = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 512);
+        }
+        return shared;
+    }
+
+    // The number of buckets is rounded up to a power of two. Timeouts longer than a
+    // revolution of the wheel (tick duration times the number of buckets) are passed over
+    // once per revolution until they expire.
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int buckets) {
+        if (tickDuration <= 0 || buckets <= 0) {
+            throw new IllegalArgumentException("The tick duration and the number of buckets have to be positive");
+        }
+
+        int size = Integer.highestOneBit(buckets) == buckets ? buckets : Integer.highestOneBit(buckets) << 1;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::run, "rxfsm-timer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // Stops the thread of the timer, pending timeouts never fire
+    public void stop() {
+        stopped = true;
+        LockSupport.unpark(worker);
+    }
+
+    void schedule(Node node) {
+        long deadline = (System.nanoTime() - startTime + node.nanos + tickNanos - 1) / tickNanos;
+        for (;;) {
+            long current = tick;
+            long deadlineTick = Math.max(deadline, current + 1);
+            Bucket bucket = wheel[(int) (deadlineTick & mask)];
+            synchronized (bucket) {
+                // The worker may have moved past the deadline in the meantime
+                if (tick >= deadlineTick) {
+                    continue;
+                }
+                node.generation++;
+                node.deadlineTick = deadlineTick;
+                node.bucket = bucket;
+                node.prev = null;
+                node.next = bucket.head;
+                if (bucket.head != null) {
+                    bucket.head.prev = node;
+                }
+                bucket.head = node;
+                return;
+            }
+        }
+    }
+
+    void cancel(Node node) {
+        Bucket bucket = node.bucket;
+        if (bucket == null) {
+            return; // Expired (or never scheduled)
+        }
+        synchronized (bucket) {
+            node.generation++;
+            if (node.bucket == bucket) {
+                bucket.unlink(node);
+            }
+        }
+    }
+
+    private void run() {
+        long next = 1;
+        while (!stopped) {
+            long sleep = startTime + next * tickNanos - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                continue;
+            }
+
+            tick = next;
+            Node expired = wheel[(int) (next & mask)].expire(next);
+            while (expired != null) {
+                Node node = expired;
+                expired = node.nextExpired;
+                node.nextExpired = null;
+                try {
+                    node.sink.onTimeout(node);
+                } catch (RuntimeException e) {
+                    // An Fsm without a scheduler handles the timeout on this thread, a failing
+                    // action must not stop the timer
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                }
+            }
+            next++;
+        }
+    }
+
+    private static final class Bucket {
+
+        private Node head;
+
+        // Unlinks the nodes that expire at or before the tick, returns them as a chain
+        synchronized Node expire(long tick) {
+            Node expired = null;
+            Node node = head;
+            while (node != null) {
+                Node next = node.next;
+                if (node.deadlineTick <= tick) {
+                    unlink(node);
+                    node.firedGeneration = node.generation;
+                    node.nextExpired = expired;
+                    expired = node;
+                }
+                node = next;
+            }
+            return expired;
+        }
+
+        void unlink(Node node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next != null) {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            node.bucket = null;
+        }
+    }
+
+    // A timeout of an instance. The fields are guarded by the bucket the node is in, except
+    // for firedGeneration, which tells which scheduling of the node expired (if any).
+    static final class Node {
+
+        final int event;
+        final long nanos;
+        final FsmInstance root;
+        final TimeoutSink sink;
+
+        private Bucket bucket;
+        private Node prev;
+        private Node next;
+        private Node nextExpired;
+        private long deadlineTick;
+        private int generation;
+        private volatile int firedGeneration = -1;
+
+        Node(int event, long nanos, FsmInstance root, TimeoutSink sink) {
+            this.event = event;
+            this.nanos = nanos;
+            this.root = root;
+            this.sink = sink;
+        }
+
+        // Called when an expired node is handled by the thread that owns the instance.
+        // Returns false if the timeout has been cancelled (or rescheduled) since it expired.
+        // The generation is only ever changed by that thread.
+        boolean consume() {
+            if (firedGeneration != generation) {
+                return false;
+            }
+            firedGeneration = -1;
+            return true;
+        }
+    }
+
+    // Receives expired timeouts, on the thread of the timer
+    interface TimeoutSink {
+        void onTimeout(Node node);
+    }
+}
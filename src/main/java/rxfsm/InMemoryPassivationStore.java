@@ -0,0 +1,29 @@
+package rxfsm;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// A PassivationStore that keeps snapshots on the heap. A snapshot of an instance without a
+// context takes a few bytes, instead of the instance and its arrays.
+public final class InMemoryPassivationStore<K> implements PassivationStore<K> {
+
+    private final ConcurrentHashMap<K, byte[]> snapshots = new ConcurrentHashMap<K, byte[]>();
+
+    @Override
+    public void write(K key, byte[] snapshot) {
+        snapshots.put(key, snapshot);
+    }
+
+    @Override
+    public byte[] take(K key) {
+        return snapshots.remove(key);
+    }
+
+    // The keys that have a snapshot
+    public Iterable<K> keys() {
+        return snapshots.keySet();
+    }
+
+    public int size() {
+        return snapshots.size();
+    }
+}
@@ -0,0 +1,65 @@
+package rxfsm;
+
+// The timeouts of an instance (see State.withTimeout), one preallocated timer node per
+// timeout of the definition. The timeouts of a state are scheduled when it is entered and
+// cancelled when it is exited.
+final class InstanceTimers {
+
+    private final HashedWheelTimer timer;
+    private final HashedWheelTimer.TimeoutSink sink;
+    private final FsmInstance root;
+    private final StateTable table;
+    private final HashedWheelTimer.Node[] nodes;
+
+    // Attaches timers to an instance (and its regions) and schedules the timeouts of its
+    // current states. Expired timeouts are handed to the sink, along with the root instance
+    // (the one that regions are part of).
+    static void attach(FsmInstance instance, FsmInstance root, HashedWheelTimer timer, HashedWheelTimer.TimeoutSink sink) {
+        StateTable table = instance.getDefinition().table;
+        if (!table.hasTimeouts) {
+            return;
+        }
+
+        instance.timers = new InstanceTimers(timer, sink, root, table);
+        for (int state : instance.getDefinition().configuration(instance.state)) {
+            instance.timers.schedule(state);
+        }
+        if (instance.regions != null) {
+            for (FsmInstance region : instance.regions) {
+                attach(region, root, timer, sink);
+            }
+        }
+    }
+
+    private InstanceTimers(HashedWheelTimer timer, HashedWheelTimer.TimeoutSink sink, FsmInstance root, StateTable table) {
+        this.timer = timer;
+        this.sink = sink;
+        this.root = root;
+        this.table = table;
+        this.nodes = new HashedWheelTimer.Node[table.events.length];
+        for (int event = 0; event < nodes.length; event++) {
+            if (table.events[event] instanceof Timeout) {
+                nodes[event] = new HashedWheelTimer.Node(event, ((Timeout) table.events[event]).nanos, root, sink);
+            }
+        }
+    }
+
+    void schedule(int state) {
+        for (int event : table.timeouts[state]) {
+            timer.schedule(nodes[event]);
+        }
+    }
+
+    void cancel(int state) {
+        for (int event : table.timeouts[state]) {
+            timer.cancel(nodes[event]);
+        }
+    }
+
+    // Attaches timers to the regions of an instance that were just entered
+    void attachRegions(FsmInstance instance) {
+        for (FsmInstance region : instance.regions) {
+            attach(region, root, timer, sink);
+        }
+    }
+}
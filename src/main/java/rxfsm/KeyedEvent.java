@@ -0,0 +1,29 @@
+package rxfsm;
+
+// An event addressed to the state machine instance identified by key. The event is the
+// same object that is used to declare the transitions it triggers (i.e. the Observable
+// passed to State.withTransition).
+public final class KeyedEvent<K> {
+
+    private final K key;
+    private final Object event;
+    private final Object value;
+
+    public KeyedEvent(K key, Object event, Object value) {
+        this.key = key;
+        this.event = event;
+        this.value = value;
+    }
+
+    public K getKey() {
+        return key;
+    }
+
+    public Object getEvent() {
+        return event;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+}
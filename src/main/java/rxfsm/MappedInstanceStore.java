@@ -0,0 +1,206 @@
+package rxfsm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Instances of a shared definition kept in a memory mapped file instead of in FsmInstance
+// objects on the heap. Every instance is a fixed width record of its current state id and
+// a number of context bytes, and is addressed by its index. Events are dispatched straight
+// against the mapped records, so the store creates no garbage and survives restarts through
+// the file (and the page cache). Definitions with regions, history or timeouts are not
+// supported. The store is not thread safe.
+public final class MappedInstanceStore implements Closeable {
+
+    private static final int MAGIC = 0x52784d73; // "RxMs"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SIZE_OFFSET = 24;
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final FsmDefinition definition;
+    private final FileChannel channel;
+    private final int recordSize;
+    private final int contextBytes;
+    private final long capacity;
+    private final int recordsPerSegment;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] segments;
+    private long size;
+
+    // Opens (or creates) a store for the given definition with room for at least capacity
+    // instances of contextBytes bytes of context each. An existing store has to have been
+    // created for the same state hierarchy and context size.
+    public static MappedInstanceStore open(FsmDefinition definition, Path file, long capacity, int contextBytes)
+            throws IOException {
+        if (capacity < 0 || contextBytes < 0) {
+            throw new IllegalArgumentException("The capacity and context size can not be negative");
+        }
+        if (definition.table.hasRegions || definition.table.hasHistory || definition.table.hasTimeouts
+                || definition.table.hasDeferredEvents) {
+            throw new IllegalArgumentException("Instances with regions, history, timeouts or deferred events can not be stored");
+        }
+
+        FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new MappedInstanceStore(definition, channel, capacity, contextBytes);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private MappedInstanceStore(FsmDefinition definition, FileChannel channel, long capacity, int contextBytes)
+            throws IOException {
+        this.definition = definition;
+        this.channel = channel;
+        this.contextBytes = contextBytes;
+        this.recordSize = 4 + contextBytes;
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.order(ByteOrder.nativeOrder());
+
+        int fingerprint = fingerprint(definition);
+        if (header.getInt(0) == 0) {
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putInt(8, fingerprint);
+            header.putInt(12, contextBytes);
+            header.putLong(SIZE_OFFSET, 0);
+        } else if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Not an instance store");
+        } else if (header.getInt(8) != fingerprint) {
+            throw new IllegalArgumentException("The store was created for another state hierarchy");
+        } else if (header.getInt(12) != contextBytes) {
+            throw new IllegalArgumentException("The store was created with " + header.getInt(12)
+                    + " bytes of context");
+        }
+
+        long existing = (channel.size() - HEADER_SIZE) / recordSize;
+        this.capacity = Math.max(capacity, existing);
+        this.size = header.getLong(SIZE_OFFSET);
+        this.recordsPerSegment = (int) (SEGMENT_SIZE / recordSize);
+
+        // Records never span two segments, so each one is mapped separately
+        int segmentCount = (int) ((this.capacity + recordsPerSegment - 1) / recordsPerSegment);
+        this.segments = new MappedByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long records = Math.min(recordsPerSegment, this.capacity - (long) i * recordsPerSegment);
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + (long) i * recordsPerSegment * recordSize, records * recordSize);
+            segments[i].order(ByteOrder.nativeOrder());
+        }
+    }
+
+    // A hash of the stable ids of all states in id order, so that a store is only opened by
+    // the hierarchy it was created for
+    private static int fingerprint(FsmDefinition definition) {
+        int hash = 0x811c9dc5;
+        for (int stableId : definition.table.stableIds) {
+            hash = (hash ^ stableId) * 0x01000193;
+        }
+        return hash;
+    }
+
+    // Adds an instance that enters its initial state, returns its index
+    public long add() {
+        if (size == capacity) {
+            throw new IllegalStateException("The store is full");
+        }
+
+        long index = size;
+        int state = definition.enter();
+        segment(index).putInt(offset(index), state);
+        header.putLong(SIZE_OFFSET, ++size);
+        return index;
+    }
+
+    // Lets the current state of an instance handle an event (see FsmDefinition.eventId)
+    public void dispatch(long index, int event, Object value) {
+        MappedByteBuffer segment = segment(checkIndex(index));
+        int offset = offset(index);
+        int state = segment.getInt(offset);
+        int next = definition.dispatch(state, event, value);
+        if (next != state) {
+            segment.putInt(offset, next);
+        }
+    }
+
+    public int getCurrentState(long index) {
+        return segment(checkIndex(index)).getInt(offset(index));
+    }
+
+    public String getCurrentStatePath(long index) {
+        return definition.statePath(getCurrentState(index));
+    }
+
+    // Context bytes are read and written at an offset within the context of an instance
+
+    public int getInt(long index, int contextOffset) {
+        return segment(checkIndex(index)).getInt(contextOffset(index, contextOffset, 4));
+    }
+
+    public void putInt(long index, int contextOffset, int value) {
+        segment(checkIndex(index)).putInt(contextOffset(index, contextOffset, 4), value);
+    }
+
+    public long getLong(long index, int contextOffset) {
+        return segment(checkIndex(index)).getLong(contextOffset(index, contextOffset, 8));
+    }
+
+    public void putLong(long index, int contextOffset, long value) {
+        segment(checkIndex(index)).putLong(contextOffset(index, contextOffset, 8), value);
+    }
+
+    public FsmDefinition getDefinition() {
+        return definition;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    // Writes changes to the file
+    public void force() {
+        header.force();
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    // Closes the file. The mapped memory is released once the store is garbage collected.
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private long checkIndex(long index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("No instance with index " + index);
+        }
+        return index;
+    }
+
+    private MappedByteBuffer segment(long index) {
+        return segments[(int) (index / recordsPerSegment)];
+    }
+
+    private int offset(long index) {
+        return (int) (index % recordsPerSegment) * recordSize;
+    }
+
+    private int contextOffset(long index, int contextOffset, int bytes) {
+        if (contextOffset < 0 || contextOffset + bytes > contextBytes) {
+            throw new IndexOutOfBoundsException("Context offset " + contextOffset + " is out of bounds");
+        }
+        return offset(index) + 4 + contextOffset;
+    }
+}
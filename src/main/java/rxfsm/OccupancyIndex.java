@@ -0,0 +1,129 @@
+package rxfsm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntConsumer;
+
+// The instances that are in each state, as a count and a bitmap over instance ids per state
+// (see FsmEngine.withOccupancyIndex). An instance is in its leaf state and every ancestor of
+// it, the states of regions are not indexed. Written by one thread only, and read by any:
+// counts and bitmap words are written with lazySet, so reads are cheap and never torn but
+// may be slightly behind.
+final class OccupancyIndex {
+
+    // The bitmap of a state is split in chunks of 4096 instance ids, 64 words each
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+    private final StateTable table;
+    private final AtomicLongArray counts;
+    private final Members[] members;
+    private int[] leaves = new int[64]; // The leaf state of each indexed instance, only read by the writer
+
+    OccupancyIndex(StateTable table) {
+        this.table = table;
+        this.counts = new AtomicLongArray(table.states.length);
+        this.members = new Members[table.states.length];
+        for (int state = 0; state < members.length; state++) {
+            members[state] = new Members();
+        }
+    }
+
+    // The instances in one state. A chunk is only allocated once an instance in its range
+    // enters the state, and only the chunks of that state are copied as they outgrow them.
+    private static final class Members {
+        volatile AtomicReferenceArray<AtomicLongArray> chunks = new AtomicReferenceArray<AtomicLongArray>(1);
+
+        void set(int instance) {
+            AtomicLongArray chunk = chunk(instance >>> CHUNK_BITS);
+            int word = (instance & CHUNK_MASK) >> 6;
+            chunk.lazySet(word, chunk.get(word) | 1L << instance);
+        }
+
+        // The instance is in the state, so its chunk exists
+        void clear(int instance) {
+            AtomicLongArray chunk = chunks.get(instance >>> CHUNK_BITS);
+            int word = (instance & CHUNK_MASK) >> 6;
+            chunk.lazySet(word, chunk.get(word) & ~(1L << instance));
+        }
+
+        private AtomicLongArray chunk(int index) {
+            AtomicReferenceArray<AtomicLongArray> chunks = this.chunks;
+            if (index >= chunks.length()) {
+                int length = chunks.length();
+                while (index >= length) {
+                    length *= 2;
+                }
+                AtomicReferenceArray<AtomicLongArray> grown = new AtomicReferenceArray<AtomicLongArray>(length);
+                for (int i = 0; i < chunks.length(); i++) {
+                    grown.lazySet(i, chunks.get(i));
+                }
+                this.chunks = chunks = grown;
+            }
+            AtomicLongArray chunk = chunks.get(index);
+            if (chunk == null) {
+                chunk = new AtomicLongArray(1 << CHUNK_BITS - 6);
+                chunks.lazySet(index, chunk);
+            }
+            return chunk;
+        }
+    }
+
+    // An instance that was not indexed is in the given leaf state
+    void add(int instance, int leaf) {
+        if (instance >= leaves.length) {
+            leaves = Arrays.copyOf(leaves, Math.max(instance + 1, leaves.length * 2));
+        }
+        leaves[instance] = leaf;
+        for (int state = leaf; state != StateTable.NONE; state = table.parents[state]) {
+            members[state].set(instance);
+            counts.lazySet(state, counts.get(state) + 1);
+        }
+    }
+
+    // An instance moved from one leaf state to another, only the states that it exited or
+    // entered are updated
+    void move(int instance, int from, int to) {
+        leaves[instance] = to;
+        for (int state = from; state != StateTable.NONE && !isSelfOrAncestor(state, to); state = table.parents[state]) {
+            members[state].clear(instance);
+            counts.lazySet(state, counts.get(state) - 1);
+        }
+        for (int state = to; state != StateTable.NONE && !isSelfOrAncestor(state, from); state = table.parents[state]) {
+            members[state].set(instance);
+            counts.lazySet(state, counts.get(state) + 1);
+        }
+    }
+
+    // An indexed instance is no longer in any state, e.g. because its snapshot was lost
+    void remove(int instance) {
+        for (int state = leaves[instance]; state != StateTable.NONE; state = table.parents[state]) {
+            members[state].clear(instance);
+            counts.lazySet(state, counts.get(state) - 1);
+        }
+    }
+
+    private boolean isSelfOrAncestor(int state, int of) {
+        return state == of || table.isAncestor(state, of);
+    }
+
+    long count(int state) {
+        return counts.get(state);
+    }
+
+    // Passes the ids of the instances in the state to the consumer, in ascending order
+    void forEach(int state, IntConsumer consumer) {
+        AtomicReferenceArray<AtomicLongArray> chunks = members[state].chunks;
+        for (int index = 0; index < chunks.length(); index++) {
+            AtomicLongArray chunk = chunks.get(index);
+            for (int word = 0; chunk != null && word < chunk.length(); word++) {
+                long bits = chunk.get(word);
+                while (bits != 0) {
+                    consumer.accept(index << CHUNK_BITS | word << 6 | Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package rxfsm;
+
+// Keeps the snapshots of passivated instances (see FsmEngine.withPassivation), e.g. in memory
+// or in a local key value store. Called by the workers of the shards of an engine, so
+// implementations must be thread safe (broadcasts restore and passivate instances of a shard
+// concurrently), but the snapshots of a key are only ever written and taken by one shard.
+public interface PassivationStore<K> {
+
+    void write(K key, byte[] snapshot);
+
+    // Removes and returns the snapshot of the key, or null if there is none
+    byte[] take(K key);
+}
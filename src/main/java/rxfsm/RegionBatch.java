@@ -0,0 +1,123 @@
+package rxfsm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import rx.exceptions.Exceptions;
+
+// Consecutive events that only concern the regions of the current state, collected per
+// region so that the regions can handle them in parallel (see Fsm.withParallelRegions).
+// Each region handles its events in order, and all regions are done before the next event
+// that may concern the state itself (e.g. one that exits it) is handled.
+final class RegionBatch {
+
+    private final ForkJoinPool pool;
+    private final List<Region> tasks = new ArrayList<Region>();
+    private Region[] regions = new Region[0];
+    private FsmInstance[] instances;
+    private boolean empty = true;
+
+    RegionBatch(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // Adds the event to the batch if it can only be handled by the regions of the current
+    // state, i.e. if the state has regions and no transition of its own for the event.
+    // Timeouts are never batched, they are checked for cancellation when handled, and neither
+    // are events that may be deferred, as they are kept by the instance rather than a region.
+    boolean offer(FsmInstance instance, int event, Object value) {
+        if (event < 0 || instance.regions == null || value instanceof HashedWheelTimer.Node
+                || instance.getDefinition().table.slot(instance.state, event) != StateTable.NONE
+                || instance.getDefinition().table.deferredEvents[event]) {
+            return false;
+        }
+
+        if (instances != instance.regions) {
+            run();
+            instances = instance.regions;
+            if (regions.length < instances.length) {
+                regions = new Region[instances.length];
+                for (int i = 0; i < regions.length; i++) {
+                    regions[i] = new Region();
+                }
+            }
+        }
+
+        for (int i = 0; i < instances.length; i++) {
+            if (instances[i].getDefinition().table.handledEvents[event]) {
+                regions[i].add(event, value);
+                empty = false;
+            }
+        }
+        return true;
+    }
+
+    // Lets the regions handle the batched events, in parallel if more than one has any
+    void run() {
+        if (empty) {
+            return;
+        }
+
+        tasks.clear();
+        for (int i = 0; i < instances.length; i++) {
+            if (regions[i].count > 0) {
+                regions[i].instance = instances[i];
+                tasks.add(regions[i]);
+            }
+        }
+        empty = true;
+
+        if (tasks.size() == 1) {
+            tasks.get(0).call();
+            return;
+        }
+
+        List<Future<Void>> futures = pool.invokeAll(tasks);
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw Exceptions.propagate(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw Exceptions.propagate(e);
+            }
+        }
+    }
+
+    private static final class Region implements Callable<Void> {
+
+        private int[] events = new int[16];
+        private Object[] values = new Object[16];
+        private int count;
+        private FsmInstance instance;
+
+        void add(int event, Object value) {
+            if (count == events.length) {
+                events = Arrays.copyOf(events, count * 2);
+                values = Arrays.copyOf(values, count * 2);
+            }
+            events[count] = event;
+            values[count] = value;
+            count++;
+        }
+
+        @Override
+        public Void call() {
+            try {
+                for (int i = 0; i < count; i++) {
+                    instance.getDefinition().dispatch(instance, events[i], values[i]);
+                    values[i] = null;
+                }
+            } finally {
+                count = 0;
+            }
+            return null;
+        }
+    }
+}
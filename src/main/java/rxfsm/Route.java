@@ -0,0 +1,43 @@
+package rxfsm;
+
+// The precomputed exit and entry sequence of a transition from a given leaf state. A
+// transition to the history of a state (history is the id of that state) has no precomputed
+// sequence, its target depends on the states an instance was last in.
+final class Route {
+    final int target;
+    final int history;
+    final boolean deep;
+    final State[] statesToExit;
+    final State[] statesToEnter;
+    final int[] idsToExit;
+    final int[] idsToEnter;
+
+    Route(int target, State[] statesToExit, State[] statesToEnter, int[] idsToExit, int[] idsToEnter) {
+        this.target = target;
+        this.statesToExit = statesToExit;
+        this.statesToEnter = statesToEnter;
+        this.idsToExit = idsToExit;
+        this.idsToEnter = idsToEnter;
+        this.history = StateTable.NONE;
+        this.deep = false;
+    }
+
+    Route(int history, boolean deep) {
+        this.target = StateTable.NONE;
+        this.statesToExit = new State[0];
+        this.statesToEnter = new State[0];
+        this.idsToExit = new int[0];
+        this.idsToEnter = new int[0];
+        this.history = history;
+        this.deep = deep;
+    }
+
+    void run() {
+        for (State s : statesToExit) {
+            s.exit();
+        }
+        for (State s : statesToEnter) {
+            s.enter();
+        }
+    }
+}
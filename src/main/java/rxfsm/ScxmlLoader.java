@@ -0,0 +1,563 @@
+package rxfsm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func1;
+
+// Loads a definition from an SCXML document. The supported subset is:
+//
+//   <scxml initial="..">        the top states, initial defaults to the first one
+//   <state id=".." initial="..">  a state, initial defaults to its first sub state
+//   <parallel id="..">          a state whose child states are its regions
+//   <history id=".." type="shallow|deep"/>  the history of the parent state, as a target
+//   <transition event=".." target=".." cond="..">  a transition on each of the (space
+//                               separated) events, internal if it has no target
+//   <onentry>, <onexit>         entry and exit actions
+//   <script>name</script>       executable content of transitions, onentry and onexit
+//
+// Events, conditions and scripts are names, which are bound to Observables, guards and
+// actions with event, guard and action. Targets are ids of states or history elements, and
+// ids have to be unique. Anything else is rejected.
+//
+// Parsing and validating a document is done once per document if a cache directory is
+// given: the validated form (states, paths and the names of transitions) is written to the
+// directory under the SHA-256 hash of the document and read from there on later loads.
+// Bindings are resolved on every load.
+public final class ScxmlLoader {
+
+    private static final String NS = "http://www.w3.org/2005/07/scxml";
+    private static final int CACHE_MAGIC = 0x52785343; // "RxSC"
+    private static final int CACHE_VERSION = 1;
+
+    private final Map<String, Observable<?>> events = new HashMap<String, Observable<?>>();
+    private final Map<String, Object> actions = new HashMap<String, Object>();
+    private final Map<String, Func1<?, Boolean>> guards = new HashMap<String, Func1<?, Boolean>>();
+    private Path cacheDirectory;
+
+    public static ScxmlLoader create() {
+        return new ScxmlLoader();
+    }
+
+    private ScxmlLoader() {
+    }
+
+    public ScxmlLoader event(String name, Observable<?> event) {
+        events.put(name, event);
+        return this;
+    }
+
+    // An action for onentry and onexit scripts
+    public ScxmlLoader action(String name, Action0 action) {
+        actions.put(name, action);
+        return this;
+    }
+
+    // An action for transition scripts, which is given the value of the event. Actions
+    // without arguments can be used in transitions as well.
+    public ScxmlLoader action(String name, Action1<?> action) {
+        actions.put(name, action);
+        return this;
+    }
+
+    public ScxmlLoader guard(String name, Func1<?, Boolean> guard) {
+        guards.put(name, guard);
+        return this;
+    }
+
+    public ScxmlLoader cache(Path directory) {
+        this.cacheDirectory = directory;
+        return this;
+    }
+
+    public FsmDefinition load(Path document) throws IOException {
+        return load(Files.readAllBytes(document));
+    }
+
+    public FsmDefinition load(InputStream document) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n; (n = document.read(buffer)) > 0; ) {
+            bytes.write(buffer, 0, n);
+        }
+        return load(bytes.toByteArray());
+    }
+
+    private FsmDefinition load(byte[] document) throws IOException {
+        Model model = null;
+        Path cached = null;
+        if (cacheDirectory != null) {
+            cached = cacheDirectory.resolve(hash(document) + ".rxfsm");
+            if (Files.exists(cached)) {
+                model = readCache(cached);
+            }
+        }
+        if (model != null) {
+            try {
+                return define(model);
+            } catch (RuntimeException e) {
+                // A corrupted cache that still reads, the document tells whether it is invalid
+            }
+        }
+        model = parse(document);
+        if (cached != null) {
+            writeCache(model, cached);
+        }
+        return define(model);
+    }
+
+    // The validated form of a document: the states depth first, each with the index of its
+    // parent, and the transitions with their target paths resolved
+    private static final class Model {
+        String pathToInitialState;
+        final List<Node> nodes = new ArrayList<Node>();
+    }
+
+    private static final class Node {
+        String name;
+        int parent = StateTable.NONE;
+        boolean region; // A region of its parent (which is a parallel)
+        boolean initial; // The initial sub state of its parent
+        final List<String> onEntry = new ArrayList<String>();
+        final List<String> onExit = new ArrayList<String>();
+        final List<Edge> transitions = new ArrayList<Edge>();
+    }
+
+    private static final class Edge {
+        String event;
+        String target; // A path, or null for internal transitions
+        String cond;
+        final List<String> scripts = new ArrayList<String>();
+    }
+
+    // Parsing, into elements that are then resolved into a model
+
+    private static final class Element {
+        final String kind; // state, parallel or history
+        final String id;
+        final Element parent;
+        String initial;
+        boolean deep;
+        final List<Element> children = new ArrayList<Element>();
+        final List<String> onEntry = new ArrayList<String>();
+        final List<String> onExit = new ArrayList<String>();
+        final List<RawTransition> transitions = new ArrayList<RawTransition>();
+        String path; // Relative to the region (or top) the element is in
+        Element scope; // The region the element is in, null for the top
+
+        Element(String kind, String id, Element parent) {
+            this.kind = kind;
+            this.id = id;
+            this.parent = parent;
+        }
+    }
+
+    private static final class RawTransition {
+        String events;
+        String target;
+        String cond;
+        final List<String> scripts = new ArrayList<String>();
+    }
+
+    private static Model parse(byte[] document) throws IOException {
+        Element root = new Element("scxml", null, null);
+        try {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            XMLStreamReader reader = factory.createXMLStreamReader(new ByteArrayInputStream(document));
+            try {
+                while (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    // Skip the prolog
+                }
+                expect(reader, "scxml");
+                root.initial = reader.getAttributeValue(null, "initial");
+                parseChildren(reader, root);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid SCXML document: " + e.getMessage(), e);
+        }
+        return resolve(root);
+    }
+
+    private static void expect(XMLStreamReader reader, String name) {
+        String namespace = reader.getNamespaceURI();
+        if (!name.equals(reader.getLocalName()) || (namespace != null && !namespace.isEmpty() && !NS.equals(namespace))) {
+            throw new IllegalArgumentException("Unsupported element <" + reader.getLocalName() + ">");
+        }
+    }
+
+    // Parses the child elements of a state (or the document) up to its end tag
+    private static void parseChildren(XMLStreamReader reader, Element element) throws XMLStreamException {
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            if (name.equals("state") || name.equals("parallel")) {
+                expect(reader, name);
+                Element child = new Element(name, required(reader, "id"), element);
+                child.initial = reader.getAttributeValue(null, "initial");
+                element.children.add(child);
+                parseChildren(reader, child);
+            } else if (name.equals("history") && element.parent != null) {
+                expect(reader, name);
+                Element history = new Element(name, required(reader, "id"), element);
+                history.deep = "deep".equals(reader.getAttributeValue(null, "type"));
+                element.children.add(history);
+                skipEmpty(reader);
+            } else if (name.equals("transition") && element.parent != null) {
+                expect(reader, name);
+                RawTransition transition = new RawTransition();
+                transition.events = required(reader, "event");
+                transition.target = reader.getAttributeValue(null, "target");
+                transition.cond = reader.getAttributeValue(null, "cond");
+                parseScripts(reader, transition.scripts);
+                element.transitions.add(transition);
+            } else if ((name.equals("onentry") || name.equals("onexit")) && element.parent != null) {
+                expect(reader, name);
+                parseScripts(reader, name.equals("onentry") ? element.onEntry : element.onExit);
+            } else {
+                throw new IllegalArgumentException("Unsupported element <" + name + ">");
+            }
+        }
+    }
+
+    private static void parseScripts(XMLStreamReader reader, List<String> scripts) throws XMLStreamException {
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            expect(reader, "script");
+            scripts.add(reader.getElementText().trim());
+        }
+    }
+
+    private static void skipEmpty(XMLStreamReader reader) throws XMLStreamException {
+        if (reader.nextTag() != XMLStreamConstants.END_ELEMENT) {
+            throw new IllegalArgumentException("Unsupported element <" + reader.getLocalName() + ">");
+        }
+    }
+
+    private static String required(XMLStreamReader reader, String attribute) {
+        String value = reader.getAttributeValue(null, attribute);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("<" + reader.getLocalName() + "> requires the attribute " + attribute);
+        }
+        return value;
+    }
+
+    // Gives every element its path and resolves initial states and transition targets
+    private static Model resolve(Element root) {
+        Map<String, Element> ids = new HashMap<String, Element>();
+        List<Element> states = new ArrayList<Element>();
+        assignPaths(root, ids, states);
+
+        Model model = new Model();
+        Element initial = initialChild(root);
+        model.pathToInitialState = initial.path;
+
+        Map<Element, Integer> indexes = new HashMap<Element, Integer>();
+        for (Element element : states) {
+            Node node = new Node();
+            node.name = element.id;
+            node.parent = element.parent == root ? StateTable.NONE : indexes.get(element.parent);
+            node.region = element.parent.kind.equals("parallel");
+            node.initial = !node.region && element.parent != root && initialChild(element.parent) == element;
+            node.onEntry.addAll(element.onEntry);
+            node.onExit.addAll(element.onExit);
+            for (RawTransition raw : element.transitions) {
+                String target = raw.target == null ? null : target(raw.target.trim(), element, ids);
+                for (String event : raw.events.trim().split("\\s+")) {
+                    Edge edge = new Edge();
+                    edge.event = event;
+                    edge.target = target;
+                    edge.cond = raw.cond;
+                    edge.scripts.addAll(raw.scripts);
+                    node.transitions.add(edge);
+                }
+            }
+            indexes.put(element, model.nodes.size());
+            model.nodes.add(node);
+        }
+        return model;
+    }
+
+    private static void assignPaths(Element element, Map<String, Element> ids, List<Element> states) {
+        for (Element child : element.children) {
+            if (ids.put(child.id, child) != null) {
+                throw new IllegalArgumentException("The id " + child.id + " is not unique");
+            }
+            // Regions start hierarchies of their own
+            boolean region = element.kind.equals("parallel");
+            child.scope = region ? child : element.scope;
+            child.path = (region || element.path == null ? "" : element.path) + "/" + child.id;
+            if (child.kind.equals("history")) {
+                continue;
+            }
+            states.add(child);
+            assignPaths(child, ids, states);
+        }
+    }
+
+    // The initial sub state of a state (or the document), the first sub state by default
+    private static Element initialChild(Element element) {
+        Element first = null;
+        for (Element child : element.children) {
+            if (child.kind.equals("history")) {
+                continue;
+            }
+            if (element.initial == null || element.initial.equals(child.id)) {
+                return child;
+            }
+            first = first == null ? child : first;
+        }
+        if (first == null) {
+            throw new IllegalArgumentException(element.parent == null
+                    ? "The document has no states" : "The initial state of " + element.id + " is not a sub state");
+        }
+        throw new IllegalArgumentException("The initial state " + element.initial + " of "
+                + (element.id == null ? "the document" : element.id) + " is not a sub state");
+    }
+
+    private static String target(String id, Element source, Map<String, Element> ids) {
+        Element target = ids.get(id);
+        if (target == null) {
+            throw new IllegalArgumentException("The target " + id + " of a transition in " + source.id + " does not exist");
+        }
+        if (target.scope != source.scope) {
+            throw new IllegalArgumentException("The target " + id + " of a transition in " + source.id
+                    + " is in another region");
+        }
+        if (target.kind.equals("history")) {
+            return target.parent.path + (target.deep ? StateTable.DEEP_HISTORY : StateTable.HISTORY);
+        }
+        return target.path;
+    }
+
+    // Binding the names of a model and building the states
+
+    private FsmDefinition define(Model model) {
+        StateBuilder[] builders = new StateBuilder[model.nodes.size()];
+        FsmBuilder fsm = FsmBuilder.create().initialState(model.pathToInitialState);
+        for (int i = 0; i < builders.length; i++) {
+            Node node = model.nodes.get(i);
+            StateBuilder builder = new StateBuilder(node.name);
+            if (!node.onEntry.isEmpty()) {
+                builder.onEntry(action0(node.onEntry));
+            }
+            if (!node.onExit.isEmpty()) {
+                builder.onExit(action0(node.onExit));
+            }
+            for (Edge edge : node.transitions) {
+                addTransition(builder, edge);
+            }
+
+            builders[i] = builder;
+            if (node.parent == StateTable.NONE) {
+                fsm.topState(builder);
+            } else if (node.region) {
+                builders[node.parent].region(builder);
+            } else if (node.initial) {
+                builders[node.parent].initialSubState(builder);
+            } else {
+                builders[node.parent].subState(builder);
+            }
+        }
+        return fsm.define();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addTransition(StateBuilder builder, Edge edge) {
+        Observable<Object> event = (Observable<Object>) events.get(edge.event);
+        if (event == null) {
+            throw new IllegalArgumentException("The event " + edge.event + " is not bound");
+        }
+        Action1<Object> action = action1(edge.scripts);
+        if (edge.cond == null) {
+            if (edge.target == null) {
+                builder.internalTransition(event, action);
+            } else {
+                builder.transition(edge.target, event, action);
+            }
+            return;
+        }
+
+        Func1<Object, Boolean> guard = (Func1<Object, Boolean>) guards.get(edge.cond);
+        if (guard == null) {
+            throw new IllegalArgumentException("The condition " + edge.cond + " is not bound");
+        }
+        if (edge.target == null) {
+            builder.internalTransition(event, action, guard);
+        } else {
+            builder.transition(edge.target, event, action, guard);
+        }
+    }
+
+    private Action0 action0(List<String> scripts) {
+        Action1<Object> action = action1(scripts);
+        return () -> action.call(null);
+    }
+
+    // The scripts as one action, which runs them in order
+    @SuppressWarnings("unchecked")
+    private Action1<Object> action1(List<String> scripts) {
+        final List<Action1<Object>> bound = new ArrayList<Action1<Object>>(scripts.size());
+        for (String script : scripts) {
+            Object action = actions.get(script);
+            if (action == null) {
+                throw new IllegalArgumentException("The script " + script + " is not bound");
+            }
+            bound.add(action instanceof Action1 ? (Action1<Object>) action : value -> ((Action0) action).call());
+        }
+        if (bound.size() == 1) {
+            return bound.get(0);
+        }
+        return value -> {
+            for (Action1<Object> action : bound) {
+                action.call(value);
+            }
+        };
+    }
+
+    // The cache
+
+    private static String hash(byte[] document) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(document);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Returns null if the cache file is not a valid cache of this version, e.g. if it is torn
+    // or corrupted, in which case the document is parsed and the cache written again. Counts
+    // are checked against the size of the file, so that a corrupted one does not make the
+    // loader allocate more than the file could hold.
+    private static Model readCache(Path file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            long size = Files.size(file);
+            if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION) {
+                return null;
+            }
+            Model model = new Model();
+            model.pathToInitialState = in.readUTF();
+            for (int nodes = readCount(in, size); nodes > 0; nodes--) {
+                Node node = new Node();
+                node.name = in.readUTF();
+                node.parent = in.readInt();
+                if (node.parent < StateTable.NONE || node.parent >= model.nodes.size()) {
+                    return null;
+                }
+                node.region = in.readBoolean();
+                node.initial = in.readBoolean();
+                readStrings(in, size, node.onEntry);
+                readStrings(in, size, node.onExit);
+                for (int transitions = readCount(in, size); transitions > 0; transitions--) {
+                    Edge edge = new Edge();
+                    edge.event = in.readUTF();
+                    edge.target = readNullable(in);
+                    edge.cond = readNullable(in);
+                    readStrings(in, size, edge.scripts);
+                    node.transitions.add(edge);
+                }
+                model.nodes.add(node);
+            }
+            return in.read() == -1 ? model : null;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Every counted item takes at least one byte, so a count can not exceed the file size
+    private static int readCount(DataInputStream in, long size) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > size) {
+            throw new IOException("Invalid count " + count);
+        }
+        return count;
+    }
+
+    // Written to a temporary file that is then moved in place, so that a cache file is
+    // either complete or missing
+    private static void writeCache(Model model, Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temporary = Files.createTempFile(file.getParent(), "scxml", ".tmp");
+        try {
+            try (OutputStream stream = Files.newOutputStream(temporary);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+                out.writeInt(CACHE_MAGIC);
+                out.writeInt(CACHE_VERSION);
+                out.writeUTF(model.pathToInitialState);
+                out.writeInt(model.nodes.size());
+                for (Node node : model.nodes) {
+                    out.writeUTF(node.name);
+                    out.writeInt(node.parent);
+                    out.writeBoolean(node.region);
+                    out.writeBoolean(node.initial);
+                    writeStrings(out, node.onEntry);
+                    writeStrings(out, node.onExit);
+                    out.writeInt(node.transitions.size());
+                    for (Edge edge : node.transitions) {
+                        out.writeUTF(edge.event);
+                        writeNullable(out, edge.target);
+                        writeNullable(out, edge.cond);
+                        writeStrings(out, edge.scripts);
+                    }
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static void readStrings(DataInputStream in, long size, List<String> strings) throws IOException {
+        for (int count = readCount(in, size); count > 0; count--) {
+            strings.add(in.readUTF());
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullable(DataOutputStream out, String string) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+}
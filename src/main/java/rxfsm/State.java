@@ -2,10 +2,14 @@ package rxfsm;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
 
 import rx.Observable;
 import rx.functions.Action0;
 import rx.functions.Action1;
+import rx.functions.Func0;
 import rx.functions.Func1;
 
 public class State {
@@ -16,6 +20,7 @@ public class State {
     private final List<State> subStates;
     private final State initialSubState;
     private final List<Transition> transitions;
+    private final List<State> regions;
 
     public State(String name) {
         this.name = name;
@@ -24,12 +29,13 @@ public class State {
         this.transitions = new ArrayList<Transition>();
         this.subStates = new ArrayList<State>();
         this.initialSubState = null;
+        this.regions = new ArrayList<State>();
     }
 
     public State withOnEntry(Action0 action) {
         if (onEntry == null)
         {
-            return new State(name, action, onExit, transitions, initialSubState, subStates);
+            return new State(name, action, onExit, transitions, initialSubState, subStates, regions);
         }
         else
         {
@@ -40,7 +46,7 @@ public class State {
     public State withOnExit(Action0 action) {
         if (onExit == null)
         {
-            return new State(name, onEntry, action, transitions, initialSubState, subStates);
+            return new State(name, onEntry, action, transitions, initialSubState, subStates, regions);
         }
         else
         {
@@ -49,56 +55,213 @@ public class State {
     }
 
 
+    // Entry and exit actions that complete asynchronously, when the returned Observable
+    // completes. An Fsm queues the events that are emitted in the meantime and handles them
+    // once the action has completed, see AsyncAction.
+    public State withOnEntryAsync(Func0<Observable<Void>> action) {
+        return withOnEntry(new AsyncAction(value -> action.call()));
+    }
+
+    public State withOnExitAsync(Func0<Observable<Void>> action) {
+        return withOnExit(new AsyncAction(value -> action.call()));
+    }
+
+
     public <T> State withTransition(String pathToTargetState, Observable<T> event, Action1<T> action)
     {
         List<Transition> newTransitions = new ArrayList<Transition>(transitions);
         newTransitions.add(new Transition(pathToTargetState, event, action));
-        return new State(name, onEntry, onExit, newTransitions, initialSubState, subStates);
+        return new State(name, onEntry, onExit, newTransitions, initialSubState, subStates, regions);
     }
 
     public <T> State withTransition(String pathToTargetState, Observable<T> event, Action1<T> action, Func1<? super T, Boolean> guard)
     {
         List<Transition> newTransitions = new ArrayList<Transition>(transitions);
         newTransitions.add(new Transition(pathToTargetState, event, action, guard));
-        return new State(name, onEntry, onExit, newTransitions, initialSubState, subStates);
+        return new State(name, onEntry, onExit, newTransitions, initialSubState, subStates, regions);
     }
 
     public <T> State withInternalTransition(Observable<T> event, Action1<T> action)
     {
         List<Transition> newTransitions = new ArrayList<Transition>(transitions);
         newTransitions.add(new Transition(event, action));
-        return new State(name, onEntry, onExit, newTransitions, initialSubState, subStates);
+        return new State(name, onEntry, onExit, newTransitions, initialSubState, subStates, regions);
     }
 
     public <T> State withInternalTransition(Observable<T> event, Action1<T> action, Func1<? super T, Boolean> guard)
     {
         List<Transition> newTransitions = new ArrayList<Transition>(transitions);
         newTransitions.add(new Transition(event, action, guard));
-        return new State(name, onEntry, onExit, newTransitions, initialSubState, subStates);
+        return new State(name, onEntry, onExit, newTransitions, initialSubState, subStates, regions);
+    }
+
+    // Transitions whose actions complete asynchronously, see withOnEntryAsync. The states are
+    // exited once the action has completed.
+    public <T> State withTransitionAsync(String pathToTargetState, Observable<T> event, Func1<T, Observable<Void>> action)
+    {
+        return withTransition(pathToTargetState, event, async(action));
+    }
+
+    public <T> State withTransitionAsync(String pathToTargetState, Observable<T> event, Func1<T, Observable<Void>> action,
+                                         Func1<? super T, Boolean> guard)
+    {
+        return withTransition(pathToTargetState, event, async(action), guard);
+    }
+
+    public <T> State withInternalTransitionAsync(Observable<T> event, Func1<T, Observable<Void>> action)
+    {
+        return withInternalTransition(event, async(action));
+    }
+
+    public <T> State withInternalTransitionAsync(Observable<T> event, Func1<T, Observable<Void>> action,
+                                                 Func1<? super T, Boolean> guard)
+    {
+        return withInternalTransition(event, async(action), guard);
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> Action1<T> async(Func1<T, Observable<Void>> action) {
+        return (Action1<T>) (Action1<?>) new AsyncAction(action);
+    }
+
+    // Transitions triggered by an int code (between 0 and 65535) rather than by an Observable,
+    // see Fsm.fire. The payload of the event is passed to the action and guard as is, so
+    // firing these transitions allocates nothing.
+    public State withTransition(String pathToTargetState, int event, LongConsumer action)
+    {
+        return withCodeTransition(pathToTargetState, new EventCode(event), action, null);
+    }
+
+    public State withTransition(String pathToTargetState, int event, LongConsumer action, LongPredicate guard)
+    {
+        return withCodeTransition(pathToTargetState, new EventCode(event), action, guard);
+    }
+
+    public State withInternalTransition(int event, LongConsumer action)
+    {
+        return withCodeTransition(null, new EventCode(event), action, null);
+    }
+
+    public State withInternalTransition(int event, LongConsumer action, LongPredicate guard)
+    {
+        return withCodeTransition(null, new EventCode(event), action, guard);
+    }
+
+    // Enum constants are fired by their ordinal, so the codes of a definition have to be
+    // constants of one enum or int codes. Mixing them is rejected when the definition is
+    // created, as their codes would overlap.
+    public State withTransition(String pathToTargetState, Enum<?> event, LongConsumer action)
+    {
+        return withCodeTransition(pathToTargetState, new EventCode(event), action, null);
+    }
+
+    public State withTransition(String pathToTargetState, Enum<?> event, LongConsumer action, LongPredicate guard)
+    {
+        return withCodeTransition(pathToTargetState, new EventCode(event), action, guard);
+    }
+
+    public State withInternalTransition(Enum<?> event, LongConsumer action)
+    {
+        return withCodeTransition(null, new EventCode(event), action, null);
+    }
+
+    public State withInternalTransition(Enum<?> event, LongConsumer action, LongPredicate guard)
+    {
+        return withCodeTransition(null, new EventCode(event), action, guard);
+    }
+
+    private State withCodeTransition(String pathToTargetState, EventCode event, LongConsumer action, LongPredicate guard)
+    {
+        List<Transition> newTransitions = new ArrayList<Transition>(transitions);
+        newTransitions.add(new Transition(pathToTargetState, event, action, guard));
+        return new State(name, onEntry, onExit, newTransitions, initialSubState, subStates, regions);
+    }
+
+    // A transition that is triggered when the state has been active for the given duration
+    // (i.e. it is cancelled if the state is exited before that). Timeouts are driven by a
+    // HashedWheelTimer, see Fsm.withTimer.
+    public State withTimeout(long duration, TimeUnit unit, String pathToTargetState, Action0 action)
+    {
+        if (duration <= 0) {
+            throw new IllegalArgumentException("The duration of a timeout has to be positive");
+        }
+
+        List<Transition> newTransitions = new ArrayList<Transition>(transitions);
+        newTransitions.add(new Transition(pathToTargetState, new Timeout(unit.toNanos(duration)), value -> action.call()));
+        return new State(name, onEntry, onExit, newTransitions, initialSubState, subStates, regions);
+    }
+
+    // Defers the event while the state is active: instead of being dropped it is kept by the
+    // instance and dispatched again once a state is entered that does not defer it. A
+    // transition for the event in a sub state overrides the deferral (and a deferral in a sub
+    // state overrides a transition of this state). See FsmDefinition.withDeferredEvents for
+    // the number of events kept.
+    public <T> State withDeferredEvent(Observable<T> event)
+    {
+        List<Transition> newTransitions = new ArrayList<Transition>(transitions);
+        newTransitions.add(new Transition(event));
+        return new State(name, onEntry, onExit, newTransitions, initialSubState, subStates, regions);
+    }
+
+    public State withDeferredEvent(int event)
+    {
+        List<Transition> newTransitions = new ArrayList<Transition>(transitions);
+        newTransitions.add(new Transition(new EventCode(event)));
+        return new State(name, onEntry, onExit, newTransitions, initialSubState, subStates, regions);
+    }
+
+    public State withDeferredEvent(Enum<?> event)
+    {
+        List<Transition> newTransitions = new ArrayList<Transition>(transitions);
+        newTransitions.add(new Transition(new EventCode(event)));
+        return new State(name, onEntry, onExit, newTransitions, initialSubState, subStates, regions);
     }
 
     public State withInitialSubState(State subState) {
         List<State> newSubStates = new ArrayList<State>(subStates);
         newSubStates.add(subState);
-        return new State(name, onEntry, onExit, transitions, subState, newSubStates);
+        return new State(name, onEntry, onExit, transitions, subState, newSubStates, regions);
     }
 
     public State withSubState(State subState) {
         List<State> newSubStates = new ArrayList<State>(subStates);
         newSubStates.add(subState);
-        return new State(name, onEntry, onExit, transitions, initialSubState, newSubStates);
+        return new State(name, onEntry, onExit, transitions, initialSubState, newSubStates, regions);
     }
 
-    State(String name, Action0 onEntry, Action0 onExit, List<Transition> transitions, State initialSubState, List<State> subStates) {
+    // Orthogonal regions, i.e. state hierarchies that are all active while this state is.
+    // Each region is the top state of its hierarchy, and transitions within a region target
+    // paths that start with the region (e.g. "/region/state"). Transitions can not cross the
+    // boundary of a region, but transitions of this state (or its ancestors) exit all regions.
+    // A state with regions can not have sub states.
+    public State withRegions(State... regions) {
+        if (!this.regions.isEmpty())
+        {
+            throw new IllegalStateException("Regions can only be declared once");
+        }
+
+        List<State> newRegions = new ArrayList<State>();
+        for (State region : regions) {
+            newRegions.add(region);
+        }
+        return new State(name, onEntry, onExit, transitions, initialSubState, subStates, newRegions);
+    }
+
+    State(String name, Action0 onEntry, Action0 onExit, List<Transition> transitions, State initialSubState, List<State> subStates,
+          List<State> regions) {
         if (initialSubState == null && subStates.size() > 0) {
             throw new IllegalStateException("If there are any sub states, one of them has to be the initial sub state");
         }
+        if (subStates.size() > 0 && regions.size() > 0) {
+            throw new IllegalStateException("A state can not have both sub states and regions");
+        }
         this.name = name;
         this.onEntry = onEntry;
         this.onExit = onExit;
         this.transitions = transitions;
         this.subStates = subStates;
         this.initialSubState = initialSubState;
+        this.regions = regions;
     }
 
     State(String name, Action0 onEntry, Action0 onExit, List<Transition> transitions) {
@@ -108,6 +271,7 @@ public class State {
         this.transitions = transitions;
         this.subStates = new ArrayList<State>();
         this.initialSubState = null;
+        this.regions = new ArrayList<State>();
     }
 
 	public void enter() {
@@ -124,10 +288,22 @@ public class State {
 		}
 	}
 
+    Action0 entryAction() {
+        return onEntry;
+    }
+
+    Action0 exitAction() {
+        return onExit;
+    }
+
     public List<State> getSubStates() {
         return subStates;
     }
 
+    public List<State> getRegions() {
+        return regions;
+    }
+
     public State getInitialSubState() {
         return initialSubState;
     }
@@ -0,0 +1,205 @@
+package rxfsm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+
+import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+
+// A mutable counterpart of the State.with* methods for large hierarchies. Each State.with*
+// call copies the transitions or sub states of the state, whereas a builder adds them in
+// place, and build() freezes the builder and its sub states into States without copying
+// them. Compiling the definition then takes time in the number of transitions visible from
+// each leaf, and keeps a row per event for each leaf only while there are few distinct
+// events (see StateTable.eventSlots). A builder can only be built once.
+public final class StateBuilder {
+
+    private final String name;
+    private Action0 onEntry;
+    private Action0 onExit;
+    private final List<Transition> transitions = new ArrayList<Transition>();
+    private final List<StateBuilder> subStates = new ArrayList<StateBuilder>();
+    private StateBuilder initialSubState;
+    private final List<StateBuilder> regions = new ArrayList<StateBuilder>();
+    private boolean built;
+
+    public StateBuilder(String name) {
+        this.name = name;
+    }
+
+    public StateBuilder onEntry(Action0 action) {
+        if (onEntry != null) {
+            throw new IllegalStateException("There can only be one onEntry function");
+        }
+        onEntry = action;
+        return this;
+    }
+
+    public StateBuilder onExit(Action0 action) {
+        if (onExit != null) {
+            throw new IllegalStateException("There can only be one onExit function");
+        }
+        onExit = action;
+        return this;
+    }
+
+    // See State.withOnEntryAsync
+    public StateBuilder onEntryAsync(Func0<Observable<Void>> action) {
+        return onEntry(new AsyncAction(value -> action.call()));
+    }
+
+    public StateBuilder onExitAsync(Func0<Observable<Void>> action) {
+        return onExit(new AsyncAction(value -> action.call()));
+    }
+
+    public <T> StateBuilder transition(String pathToTargetState, Observable<T> event, Action1<T> action) {
+        return add(new Transition(pathToTargetState, event, action));
+    }
+
+    public <T> StateBuilder transition(String pathToTargetState, Observable<T> event, Action1<T> action,
+                                       Func1<? super T, Boolean> guard) {
+        return add(new Transition(pathToTargetState, event, action, guard));
+    }
+
+    public <T> StateBuilder internalTransition(Observable<T> event, Action1<T> action) {
+        return add(new Transition(event, action));
+    }
+
+    public <T> StateBuilder internalTransition(Observable<T> event, Action1<T> action, Func1<? super T, Boolean> guard) {
+        return add(new Transition(event, action, guard));
+    }
+
+    // See State.withTransitionAsync
+    public <T> StateBuilder transitionAsync(String pathToTargetState, Observable<T> event, Func1<T, Observable<Void>> action) {
+        return transition(pathToTargetState, event, State.async(action));
+    }
+
+    public <T> StateBuilder transitionAsync(String pathToTargetState, Observable<T> event, Func1<T, Observable<Void>> action,
+                                            Func1<? super T, Boolean> guard) {
+        return transition(pathToTargetState, event, State.async(action), guard);
+    }
+
+    public <T> StateBuilder internalTransitionAsync(Observable<T> event, Func1<T, Observable<Void>> action) {
+        return internalTransition(event, State.async(action));
+    }
+
+    public <T> StateBuilder internalTransitionAsync(Observable<T> event, Func1<T, Observable<Void>> action,
+                                                    Func1<? super T, Boolean> guard) {
+        return internalTransition(event, State.async(action), guard);
+    }
+
+    // See State.withTransition(String, int, LongConsumer)
+    public StateBuilder transition(String pathToTargetState, int event, LongConsumer action) {
+        return add(new Transition(pathToTargetState, new EventCode(event), action, null));
+    }
+
+    public StateBuilder transition(String pathToTargetState, int event, LongConsumer action, LongPredicate guard) {
+        return add(new Transition(pathToTargetState, new EventCode(event), action, guard));
+    }
+
+    public StateBuilder internalTransition(int event, LongConsumer action) {
+        return add(new Transition(null, new EventCode(event), action, null));
+    }
+
+    public StateBuilder internalTransition(int event, LongConsumer action, LongPredicate guard) {
+        return add(new Transition(null, new EventCode(event), action, guard));
+    }
+
+    // See State.withTransition(String, Enum, LongConsumer)
+    public StateBuilder transition(String pathToTargetState, Enum<?> event, LongConsumer action) {
+        return add(new Transition(pathToTargetState, new EventCode(event), action, null));
+    }
+
+    public StateBuilder transition(String pathToTargetState, Enum<?> event, LongConsumer action, LongPredicate guard) {
+        return add(new Transition(pathToTargetState, new EventCode(event), action, guard));
+    }
+
+    public StateBuilder internalTransition(Enum<?> event, LongConsumer action) {
+        return add(new Transition(null, new EventCode(event), action, null));
+    }
+
+    public StateBuilder internalTransition(Enum<?> event, LongConsumer action, LongPredicate guard) {
+        return add(new Transition(null, new EventCode(event), action, guard));
+    }
+
+    // See State.withTimeout
+    public StateBuilder timeout(long duration, TimeUnit unit, String pathToTargetState, Action0 action) {
+        if (duration <= 0) {
+            throw new IllegalArgumentException("The duration of a timeout has to be positive");
+        }
+        return add(new Transition(pathToTargetState, new Timeout(unit.toNanos(duration)), value -> action.call()));
+    }
+
+    // See State.withDeferredEvent
+    public <T> StateBuilder deferredEvent(Observable<T> event) {
+        return add(new Transition(event));
+    }
+
+    public StateBuilder deferredEvent(int event) {
+        return add(new Transition(new EventCode(event)));
+    }
+
+    public StateBuilder deferredEvent(Enum<?> event) {
+        return add(new Transition(new EventCode(event)));
+    }
+
+    public StateBuilder initialSubState(StateBuilder subState) {
+        initialSubState = subState;
+        subStates.add(subState);
+        return this;
+    }
+
+    public StateBuilder subState(StateBuilder subState) {
+        subStates.add(subState);
+        return this;
+    }
+
+    // See State.withRegions
+    public StateBuilder region(StateBuilder region) {
+        regions.add(region);
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Freezes the builder, and those of its sub states and regions, into a State
+    public State build() {
+        if (built) {
+            throw new IllegalStateException("A StateBuilder can only be built once");
+        }
+        built = true;
+
+        List<State> builtSubStates = new ArrayList<State>(subStates.size());
+        State builtInitialSubState = null;
+        for (StateBuilder subState : subStates) {
+            State state = subState.build();
+            builtSubStates.add(state);
+            if (subState == initialSubState) {
+                builtInitialSubState = state;
+            }
+        }
+        List<State> builtRegions = new ArrayList<State>(regions.size());
+        for (StateBuilder region : regions) {
+            builtRegions.add(region.build());
+        }
+
+        // The lists are handed over to the State as they are, the builder is not used again
+        return new State(name, onEntry, onExit, transitions, builtInitialSubState, builtSubStates, builtRegions);
+    }
+
+    private StateBuilder add(Transition transition) {
+        if (built) {
+            throw new IllegalStateException("The StateBuilder has already been built");
+        }
+        transitions.add(transition);
+        return this;
+    }
+}
@@ -0,0 +1,70 @@
+package rxfsm;
+
+// A state change of an Fsm (see Fsm.stateChanges). State changes are recorded into
+// preallocated records that are reused, so a record is only valid until onNext returns.
+// Use copy() to keep one beyond that (e.g. before handing it to another thread).
+public final class StateChange {
+
+    private final FsmDefinition definition;
+    int source;
+    int target;
+    int event;
+    Object value;
+    long timestamp;
+
+    StateChange(FsmDefinition definition) {
+        this.definition = definition;
+    }
+
+    // The leaf state that was active before the change
+    public int getSource() {
+        return source;
+    }
+
+    public String getSourcePath() {
+        return definition.statePath(source);
+    }
+
+    // The leaf state that is active after the change
+    public int getTarget() {
+        return target;
+    }
+
+    public String getTargetPath() {
+        return definition.statePath(target);
+    }
+
+    // The id of the event that triggered the change (see FsmDefinition.eventId)
+    public int getEvent() {
+        return event;
+    }
+
+    // The value that was emitted by the event
+    public Object getValue() {
+        return value;
+    }
+
+    // When the change happened, in milliseconds since the epoch
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public StateChange copy() {
+        StateChange copy = new StateChange(definition);
+        copy.set(source, target, event, value, timestamp);
+        return copy;
+    }
+
+    void set(int source, int target, int event, Object value, long timestamp) {
+        this.source = source;
+        this.target = target;
+        this.event = event;
+        this.value = value;
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return getSourcePath() + " -> " + getTargetPath() + " (event " + event + ": " + value + ")";
+    }
+}
@@ -0,0 +1,14 @@
+package rxfsm;
+
+// What to do with a state change when the buffer of a subscriber to Fsm.stateChanges is full.
+// Whatever the strategy, the records in the buffer are reused: a record is only valid until
+// onNext returns, so a consumer on another thread (e.g. after observeOn, which queues the
+// records) has to map each one with StateChange.copy() first.
+public enum StateChangeBackpressure {
+    // Signal a MissingBackpressureException to the subscriber, which ends its subscription
+    FAIL,
+    // Drop the new state change
+    DROP,
+    // Replace the most recent state change in the buffer with the new one
+    LATEST
+}
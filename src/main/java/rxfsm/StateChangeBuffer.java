@@ -0,0 +1,74 @@
+package rxfsm;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import rx.Subscriber;
+import rx.exceptions.MissingBackpressureException;
+
+// A ring of preallocated state change records for one subscriber to Fsm.stateChanges.
+// Everything but request() is executed by the thread that is handling the events of the
+// Fsm, one at a time, so the ring itself needs no synchronization.
+final class StateChangeBuffer {
+
+    private final Subscriber<? super StateChange> subscriber;
+    private final StateChangeBackpressure backpressure;
+    private final StateChange[] ring;
+    private final AtomicLong requested = new AtomicLong();
+    private long producerIndex;
+    private long consumerIndex;
+
+    StateChangeBuffer(FsmDefinition definition, Subscriber<? super StateChange> subscriber,
+                      StateChangeBackpressure backpressure, int capacity) {
+        this.subscriber = subscriber;
+        this.backpressure = backpressure;
+        this.ring = new StateChange[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new StateChange(definition);
+        }
+    }
+
+    // Returns false if the subscriber has been terminated due to a buffer overflow
+    boolean offer(int source, int target, int event, Object value, long timestamp) {
+        if (producerIndex - consumerIndex == ring.length) {
+            switch (backpressure) {
+                case FAIL:
+                    subscriber.onError(new MissingBackpressureException(
+                            "State change buffer of " + ring.length + " overflowed"));
+                    return false;
+                case DROP:
+                    return true;
+                case LATEST:
+                    ring[(int) ((producerIndex - 1) % ring.length)].set(source, target, event, value, timestamp);
+                    return true;
+            }
+        }
+
+        ring[(int) (producerIndex % ring.length)].set(source, target, event, value, timestamp);
+        producerIndex++;
+        drain();
+        return true;
+    }
+
+    // Called from any thread, the caller has to make sure that drain is called afterwards
+    void request(long n) {
+        for (;;) {
+            long current = requested.get();
+            long next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            if (requested.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    void drain() {
+        while (consumerIndex != producerIndex && requested.get() > 0 && !subscriber.isUnsubscribed()) {
+            StateChange stateChange = ring[(int) (consumerIndex % ring.length)];
+            consumerIndex++;
+            if (requested.get() != Long.MAX_VALUE) {
+                requested.decrementAndGet();
+            }
+            subscriber.onNext(stateChange);
+            stateChange.value = null;
+        }
+    }
+}
@@ -0,0 +1,668 @@
+package rxfsm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import rx.Observable;
+
+// A compiled view of a state hierarchy. Every state is given a dense int id (depth first
+// order, so a parent always has a lower id than its sub states) and for every leaf state the
+// transitions visible from it are resolved into routes, i.e. the exact states to exit and
+// enter. This is done once at activation so that switching states is a table lookup.
+final class StateTable {
+
+    static final int NONE = -1;
+
+    // Suffixes of target paths that denote the (shallow or deep) history of a state
+    static final String HISTORY = "/H";
+    static final String DEEP_HISTORY = "/H*";
+
+    final State[] states;
+    final String[] paths;
+    final int[] parents;
+    final int[] initialSubStates;
+    final int[] initialLeaves;
+    final int[] lastDescendants;
+
+    // Indexed by state id, only populated for leaf states (and empty for unreachable ones, see
+    // reachable). These are the effective transitions of a leaf, i.e. the ones visible from it
+    // that are not overridden, in the order of the leaf's own transitions followed by those of
+    // its ancestors (top state first).
+    // A null route denotes an internal transition (or a deferral, see Transition.isDeferred).
+    final Transition[][] transitions;
+    final int[][] transitionEvents;
+    final Route[][] routes;
+
+    // Every distinct event in the hierarchy gets an id. For each leaf, eventSlots maps an event
+    // id to the index of the transition that handles it (honoring overrides), or NONE (see
+    // slot). With few events a row is indexed by event id, otherwise it holds the events of
+    // the leaf's effective transitions in ascending order followed by their slots, so that
+    // it takes space in the number of effective transitions rather than in all events.
+    final Object[] events;
+    private final int[][] eventSlots;
+    private final boolean denseEventSlots;
+    private static final int MAX_DENSE_EVENTS = 256;
+
+    // Maps the code of an event that is triggered by a code (see Fsm.fire) to its event id,
+    // or NONE. Only as long as the highest code. codeEnums holds the enum whose constants
+    // trigger each code, or null for int codes.
+    final int[] codeEvents;
+    final Class<?>[] codeEnums;
+
+    // Indexed by state id, the compiled regions of the reachable leaf states that have any. The
+    // events of a table are shared with its regions, and handledEvents tells which events
+    // are handled by a table or its regions. subscribedEvents are the events a leaf has to
+    // subscribe to, those of its effective transitions and those handled by its regions.
+    final FsmDefinition[][] regions;
+    final boolean hasRegions;
+    final boolean[] handledEvents;
+    final int[][] subscribedEvents;
+
+    // True if any transition (including those of regions) targets the history of a state
+    final boolean hasHistory;
+
+    // Indexed by state id, the (event ids of the) timeouts declared by each state, see
+    // State.withTimeout. hasTimeouts includes the timeouts of regions.
+    final int[][] timeouts;
+    final boolean hasTimeouts;
+
+    // Tells which events are deferred by any state (including those of regions), see
+    // State.withDeferredEvent
+    final boolean[] deferredEvents;
+    final boolean hasDeferredEvents;
+
+    // True if any action (including those of regions) completes asynchronously, see AsyncAction
+    final boolean hasAsyncActions;
+
+    // The state entered initially, and which states can be active at all: the leaves that the
+    // initial state or the transitions of another reachable leaf lead to, and their ancestors.
+    // Only reachable leaves are compiled, the others have no transitions (so they never
+    // subscribe to anything) and no regions.
+    final int initialState;
+    final boolean[] reachable;
+
+    // Indexed by state id, the indices (in State.getTransitions) of the transitions of a
+    // reachable state that are not effective in any reachable leaf, as they are overridden
+    // wherever they are visible (see compileLeaf). They are left out of timeouts, deferred
+    // and handled events as well.
+    final int[][] shadowedTransitions;
+
+    // Ids that only depend on the path of a state (a hash of it), so that they are stable
+    // across changes to the hierarchy, e.g. for snapshots. sortedStableIds is sorted and
+    // stableIdStates holds the corresponding state ids.
+    final int[] stableIds;
+    private final int[] sortedStableIds;
+    private final int[] stableIdStates;
+
+    private final Map<String, Integer> pathToId;
+    private final Map<Object, Integer> eventToId;
+
+    private StateTable(List<State> states, List<String> paths, List<Integer> parents, String pathToInitialState,
+                       Map<Object, Integer> eventToId, List<Object> events) {
+        int n = states.size();
+        this.states = states.toArray(new State[n]);
+        this.paths = paths.toArray(new String[n]);
+        this.parents = new int[n];
+        this.initialSubStates = new int[n];
+        this.initialLeaves = new int[n];
+        this.lastDescendants = new int[n];
+        this.transitions = new Transition[n][];
+        this.transitionEvents = new int[n][];
+        this.routes = new Route[n][];
+        this.eventSlots = new int[n][];
+        this.regions = new FsmDefinition[n][];
+        this.subscribedEvents = new int[n][];
+        this.timeouts = new int[n][];
+        this.stableIds = new int[n];
+        this.sortedStableIds = new int[n];
+        this.stableIdStates = new int[n];
+        this.pathToId = new HashMap<String, Integer>(n * 2);
+        this.eventToId = eventToId;
+
+        for (int id = 0; id < n; id++) {
+            this.parents[id] = parents.get(id);
+            this.initialSubStates[id] = NONE;
+            this.pathToId.put(this.paths[id], id);
+        }
+
+        for (int id = 0; id < n; id++) {
+            int parent = this.parents[id];
+            if (parent != NONE && this.states[parent].getInitialSubState() == this.states[id]) {
+                this.initialSubStates[parent] = id;
+            }
+        }
+
+        // Sub states have higher ids than their parents, hence the reverse iteration
+        for (int id = n - 1; id >= 0; id--) {
+            int initialSubState = initialSubStates[id];
+            initialLeaves[id] = initialSubState == NONE ? id : initialLeaves[initialSubState];
+        }
+
+        // Ids are given depth first, so the descendants of a state are the ids following it
+        // up to its last descendant
+        for (int id = n - 1; id >= 0; id--) {
+            lastDescendants[id] = Math.max(lastDescendants[id], id);
+            int parent = this.parents[id];
+            if (parent != NONE) {
+                lastDescendants[parent] = Math.max(lastDescendants[parent], lastDescendants[id]);
+            }
+        }
+
+        long[] stableIdAndState = new long[n];
+        for (int id = 0; id < n; id++) {
+            stableIds[id] = stableId(this.paths[id]);
+            stableIdAndState[id] = ((long) stableIds[id] << 32) | id;
+        }
+        Arrays.sort(stableIdAndState);
+        for (int i = 0; i < n; i++) {
+            sortedStableIds[i] = (int) (stableIdAndState[i] >> 32);
+            stableIdStates[i] = (int) stableIdAndState[i];
+            if (i > 0 && sortedStableIds[i] == sortedStableIds[i - 1]) {
+                throw new IllegalArgumentException("The paths " + this.paths[stableIdStates[i - 1]]
+                        + " and " + this.paths[stableIdStates[i]] + " have the same stable id, rename one of the states");
+            }
+        }
+
+        this.events = events.toArray();
+        this.denseEventSlots = this.events.length <= MAX_DENSE_EVENTS;
+        int maxCode = NONE;
+        for (Object event : this.events) {
+            if (event instanceof EventCode) {
+                maxCode = Math.max(maxCode, ((EventCode) event).code);
+            }
+        }
+        this.codeEvents = new int[maxCode + 1];
+        this.codeEnums = new Class<?>[maxCode + 1];
+        Arrays.fill(codeEvents, NONE);
+        for (int event = 0; event < this.events.length; event++) {
+            if (this.events[event] instanceof EventCode) {
+                EventCode code = (EventCode) this.events[event];
+                codeEvents[code.code] = event;
+                codeEnums[code.code] = code.constant == null ? null : code.constant.getDeclaringClass();
+            }
+        }
+
+        // Verify all targets, including those of transitions that are never taken
+        for (int id = 0; id < n; id++) {
+            for (Transition transition: this.states[id].getTransitions()) {
+                if (transition.pathToTargetState() != null) {
+                    target(transition.pathToTargetState(), id);
+                }
+            }
+        }
+
+        this.initialState = id(pathToInitialState);
+        if (initialState == NONE) {
+            throw new IllegalArgumentException("Initial state needs to be provided");
+        }
+
+        // Only the leaves that can be reached from the initial state are compiled, following
+        // the routes of each compiled leaf. live tells which transitions of each state are
+        // effective in any of them.
+        this.reachable = new boolean[n];
+        boolean[][] live = new boolean[n][];
+        for (int id = 0; id < n; id++) {
+            live[id] = new boolean[this.states[id].getTransitions().size()];
+        }
+        int[] pending = new int[n];
+        int[] slots = new int[this.events.length]; // Shared by all leaves, see resolve
+        Arrays.fill(slots, NONE);
+        int count = reach(initialLeaves[initialState], pending, 0);
+        while (count > 0) {
+            int leaf = pending[--count];
+            compileRegions(leaf, eventToId, events);
+            compileLeaf(leaf, live, slots);
+            for (Route route : routes[leaf]) {
+                if (route == null) {
+                    continue;
+                }
+                if (route.history == NONE) {
+                    count = reach(route.target, pending, count);
+                    continue;
+                }
+                // The history of a state is one of its sub states (any descendant for deep
+                // history), which may be entered through its initial leaf
+                for (int state = route.history + 1; state <= lastDescendants[route.history]; state++) {
+                    if (route.deep || this.parents[state] == route.history) {
+                        count = reach(initialLeaves[state], pending, count);
+                    }
+                }
+            }
+        }
+        for (int id = n - 1; id >= 0; id--) {
+            if (reachable[id] && this.parents[id] != NONE) {
+                reachable[this.parents[id]] = true;
+            }
+        }
+
+        // Unreachable leaves handle no events
+        int[] noEventSlots = eventSlots(new int[0]);
+        for (int id = 0; id < n; id++) {
+            if (!reachable[id] && isLeaf(id)) {
+                transitions[id] = new Transition[0];
+                transitionEvents[id] = new int[0];
+                routes[id] = new Route[0];
+                eventSlots[id] = noEventSlots;
+                subscribedEvents[id] = new int[0];
+            }
+        }
+
+        boolean hasRegions = false;
+        boolean hasHistory = false;
+        boolean hasTimeouts = false;
+        boolean hasDeferredEvents = false;
+        boolean hasAsyncActions = false;
+        this.handledEvents = new boolean[this.events.length];
+        this.deferredEvents = new boolean[this.events.length];
+        this.shadowedTransitions = new int[n][];
+        for (int id = 0; id < n; id++) {
+            List<Integer> stateTimeouts = new ArrayList<Integer>();
+            List<Integer> stateShadowed = new ArrayList<Integer>();
+            if (reachable[id]) {
+                hasAsyncActions |= this.states[id].entryAction() instanceof AsyncAction
+                        || this.states[id].exitAction() instanceof AsyncAction;
+                List<Transition> stateTransitions = this.states[id].getTransitions();
+                for (int i = 0; i < stateTransitions.size(); i++) {
+                    Transition transition = stateTransitions.get(i);
+                    if (!live[id][i]) {
+                        stateShadowed.add(i);
+                        continue;
+                    }
+                    handledEvents[eventToId.get(transition.event())] = true;
+                    hasAsyncActions |= transition.action() instanceof AsyncAction;
+                    hasHistory |= isHistory(transition.pathToTargetState());
+                    if (transition.isDeferred()) {
+                        deferredEvents[eventToId.get(transition.event())] = true;
+                        hasDeferredEvents = true;
+                    }
+                    if (transition.event() instanceof Timeout) {
+                        stateTimeouts.add(eventToId.get(transition.event()));
+                    }
+                }
+            }
+            timeouts[id] = toArray(stateTimeouts);
+            shadowedTransitions[id] = toArray(stateShadowed);
+            hasTimeouts |= timeouts[id].length > 0;
+
+            if (regions[id] != null) {
+                hasRegions = true;
+                for (int i = 0; i < regions[id].length; i++) {
+                    for (int event = 0; event < handledEvents.length; event++) {
+                        handledEvents[event] |= regions[id][i].table.handledEvents[event];
+                        deferredEvents[event] |= regions[id][i].table.deferredEvents[event];
+                    }
+                    hasDeferredEvents |= regions[id][i].table.hasDeferredEvents;
+                    hasHistory |= regions[id][i].table.hasHistory;
+                    hasTimeouts |= regions[id][i].table.hasTimeouts;
+                    hasAsyncActions |= regions[id][i].table.hasAsyncActions;
+                }
+            }
+        }
+        this.hasRegions = hasRegions;
+        this.hasHistory = hasHistory;
+        this.hasTimeouts = hasTimeouts;
+        this.hasDeferredEvents = hasDeferredEvents;
+        this.hasAsyncActions = hasAsyncActions;
+    }
+
+    // True if an unreachable leaf would handle events (or have regions) had it been compiled,
+    // so that an instance can not be in it, e.g. when restored from a snapshot
+    boolean isPruned(int leaf) {
+        if (reachable[leaf]) {
+            return false;
+        }
+        for (int state = leaf; state != NONE; state = parents[state]) {
+            if (!states[state].getTransitions().isEmpty()) {
+                return true;
+            }
+        }
+        return !states[leaf].getRegions().isEmpty();
+    }
+
+    // Adds a leaf that has not been reached before to the pending ones, returns their count
+    private int reach(int leaf, int[] pending, int count) {
+        if (reachable[leaf]) {
+            return count;
+        }
+        reachable[leaf] = true;
+        pending[count] = leaf;
+        return count + 1;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    private void compileRegions(int leaf, Map<Object, Integer> eventToId, List<Object> events) {
+        List<State> stateRegions = states[leaf].getRegions();
+        if (!stateRegions.isEmpty()) {
+            regions[leaf] = new FsmDefinition[stateRegions.size()];
+            for (int i = 0; i < regions[leaf].length; i++) {
+                State region = stateRegions.get(i);
+                regions[leaf][i] = new FsmDefinition("/" + region.getName(), Collections.singletonList(region),
+                        eventToId, events);
+            }
+        }
+    }
+
+    static StateTable compile(List<State> topStates, String pathToInitialState) {
+        Map<Object, Integer> eventToId = new HashMap<Object, Integer>();
+        List<Object> events = new ArrayList<Object>();
+        for (State state: topStates) {
+            collectEvents(state, eventToId, events);
+        }
+
+        return compile(topStates, pathToInitialState, eventToId, events);
+    }
+
+    // Compiles a hierarchy with the given events, which include those of all its states
+    static StateTable compile(List<State> topStates, String pathToInitialState,
+                              Map<Object, Integer> eventToId, List<Object> events) {
+        List<State> states = new ArrayList<State>();
+        List<String> paths = new ArrayList<String>();
+        List<Integer> parents = new ArrayList<Integer>();
+
+        for (State state: topStates) {
+            collect(state, "/" + state.getName(), NONE, states, paths, parents);
+        }
+
+        return new StateTable(states, paths, parents, pathToInitialState, eventToId, events);
+    }
+
+    // Gives every distinct event of the state, its sub states and regions an id. Codes are
+    // equal by value, so the code of an enum constant that equals one of another enum (or an
+    // int code) is rejected rather than treated as the same event.
+    private static void collectEvents(State state, Map<Object, Integer> eventToId, List<Object> events) {
+        for (Transition transition: state.getTransitions()) {
+            Integer id = eventToId.get(transition.event());
+            if (id == null) {
+                eventToId.put(transition.event(), events.size());
+                events.add(transition.event());
+            } else if (transition.event() instanceof EventCode
+                    && !((EventCode) transition.event()).isSameKind((EventCode) events.get(id))) {
+                throw new IllegalArgumentException("The events " + events.get(id) + " and " + transition.event()
+                        + " have the same code, use constants of one enum or int codes only");
+            }
+        }
+        for (State subState: state.getSubStates()) {
+            collectEvents(subState, eventToId, events);
+        }
+        for (State region: state.getRegions()) {
+            collectEvents(region, eventToId, events);
+        }
+    }
+
+    private static void collect(State state, String path, int parent,
+                                List<State> states, List<String> paths, List<Integer> parents) {
+        int id = states.size();
+        states.add(state);
+        paths.add(path);
+        parents.add(parent);
+
+        for (State subState: state.getSubStates()) {
+            collect(subState, path + "/" + subState.getName(), id, states, paths, parents);
+        }
+    }
+
+    boolean isLeaf(int id) {
+        return initialSubStates[id] == NONE;
+    }
+
+    // True if the event is an Observable, rather than e.g. a Timeout or an EventCode
+    boolean isObservable(int event) {
+        return events[event] instanceof Observable;
+    }
+
+    // Returns the event id of the code, or NONE if no transition is triggered by it. The code
+    // is the ordinal of a constant of enumClass, or an int code if enumClass is null, and
+    // only matches transitions for the same kind of code.
+    int codeEvent(int code, Class<?> enumClass) {
+        return code >= 0 && code < codeEvents.length && codeEnums[code] == enumClass ? codeEvents[code] : NONE;
+    }
+
+    // Returns the index of the effective transition of the leaf for the event, or NONE
+    int slot(int leaf, int event) {
+        int[] leafEventSlots = eventSlots[leaf];
+        if (denseEventSlots) {
+            return leafEventSlots[event];
+        }
+        int count = leafEventSlots.length >>> 1;
+        int i = Arrays.binarySearch(leafEventSlots, 0, count, event);
+        return i < 0 ? NONE : leafEventSlots[count + i];
+    }
+
+    // The eventSlots row of a leaf, given the events of its effective transitions
+    private int[] eventSlots(int[] leafTransitionEvents) {
+        if (denseEventSlots) {
+            int[] row = new int[events.length];
+            Arrays.fill(row, NONE);
+            for (int slot = 0; slot < leafTransitionEvents.length; slot++) {
+                row[leafTransitionEvents[slot]] = slot;
+            }
+            return row;
+        }
+
+        long[] pairs = new long[leafTransitionEvents.length];
+        for (int slot = 0; slot < pairs.length; slot++) {
+            pairs[slot] = (long) leafTransitionEvents[slot] << 32 | slot;
+        }
+        Arrays.sort(pairs);
+        int[] row = new int[2 * pairs.length];
+        for (int i = 0; i < pairs.length; i++) {
+            row[i] = (int) (pairs[i] >>> 32);
+            row[pairs.length + i] = (int) pairs[i];
+        }
+        return row;
+    }
+
+    // True if the effective transition of the leaf for the event is a deferral
+    boolean defers(int leaf, int event) {
+        int slot = slot(leaf, event);
+        return slot != NONE && transitions[leaf][slot].isDeferred();
+    }
+
+    // True if ancestor is a proper ancestor of the state
+    boolean isAncestor(int ancestor, int id) {
+        return ancestor < id && id <= lastDescendants[ancestor];
+    }
+
+    private static boolean isHistory(String path) {
+        return path != null && (path.endsWith(HISTORY) || path.endsWith(DEEP_HISTORY));
+    }
+
+    // Returns the id of the state with the given path, or NONE if there is no such state
+    int id(String path) {
+        Integer id = pathToId.get(path);
+        return id == null ? NONE : id;
+    }
+
+    // Returns the id of the event, or NONE if no transition is triggered by it
+    int eventId(Object event) {
+        Integer id = eventToId.get(event);
+        return id == null ? NONE : id;
+    }
+
+    // Returns the id of the state with the given stable id, or NONE if there is no such state
+    int idOfStable(int stableId) {
+        int i = Arrays.binarySearch(sortedStableIds, stableId);
+        return i < 0 ? NONE : stableIdStates[i];
+    }
+
+    // 32 bit FNV-1a hash of the path
+    private static int stableId(String path) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            hash = (hash ^ (c & 0xff)) * 0x01000193;
+            hash = (hash ^ (c >>> 8)) * 0x01000193;
+        }
+        return hash;
+    }
+
+    // The ancestors of a state, top state first
+    List<State> ancestors(int id) {
+        List<State> ancestors = new ArrayList<State>();
+        for (int parent = parents[id]; parent != NONE; parent = parents[parent]) {
+            ancestors.add(states[parent]);
+        }
+        Collections.reverse(ancestors);
+        return ancestors;
+    }
+
+    // The effective transitions of a leaf, which for a reachable leaf are those it was
+    // compiled with
+    List<Transition> effectiveTransitions(int leaf) {
+        if (reachable[leaf]) {
+            return Arrays.asList(transitions[leaf]);
+        }
+        List<Transition> effective = new ArrayList<Transition>();
+        int[] slots = new int[events.length];
+        Arrays.fill(slots, NONE);
+        resolve(leaf, effective, slots, null);
+        return effective;
+    }
+
+    // Only the first transition for an event is effective, this is to handle "overriding"
+    // of event handling (ultimate hook pattern). Looks at the transitions of the leaf followed
+    // by those of its ancestors (top state first), marking the effective ones as live, and
+    // returns the events of the effective transitions. slots has to be all NONE, it is used
+    // to spot overridden transitions and is left all NONE again, so that resolving a leaf
+    // takes time in the number of its visible transitions.
+    private int[] resolve(int leaf, List<Transition> effective, int[] slots, boolean[][] live) {
+        List<Integer> leafTransitionEvents = new ArrayList<Integer>();
+        List<Integer> visible = new ArrayList<Integer>();
+        visible.add(leaf);
+        for (int parent = parents[leaf]; parent != NONE; parent = parents[parent]) {
+            visible.add(1, parent);
+        }
+        for (int state : visible) {
+            List<Transition> stateTransitions = states[state].getTransitions();
+            for (int i = 0; i < stateTransitions.size(); i++) {
+                int event = eventToId.get(stateTransitions.get(i).event());
+                if (slots[event] == NONE) {
+                    slots[event] = effective.size();
+                    leafTransitionEvents.add(event);
+                    effective.add(stateTransitions.get(i));
+                    if (live != null) {
+                        live[state][i] = true;
+                    }
+                }
+            }
+        }
+        for (int event : leafTransitionEvents) {
+            slots[event] = NONE;
+        }
+        return toArray(leafTransitionEvents);
+    }
+
+    private void compileLeaf(int leaf, boolean[][] live, int[] slots) {
+        List<Transition> effective = new ArrayList<Transition>();
+        int[] leafTransitionEvents = resolve(leaf, effective, slots, live);
+
+        List<State> sourceConfiguration = ancestors(leaf);
+        Map<Integer, Route> routesByTarget = new HashMap<Integer, Route>();
+        Route[] leafRoutes = new Route[effective.size()];
+
+        for (int i = 0; i < leafRoutes.length; i++) {
+            String pathToTargetState = effective.get(i).pathToTargetState();
+            if (pathToTargetState == null) {
+                continue; // Internal transition
+            }
+
+            if (id(pathToTargetState) == NONE && isHistory(pathToTargetState)) {
+                leafRoutes[i] = new Route(target(pathToTargetState, leaf), pathToTargetState.endsWith(DEEP_HISTORY));
+                continue;
+            }
+
+            int targetLeaf = initialLeaves[target(pathToTargetState, leaf)];
+            Route route = routesByTarget.get(targetLeaf);
+            if (route == null) {
+                TransitionPath path = TransitionPathCalculator.calculateTransitionPath(
+                        sourceConfiguration, ancestors(targetLeaf));
+
+                List<State> statesToExit = new ArrayList<State>();
+                statesToExit.add(states[leaf]);
+                statesToExit.addAll(path.getStatesToExit());
+                List<State> statesToEnter = new ArrayList<State>(path.getStatesToEnter());
+                statesToEnter.add(states[targetLeaf]);
+
+                // The states to exit are the leaf and its closest ancestors, the states to
+                // enter are the closest ancestors of the target leaf and the leaf itself
+                int[] idsToExit = new int[statesToExit.size()];
+                for (int j = 0, id = leaf; j < idsToExit.length; j++, id = parents[id]) {
+                    idsToExit[j] = id;
+                }
+                int[] idsToEnter = new int[statesToEnter.size()];
+                for (int j = idsToEnter.length - 1, id = targetLeaf; j >= 0; j--, id = parents[id]) {
+                    idsToEnter[j] = id;
+                }
+
+                route = new Route(targetLeaf,
+                        statesToExit.toArray(new State[statesToExit.size()]),
+                        statesToEnter.toArray(new State[statesToEnter.size()]),
+                        idsToExit, idsToEnter);
+                routesByTarget.put(targetLeaf, route);
+            }
+            leafRoutes[i] = route;
+        }
+
+        transitions[leaf] = effective.toArray(new Transition[effective.size()]);
+        transitionEvents[leaf] = leafTransitionEvents;
+        routes[leaf] = leafRoutes;
+        eventSlots[leaf] = eventSlots(leafTransitionEvents);
+
+        // Only Observables are subscribed to, timeouts are triggered by a timer and codes are
+        // fired. Without regions only the events of the effective transitions need to be
+        // looked at, so that compiling a leaf does not take time in the number of events.
+        List<Integer> subscribed = new ArrayList<Integer>();
+        if (regions[leaf] == null) {
+            for (int event : transitionEvents[leaf]) {
+                if (isObservable(event)) {
+                    subscribed.add(event);
+                }
+            }
+            Collections.sort(subscribed);
+        } else {
+            for (int event = 0; event < events.length; event++) {
+                boolean handledByRegions = false;
+                for (int i = 0; i < regions[leaf].length; i++) {
+                    handledByRegions |= regions[leaf][i].table.handledEvents[event];
+                }
+                if ((slot(leaf, event) != NONE || handledByRegions) && isObservable(event)) {
+                    subscribed.add(event);
+                }
+            }
+        }
+        subscribedEvents[leaf] = new int[subscribed.size()];
+        for (int i = 0; i < subscribed.size(); i++) {
+            subscribedEvents[leaf][i] = subscribed.get(i);
+        }
+    }
+
+    // Returns the id of the target state, which for a history target (unless there is a state
+    // with that very path) is the state whose history it is
+    private int target(String pathToTargetState, int source) {
+        int target = id(pathToTargetState);
+        if (target == NONE && isHistory(pathToTargetState)) {
+            int suffix = pathToTargetState.endsWith(DEEP_HISTORY) ? DEEP_HISTORY.length() : HISTORY.length();
+            target = id(pathToTargetState.substring(0, pathToTargetState.length() - suffix));
+            if (target != NONE && isLeaf(target)) {
+                throw new IllegalArgumentException("Transition target " + pathToTargetState
+                        + " in " + paths[source] + " is the history of a state without sub states");
+            }
+        }
+        if (target == NONE) {
+            throw new IllegalArgumentException("Transition target " + pathToTargetState
+                    + " in " + paths[source] + " is not a valid state");
+        }
+        return target;
+    }
+}
@@ -0,0 +1,300 @@
+package rxfsm;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// An FsmMetrics implementation that counts transitions per source state, target state and
+// event, and keeps latency histograms of the time spent in each state, of entry and exit
+// actions per state and of guards and transition actions per transition. All counters are
+// allocated as the metrics are bound to a definition, and are striped over a number of
+// arrays (picked by thread) so that Fsms on different threads can share one instance
+// without contending. Recording never allocates.
+//
+// Histograms have power of two buckets: bucket i counts durations of at most 2^i nanoseconds
+// (above 2^(i-1)), the last bucket counts everything else.
+public final class StripedFsmMetrics implements FsmMetrics {
+
+    static final int BUCKETS = 36;
+    private static final int COUNT = BUCKETS;
+    private static final int SUM = BUCKETS + 1;
+    private static final int HISTOGRAM = BUCKETS + 2;
+    private static final String[] HISTOGRAMS =
+            {"time_in_state", "entry_action", "exit_action", "guard", "transition_action"};
+
+    private final int stripes;
+    private volatile FsmDefinition definition; // Written last as the metrics are bound
+    private int[] slotOffsets; // Offset of the first transition of each leaf state
+    private int[] slotSources; // The leaf state of each transition
+    private int slots;
+    private String[] eventNames;
+    private int timeInState, entryActions, exitActions, guards, transitionActions;
+    private AtomicLongArray[] counters;
+
+    public StripedFsmMetrics() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public StripedFsmMetrics(int stripes) {
+        // Round up to a power of two, so that a stripe can be picked by masking
+        this.stripes = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+    }
+
+    @Override
+    public synchronized void bind(FsmDefinition definition) {
+        if (this.definition == definition) {
+            return;
+        }
+        if (this.definition != null) {
+            throw new IllegalStateException("The metrics are already bound to another definition");
+        }
+
+        StateTable table = definition.table;
+        int states = table.states.length;
+        int[] slotOffsets = new int[states];
+        int slots = 0;
+        for (int state = 0; state < states; state++) {
+            slotOffsets[state] = slots;
+            if (table.transitions[state] != null) {
+                slots += table.transitions[state].length;
+            }
+        }
+
+        int[] slotSources = new int[slots];
+        for (int state = 0; state < states; state++) {
+            for (int slot = slotOffsets[state]; slot < (state + 1 < states ? slotOffsets[state + 1] : slots); slot++) {
+                slotSources[slot] = state;
+            }
+        }
+
+        // Observables have no name, they are named after the first transition for them
+        String[] eventNames = new String[table.events.length];
+        for (int state = 0; state < states; state++) {
+            for (int i = 0; i < table.states[state].getTransitions().size(); i++) {
+                int event = table.eventId(table.states[state].getTransitions().get(i).event());
+                if (eventNames[event] == null) {
+                    eventNames[event] = eventName(table.events[event], table.paths[state] + "#" + i);
+                }
+            }
+        }
+
+        this.eventNames = eventNames;
+        this.slotOffsets = slotOffsets;
+        this.slotSources = slotSources;
+        this.slots = slots;
+        this.timeInState = slots;
+        this.entryActions = timeInState + states * HISTOGRAM;
+        this.exitActions = entryActions + states * HISTOGRAM;
+        this.guards = exitActions + states * HISTOGRAM;
+        this.transitionActions = guards + slots * HISTOGRAM;
+
+        AtomicLongArray[] counters = new AtomicLongArray[stripes];
+        for (int i = 0; i < stripes; i++) {
+            counters[i] = new AtomicLongArray(transitionActions + slots * HISTOGRAM);
+        }
+        this.counters = counters;
+        this.definition = definition;
+    }
+
+    private static String eventName(Object event, String transition) {
+        if (event instanceof EventCode) {
+            EventCode code = (EventCode) event;
+            return code.constant == null ? Integer.toString(code.code) : code.constant.name();
+        }
+        if (event instanceof Timeout) {
+            return "timeout " + ((Timeout) event).nanos + "ns";
+        }
+        return transition;
+    }
+
+    @Override
+    public void onTransition(int source, int target, int event) {
+        stripe().incrementAndGet(slot(source, event));
+    }
+
+    @Override
+    public void onTimeInState(int state, long nanos) {
+        record(timeInState + state * HISTOGRAM, nanos);
+    }
+
+    @Override
+    public void onEntryAction(int state, long nanos) {
+        record(entryActions + state * HISTOGRAM, nanos);
+    }
+
+    @Override
+    public void onExitAction(int state, long nanos) {
+        record(exitActions + state * HISTOGRAM, nanos);
+    }
+
+    @Override
+    public void onGuard(int source, int event, long nanos) {
+        record(guards + slot(source, event) * HISTOGRAM, nanos);
+    }
+
+    @Override
+    public void onTransitionAction(int source, int event, long nanos) {
+        record(transitionActions + slot(source, event) * HISTOGRAM, nanos);
+    }
+
+    private int slot(int source, int event) {
+        return slotOffsets[source] + definition.table.slot(source, event);
+    }
+
+    private AtomicLongArray stripe() {
+        return counters[(int) Thread.currentThread().getId() & (stripes - 1)];
+    }
+
+    private void record(int histogram, long nanos) {
+        int bucket = bucket(nanos);
+        AtomicLongArray stripe = stripe();
+        stripe.incrementAndGet(histogram + bucket);
+        stripe.incrementAndGet(histogram + COUNT);
+        stripe.addAndGet(histogram + SUM, nanos);
+    }
+
+    // The bucket that counts the duration, the first one whose upper bound is not below it
+    static int bucket(long nanos) {
+        return nanos <= 1 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(nanos - 1), BUCKETS - 1);
+    }
+
+    private long sum(int index) {
+        long sum = 0;
+        for (AtomicLongArray stripe : counters) {
+            sum += stripe.get(index);
+        }
+        return sum;
+    }
+
+    // The number of times an event has triggered a transition from a leaf state
+    public long transitionCount(String pathToSource, Object event) {
+        if (definition == null) {
+            throw new IllegalStateException("The metrics are not bound to a definition");
+        }
+        int source = definition.stateId(pathToSource);
+        if (!definition.table.isLeaf(source)) {
+            throw new IllegalArgumentException(pathToSource + " is not a leaf state");
+        }
+        int slot = definition.table.slot(source, definition.eventId(event));
+        return slot == StateTable.NONE ? 0 : sum(slotOffsets[source] + slot);
+    }
+
+    // A snapshot of all non zero counters. Transition counters are keyed as
+    // transitions{source="..",target="..",event=".."}, where the event is the code (or the
+    // name of the enum constant) of a fired event, e.g. "timeout 5000000ns" for a timeout,
+    // and for an Observable the path of the first state with a transition for it and the
+    // index of that transition in the state, e.g. "/s1#0". Histograms are keyed as e.g.
+    // time_in_state_count{state=".."}, time_in_state_sum_nanos{state=".."} and
+    // time_in_state_bucket{state="..",le=".."}, where le is the upper bound of the bucket in
+    // nanoseconds and the buckets are cumulative.
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<String, Long>();
+        if (definition == null) {
+            return snapshot;
+        }
+
+        for (int slot = 0; slot < slots; slot++) {
+            long count = sum(slot);
+            if (count != 0) {
+                snapshot.put("transitions{" + transitionLabels(slot) + "}", count);
+            }
+        }
+
+        for (int kind = 0; kind < HISTOGRAMS.length; kind++) {
+            for (int i = 0; i < histogramCount(kind); i++) {
+                int histogram = histogramOffset(kind, i);
+                long count = sum(histogram + COUNT);
+                if (count == 0) {
+                    continue;
+                }
+
+                String name = HISTOGRAMS[kind];
+                String labels = histogramLabels(kind, i);
+                snapshot.put(name + "_count{" + labels + "}", count);
+                snapshot.put(name + "_sum_nanos{" + labels + "}", sum(histogram + SUM));
+                long cumulative = 0;
+                for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                    cumulative += sum(histogram + bucket);
+                    String le = bucket == BUCKETS - 1 ? "+Inf" : Long.toString(1L << bucket);
+                    snapshot.put(name + "_bucket{" + labels + ",le=\"" + le + "\"}", cumulative);
+                }
+            }
+        }
+
+        return snapshot;
+    }
+
+    // All non zero counters in the Prometheus text exposition format, durations in seconds
+    public String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+        if (definition == null) {
+            return "";
+        }
+
+        text.append("# TYPE rxfsm_transitions_total counter\n");
+        for (int slot = 0; slot < slots; slot++) {
+            long count = sum(slot);
+            if (count != 0) {
+                text.append("rxfsm_transitions_total{").append(transitionLabels(slot)).append("} ")
+                        .append(count).append('\n');
+            }
+        }
+
+        for (int kind = 0; kind < HISTOGRAMS.length; kind++) {
+            String name = "rxfsm_" + HISTOGRAMS[kind] + "_seconds";
+            text.append("# TYPE ").append(name).append(" histogram\n");
+            for (int i = 0; i < histogramCount(kind); i++) {
+                int histogram = histogramOffset(kind, i);
+                long count = sum(histogram + COUNT);
+                if (count == 0) {
+                    continue;
+                }
+
+                String labels = histogramLabels(kind, i);
+                long cumulative = 0;
+                for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                    cumulative += sum(histogram + bucket);
+                    String le = bucket == BUCKETS - 1 ? "+Inf" : Double.toString((1L << bucket) / 1e9);
+                    text.append(name).append("_bucket{").append(labels).append(",le=\"").append(le).append("\"} ")
+                            .append(cumulative).append('\n');
+                }
+                text.append(name).append("_sum{").append(labels).append("} ")
+                        .append(sum(histogram + SUM) / 1e9).append('\n');
+                text.append(name).append("_count{").append(labels).append("} ")
+                        .append(count).append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    // The first three kinds of histograms are kept per state, the others per transition
+    private int histogramCount(int kind) {
+        return kind < 3 ? definition.stateCount() : slots;
+    }
+
+    private int histogramOffset(int kind, int i) {
+        int[] offsets = {timeInState, entryActions, exitActions, guards, transitionActions};
+        return offsets[kind] + i * HISTOGRAM;
+    }
+
+    private String histogramLabels(int kind, int i) {
+        return kind < 3 ? "state=\"" + definition.statePath(i) + "\"" : transitionLabels(i);
+    }
+
+    private String transitionLabels(int slot) {
+        StateTable table = definition.table;
+        int source = slotSources[slot];
+        int index = slot - slotOffsets[source];
+        Route route = table.routes[source][index];
+        String target;
+        if (route == null) {
+            target = table.paths[source];
+        } else if (route.history != StateTable.NONE) {
+            target = table.paths[route.history] + (route.deep ? StateTable.DEEP_HISTORY : StateTable.HISTORY);
+        } else {
+            target = table.paths[route.target];
+        }
+        return "source=\"" + table.paths[source] + "\",target=\"" + target
+                + "\",event=\"" + eventNames[table.transitionEvents[source][index]] + "\"";
+    }
+}
@@ -0,0 +1,17 @@
+package rxfsm;
+
+// The event of a timeout transition (see State.withTimeout). Every timeout is an event of
+// its own, which is triggered by a timer rather than by an Observable.
+final class Timeout {
+
+    final long nanos;
+
+    Timeout(long nanos) {
+        this.nanos = nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "timeout after " + nanos + " ns";
+    }
+}
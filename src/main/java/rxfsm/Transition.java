@@ -1,5 +1,8 @@
 package rxfsm;
 
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+
 import rx.Observable;
 import rx.functions.Action1;
 import rx.functions.Func1;
@@ -8,53 +11,142 @@ public class Transition {
 
     // private final String description;
     private final Object event;
-    private final Observable<String> observable;
+    private final String pathToTargetState;
+    private final Action1<Object> action;
+    private final Func1<Object, Boolean> guard;
+    private final boolean deferred;
+    private final LongConsumer longAction;
+    private final LongPredicate longGuard;
 
+    @SuppressWarnings("unchecked")
     public <T> Transition(String pathToTargetState, Observable<T> event, Action1<T> action) {
-		this.observable = event
-                .map((T t) -> {
-                    action.call(t);
-                    return pathToTargetState;
-                });
         this.event = event;
+        this.pathToTargetState = pathToTargetState;
+        this.action = (Action1<Object>) action;
+        this.guard = null;
+        this.deferred = false;
+        this.longAction = null;
+        this.longGuard = null;
     }
 
+    @SuppressWarnings("unchecked")
     public <T> Transition(String pathToTargetState, Observable<T> event, Action1<T> action, Func1<? super T, Boolean> guard) {
-        this.observable = event
-                .filter(guard)
-                .map((T t) -> {
-                    action.call(t);
-                    return pathToTargetState;
-                });
         this.event = event;
+        this.pathToTargetState = pathToTargetState;
+        this.action = (Action1<Object>) action;
+        this.guard = (Func1<Object, Boolean>) guard;
+        this.deferred = false;
+        this.longAction = null;
+        this.longGuard = null;
     }
 
     // Internal transition
+    @SuppressWarnings("unchecked")
     public <T> Transition(Observable<T> event, Action1<T> action) {
-        this.observable = event
-                .map((T t) -> {
-                    action.call(t);
-                    return null;
-                });
         this.event = event;
+        this.pathToTargetState = null;
+        this.action = (Action1<Object>) action;
+        this.guard = null;
+        this.deferred = false;
+        this.longAction = null;
+        this.longGuard = null;
     }
 
     // Internal transition
+    @SuppressWarnings("unchecked")
     public <T> Transition(Observable<T> event, Action1<T> action, Func1<? super T, Boolean> guard) {
-        this.observable = event
-                .filter(guard)
-                .map((T t) -> {
-                    action.call(t);
-                    return null;
-                });
         this.event = event;
+        this.pathToTargetState = null;
+        this.action = (Action1<Object>) action;
+        this.guard = (Func1<Object, Boolean>) guard;
+        this.deferred = false;
+        this.longAction = null;
+        this.longGuard = null;
     }
 
-	Observable<String> observable() {
-		return observable;
-	}
+    // A transition triggered by something else than an Observable, e.g. a Timeout
+    Transition(String pathToTargetState, Object event, Action1<Object> action) {
+        this.event = event;
+        this.pathToTargetState = pathToTargetState;
+        this.action = action;
+        this.guard = null;
+        this.deferred = false;
+        this.longAction = null;
+        this.longGuard = null;
+    }
 
-    Object event() {
+    // The deferral of an event, see State.withDeferredEvent
+    Transition(Object event) {
+        this.event = event;
+        this.pathToTargetState = null;
+        this.action = null;
+        this.guard = null;
+        this.deferred = true;
+        this.longAction = null;
+        this.longGuard = null;
+    }
+
+    // A transition triggered by an int code (see Fsm.fire), internal if the path is null. The
+    // guard may be null. The payload is only boxed if the transition is fired with a boxed
+    // value, e.g. as a deferred event.
+    Transition(String pathToTargetState, EventCode event, LongConsumer action, LongPredicate guard) {
+        this.event = event;
+        this.pathToTargetState = pathToTargetState;
+        this.action = value -> action.accept((Long) value);
+        this.guard = guard == null ? null : value -> guard.test((Long) value);
+        this.deferred = false;
+        this.longAction = action;
+        this.longGuard = guard;
+    }
+
+    public Object event() {
         return this.event;
     }
-}
\ No newline at end of file
+
+    // null for internal transitions
+    public String pathToTargetState() {
+        return this.pathToTargetState;
+    }
+
+    Action1<Object> action() {
+        return action;
+    }
+
+    // null if the transition has no guard
+    Func1<Object, Boolean> guard() {
+        return guard;
+    }
+
+    // True if the event is deferred rather than triggering a transition
+    public boolean isDeferred() {
+        return deferred;
+    }
+
+    // Evaluates the guard and, if the event is accepted, executes the action.
+    // Returns false if the guard rejected the event.
+    boolean fire(Object value) {
+        if (!accepts(value)) {
+            return false;
+        }
+        execute(value);
+        return true;
+    }
+
+    boolean accepts(Object value) {
+        return guard == null || guard.call(value);
+    }
+
+    void execute(Object value) {
+        action.call(value);
+    }
+
+    // The unboxed counterpart of fire, only for transitions triggered by codes
+
+    boolean fire(long payload) {
+        if (longGuard != null && !longGuard.test(payload)) {
+            return false;
+        }
+        longAction.accept(payload);
+        return true;
+    }
+}
@@ -27,14 +27,22 @@ public class TransitionPathCalculator {
             }
         }
 
-        return new TransitionPath(new ArrayList<State>(),  new ArrayList<State>());
+        // One configuration contains the other, e.g. when transitioning from a sub state to a
+        // top state, the states below the common ones are exited and entered
+        List<State> toExit = iteratorToList(null, sourceConfigIterator);
+        Collections.reverse(toExit); // exit states in reverse order
+        List<State> toEnter = iteratorToList(null, targetConfigIterator);
+        return new TransitionPath(toExit, toEnter);
     }
 
     private static <T> ArrayList<T> iteratorToList(T head, ListIterator<T> rest)
     {
         ArrayList<T> list = new ArrayList<T>();
 
-        list.add(head);
+        if (head != null)
+        {
+            list.add(head);
+        }
 
         while (rest.hasNext())
         {
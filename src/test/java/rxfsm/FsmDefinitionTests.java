@@ -0,0 +1,544 @@
+package rxfsm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import rx.subjects.*;
+
+public class FsmDefinitionTests {
+
+    @Test
+    public void instancesShareDefinition() {
+        List<String> result = new ArrayList<String>();
+
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+
+        FsmDefinition definition = Fsm.create()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withOnEntry(() -> result.add("enter s1"))
+                        .withOnExit(() -> result.add("exit s1"))
+                        .withTransition("/s2/s2_2", t1, s -> result.add("t1 triggered: " + s)),
+                    new State("s2")
+                        .withInitialSubState(new State("s2_1"))
+                        .withSubState(new State("s2_2")
+                            .withTransition("/s1", t2, s -> result.add("t2 triggered: " + s), s -> s.equals("c"))))
+                .define();
+
+        FsmInstance[] instances = definition.newInstances(2);
+        int e1 = definition.eventId(t1);
+        int e2 = definition.eventId(t2);
+
+        instances[0].dispatch(e1, "a");
+        instances[0].dispatch(e2, "b");
+        assertEquals("/s2/s2_2", instances[0].getCurrentStatePath());
+        assertEquals("/s1", instances[1].getCurrentStatePath());
+
+        instances[0].dispatch(e2, "c");
+        assertEquals("/s1", instances[0].getCurrentStatePath());
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("enter s1");
+        expected.add("enter s1");
+        expected.add("t1 triggered: a");
+        expected.add("exit s1");
+        expected.add("t2 triggered: c");
+        expected.add("enter s1");
+
+        assertEquals(expected, result);
+    }
+
+    @Test
+    public void fsmsShareDefinition() {
+        List<String> result = new ArrayList<String>();
+
+        PublishSubject<String> t1 = PublishSubject.create();
+
+        FsmDefinition definition = Fsm.create()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withTransition("/s2", t1, s -> result.add("t1 triggered from s1: " + s)),
+                    new State("s2"))
+                .define();
+
+        Fsm fsm1 = Fsm.create(definition);
+        Fsm fsm2 = Fsm.create(definition).withPersistentSubscriptions();
+        fsm1.activate();
+        fsm2.activate();
+
+        t1.onNext("a");
+        t1.onNext("b");
+
+        assertEquals(Arrays.asList("t1 triggered from s1: a", "t1 triggered from s1: a"), result);
+    }
+
+    @Test
+    public void snapshotAndRestore() {
+        List<String> result = new ArrayList<String>();
+
+        PublishSubject<String> t1 = PublishSubject.create();
+
+        FsmDefinition definition = Fsm.create()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withTransition("/s2/s2_2", t1, s -> {}),
+                    new State("s2")
+                        .withInitialSubState(new State("s2_1"))
+                        .withSubState(new State("s2_2")))
+                .define();
+
+        FsmInstance[] instances = definition.newInstances(3);
+        instances[1].dispatch(definition.eventId(t1), "a");
+        for (int i = 0; i < instances.length; i++) {
+            instances[i].setContext(i);
+        }
+
+        ContextCodec<Integer> codec = new ContextCodec<Integer>() {
+            @Override
+            public void write(Integer context, ByteBuffer buffer) {
+                buffer.putInt(context);
+            }
+
+            @Override
+            public Integer read(ByteBuffer buffer) {
+                return buffer.getInt();
+            }
+        };
+
+        ByteBuffer buffer = ByteBuffer.allocate(definition.snapshotSize(3) + 3 * 4);
+        definition.snapshot(instances, buffer, codec);
+        buffer.flip();
+
+        // States are added and reordered, and the entry actions are run
+        FsmDefinition changed = Fsm.create()
+                .withInitialState("/s0")
+                .withTopStates(
+                    new State("s0"),
+                    new State("s2")
+                        .withOnEntry(() -> result.add("enter s2"))
+                        .withInitialSubState(new State("s2_1"))
+                        .withSubState(new State("s2_2")
+                            .withOnEntry(() -> result.add("enter s2_2"))),
+                    new State("s1"))
+                .define();
+
+        FsmInstance[] restored = changed.restore(buffer, codec, true);
+        assertEquals(3, restored.length);
+        assertEquals("/s1", restored[0].getCurrentStatePath());
+        assertEquals("/s2/s2_2", restored[1].getCurrentStatePath());
+        assertEquals("/s1", restored[2].getCurrentStatePath());
+        assertEquals(2, restored[2].getContext());
+        assertEquals(Arrays.asList("enter s2", "enter s2_2"), result);
+    }
+
+    @Test
+    public void snapshotRegions() {
+        PublishSubject<String> t1 = PublishSubject.create();
+
+        FsmDefinition definition = Fsm.create()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withRegions(
+                            new State("r1")
+                                .withInitialSubState(new State("a")
+                                    .withTransition("/r1/b", t1, s -> {}))
+                                .withSubState(new State("b")),
+                            new State("r2")))
+                .define();
+
+        FsmInstance[] instances = definition.newInstances(2);
+        instances[0].dispatch(definition.eventId(t1), "a");
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        definition.snapshot(instances, buffer);
+        buffer.flip();
+
+        FsmInstance[] restored = definition.restore(buffer);
+        assertEquals(Arrays.asList("/s1/r1/b", "/s1/r2"), restored[0].getCurrentStatePaths());
+        assertEquals(Arrays.asList("/s1/r1/a", "/s1/r2"), restored[1].getCurrentStatePaths());
+    }
+
+    @Test
+    public void restoreFsm() {
+        List<String> result = new ArrayList<String>();
+
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+
+        Fsm fsm = Fsm.create()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withOnEntry(() -> result.add("enter s1"))
+                        .withTransition("/s2", t1, s -> {}),
+                    new State("s2")
+                        .withOnEntry(() -> result.add("enter s2"))
+                        .withOnExit(() -> result.add("exit s2"))
+                        .withTransition("/s1", t2, s -> {}));
+        fsm.activate();
+        t1.onNext("a");
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        fsm.snapshot(buffer);
+        buffer.flip();
+        result.clear();
+
+        Fsm restored = Fsm.create(fsm.define());
+        restored.restore(buffer);
+        assertEquals("/s2", restored.currentStatePath());
+
+        t2.onNext("b");
+        assertEquals(Arrays.asList("exit s2", "enter s1", "exit s2", "enter s1"), result);
+    }
+
+    @Test
+    public void deferredEventsInRegions() {
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+
+        FsmDefinition definition = Fsm.create()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withRegions(
+                            new State("r1")
+                                .withInitialSubState(new State("a")
+                                    .withDeferredEvent(t2)
+                                    .withTransition("/r1/b", t1, s -> {}))
+                                .withSubState(new State("b")
+                                    .withTransition("/r1/a", t2, s -> {})),
+                            new State("r2")
+                                .withInitialSubState(new State("a"))))
+                .define();
+
+        FsmInstance instance = definition.newInstance();
+        instance.dispatch(definition.eventId(t2), "a");
+        assertEquals(1, instance.getDeferredEventCount());
+
+        instance.dispatch(definition.eventId(t1), "b");
+        assertEquals(0, instance.getDeferredEventCount());
+        assertEquals(Arrays.asList("/s1/r1/a", "/s1/r2/a"), instance.getCurrentStatePaths());
+    }
+
+    @Test
+    public void fireCodesOnInstances() {
+        PublishSubject<Long> t1 = PublishSubject.create();
+        long[] sum = new long[1];
+
+        FsmDefinition definition = Fsm.create()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withInternalTransition(1, n -> sum[0] += n)
+                        .withTransition("/s1/s1_2", 2, n -> {})
+                        .withInitialSubState(new State("s1_1"))
+                        .withSubState(new State("s1_2")
+                            // Overrides the internal transition of s1
+                            .withTransition("/s1/s1_1", 1, n -> sum[0] -= n)
+                            .withTransition("/s1/s1_1", t1, n -> {})))
+                .define();
+
+        FsmInstance instance = definition.newInstance();
+        instance.fire(1, 5);
+        instance.fire(2, 0);
+        assertEquals("/s1/s1_2", instance.getCurrentStatePath());
+        instance.fire(1, 2);
+        assertEquals("/s1/s1_1", instance.getCurrentStatePath());
+        assertEquals(3, sum[0]);
+    }
+
+    @Test
+    public void compiledDispatch() {
+        List<String> interpreted = dispatchEvents(false);
+        List<String> compiled = dispatchEvents(true);
+
+        assertEquals(Arrays.asList(
+                "enter s1", "enter s1_1", "t1 triggered: a", "exit s1_1", "exit s1", "enter s2_2",
+                "t2 triggered: c", "exit s2_2", "enter s2_1", "t3 triggered: d", "exit s2_1", "exit s2",
+                "enter s1", "enter s1_1", "t4 triggered internal transition: e", "/s1/s1_1"), interpreted);
+        assertEquals(interpreted, compiled);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void compiledBranchesStayInRange() {
+        // The guards of the leaf reject to the end of its method, further than a branch reaches
+        StateBuilder s1 = new StateBuilder("s1");
+        for (int i = 0; i < 1000; i++) {
+            s1.internalTransition(PublishSubject.<String>create(), s -> {}, s -> true);
+        }
+        FsmBuilder.create().initialState("/s1").topState(s1).define().compile();
+    }
+
+    private static List<String> dispatchEvents(boolean compile) {
+        List<String> result = new ArrayList<String>();
+
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+        PublishSubject<String> t3 = PublishSubject.create();
+        PublishSubject<String> t4 = PublishSubject.create();
+
+        FsmDefinition definition = Fsm.create()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withOnEntry(() -> result.add("enter s1"))
+                        .withOnExit(() -> result.add("exit s1"))
+                        .withInternalTransition(t4, s -> result.add("t4 triggered internal transition: " + s))
+                        .withInitialSubState(new State("s1_1")
+                            .withOnEntry(() -> result.add("enter s1_1"))
+                            .withOnExit(() -> result.add("exit s1_1"))
+                            .withTransition("/s2/s2_2", t1, s -> result.add("t1 triggered: " + s))),
+                    new State("s2")
+                        .withOnExit(() -> result.add("exit s2"))
+                        .withTransition("/s1", t3, s -> result.add("t3 triggered: " + s))
+                        .withInitialSubState(new State("s2_1") {
+                            // Subclasses of State are entered and exited through their methods
+                            @Override
+                            public void enter() {
+                                result.add("enter s2_1");
+                            }
+
+                            @Override
+                            public void exit() {
+                                result.add("exit s2_1");
+                            }
+                        })
+                        .withSubState(new State("s2_2")
+                            .withOnEntry(() -> result.add("enter s2_2"))
+                            .withOnExit(() -> result.add("exit s2_2"))
+                            .withTransition("/s2/s2_1", t2, s -> result.add("t2 triggered: " + s), s -> s.equals("c"))))
+                .define();
+        if (compile) {
+            definition = definition.compile();
+        }
+
+        Fsm fsm = Fsm.create(definition);
+        fsm.activate();
+        t1.onNext("a");
+        t2.onNext("b");
+        t2.onNext("c");
+        t3.onNext("d");
+        t4.onNext("e");
+        result.add(fsm.currentStatePath());
+        return result;
+    }
+
+    @Test
+    public void builders() {
+        List<String> result = new ArrayList<String>();
+
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+
+        Fsm fsm = FsmBuilder.create()
+                .initialState("/s1")
+                .topState(new StateBuilder("s1")
+                    .onEntry(() -> result.add("enter s1"))
+                    .onExit(() -> result.add("exit s1"))
+                    .transition("/s2/s2_2", t1, s -> result.add("t1 triggered: " + s)))
+                .topState(new StateBuilder("s2")
+                    .initialSubState(new StateBuilder("s2_1"))
+                    .subState(new StateBuilder("s2_2")
+                        .transition("/s1", t2, s -> result.add("t2 triggered: " + s), s -> s.equals("c"))))
+                .build();
+
+        fsm.activate();
+        t1.onNext("a");
+        t2.onNext("b");
+        assertEquals("/s2/s2_2", fsm.currentStatePath());
+        t2.onNext("c");
+        assertEquals("/s1", fsm.currentStatePath());
+        assertEquals(Arrays.asList("enter s1", "t1 triggered: a", "exit s1", "t2 triggered: c", "enter s1"), result);
+    }
+
+    @Test
+    public void largeHierarchyWithDistinctEvents() {
+        // Each state has its own event, so that the event slots of a leaf are kept sparse
+        int states = 20000;
+        FsmBuilder builder = FsmBuilder.create().initialState("/s0");
+        for (int i = 0; i < states; i++) {
+            builder.topState(new StateBuilder("s" + i)
+                    .transition("/s" + (i + 1) % states, i, payload -> {}));
+        }
+        FsmDefinition definition = builder.define();
+
+        FsmInstance instance = definition.newInstance();
+        instance.fire(1, 0);
+        assertEquals("/s0", instance.getCurrentStatePath());
+        for (int i = 0; i < states - 1; i++) {
+            instance.fire(i, 0);
+        }
+        assertEquals("/s" + (states - 1), instance.getCurrentStatePath());
+        instance.fire(states - 1, 0);
+        assertEquals("/s0", instance.getCurrentStatePath());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void buildersAreBuiltOnce() {
+        StateBuilder state = new StateBuilder("s1");
+        state.build();
+        state.build();
+    }
+
+    private static final String SCXML =
+            "<scxml xmlns=\"http://www.w3.org/2005/07/scxml\" version=\"1.0\" initial=\"s1\">\n"
+            + "  <state id=\"s1\">\n"
+            + "    <onentry><script>enterS1</script></onentry>\n"
+            + "    <transition event=\"t1\" target=\"s2_2\"><script>record</script></transition>\n"
+            + "  </state>\n"
+            + "  <state id=\"s2\">\n"
+            + "    <history id=\"h2\" type=\"shallow\"/>\n"
+            + "    <state id=\"s2_1\"/>\n"
+            + "    <state id=\"s2_2\">\n"
+            + "      <transition event=\"t2\" target=\"s1\" cond=\"isC\"><script>record</script></transition>\n"
+            + "    </state>\n"
+            + "  </state>\n"
+            + "  <parallel id=\"p\">\n"
+            + "    <transition event=\"t1 t2\" target=\"h2\"/>\n"
+            + "    <state id=\"r1\"><state id=\"a\"/></state>\n"
+            + "    <state id=\"r2\"><state id=\"b\"/></state>\n"
+            + "  </parallel>\n"
+            + "</scxml>\n";
+
+    @Test
+    public void loadScxml() throws Exception {
+        Path cache = Files.createTempDirectory("scxml");
+        try {
+            assertEquals(Arrays.asList("enter s1", "t1: a", "t2: c", "enter s1"), loadAndRun(cache));
+            assertEquals(1, cache.toFile().list().length);
+            // Loaded from the cache
+            assertEquals(Arrays.asList("enter s1", "t1: a", "t2: c", "enter s1"), loadAndRun(cache));
+        } finally {
+            for (File file : cache.toFile().listFiles()) {
+                file.delete();
+            }
+            cache.toFile().delete();
+        }
+    }
+
+    @Test
+    public void corruptedScxmlCachesAreRewritten() throws Exception {
+        Path cache = Files.createTempDirectory("scxml");
+        try {
+            loadAndRun(cache);
+            Path file = cache.toFile().listFiles()[0].toPath();
+            byte[] valid = Files.readAllBytes(file);
+
+            // Truncated, an invalid string and a huge count
+            byte[] truncated = Arrays.copyOf(valid, valid.length / 2);
+            byte[] invalidString = valid.clone();
+            invalidString[10] = (byte) 0xff;
+            byte[] hugeCount = valid.clone();
+            ByteBuffer.wrap(hugeCount).putInt(10 + ByteBuffer.wrap(valid).getShort(8), Integer.MAX_VALUE);
+
+            for (byte[] corrupted : Arrays.asList(truncated, invalidString, hugeCount)) {
+                Files.write(file, corrupted);
+                assertEquals(Arrays.asList("enter s1", "t1: a", "t2: c", "enter s1"), loadAndRun(cache));
+                assertTrue(Arrays.equals(valid, Files.readAllBytes(file)));
+            }
+        } finally {
+            for (File file : cache.toFile().listFiles()) {
+                file.delete();
+            }
+            cache.toFile().delete();
+        }
+    }
+
+    private static List<String> loadAndRun(Path cache) throws Exception {
+        List<String> result = new ArrayList<String>();
+
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+
+        FsmDefinition definition = ScxmlLoader.create()
+                .event("t1", t1)
+                .event("t2", t2)
+                .action("enterS1", () -> result.add("enter s1"))
+                .action("record", (String s) -> result.add((s.equals("a") ? "t1: " : "t2: ") + s))
+                .guard("isC", (String s) -> s.equals("c"))
+                .cache(cache)
+                .load(new ByteArrayInputStream(SCXML.getBytes("UTF-8")));
+
+        Fsm fsm = Fsm.create(definition);
+        fsm.activate();
+        t1.onNext("a");
+        assertEquals("/s2/s2_2", fsm.currentStatePath());
+        t2.onNext("b");
+        t2.onNext("c");
+        assertEquals("/s1", fsm.currentStatePath());
+        return result;
+    }
+
+    @Test
+    public void unreachableStatesAndShadowedTransitions() {
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+        PublishSubject<String> t3 = PublishSubject.create();
+
+        Fsm fsm = Fsm.create()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withTransition("/s2", t1, s -> {})
+                        .withTransition("/s3", t2, s -> {})
+                        .withInitialSubState(new State("s1_1")
+                            .withTransition("/s1/s1_1", t2, s -> {}))
+                        .withSubState(new State("s1_2")),
+                    new State("s2")
+                        .withTransition("/s1", t1, s -> {})
+                        .withRegions(new State("r")
+                            .withInitialSubState(new State("r1"))
+                            .withSubState(new State("r2")
+                                .withTransition("/r/r1", t3, s -> {}))),
+                    new State("s3")
+                        .withTransition("/s1", t3, s -> {}));
+
+        FsmDefinition definition = fsm.define();
+        assertEquals(Arrays.asList("/s1/s1_2", "/s2/r/r2", "/s3"), definition.unreachableStates());
+        Map<String, List<Transition>> shadowed = definition.shadowedTransitions();
+        assertEquals(Collections.singleton("/s1"), shadowed.keySet());
+        assertEquals("/s3", shadowed.get("/s1").get(0).pathToTargetState());
+        assertEquals(2, definition.effectiveTransitions("/s1/s1_2").size());
+
+        // t3 is only handled by unreachable states, so it is never subscribed to
+        fsm.activate();
+        assertTrue(t2.hasObservers());
+        t1.onNext("a");
+        assertEquals("/s2", fsm.currentStatePath());
+        assertTrue(t1.hasObservers());
+        assertFalse(t3.hasObservers());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownScxmlTargetsAreRejected() throws Exception {
+        ScxmlLoader.create()
+            .event("t1", PublishSubject.create())
+            .load(new ByteArrayInputStream(
+                    "<scxml><state id=\"s1\"><transition event=\"t1\" target=\"s2\"/></state></scxml>".getBytes("UTF-8")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownEventsAreRejected() {
+        Fsm.create()
+            .withInitialState("/s1")
+            .withTopStates(new State("s1"))
+            .define()
+            .eventId(PublishSubject.create());
+    }
+
+}
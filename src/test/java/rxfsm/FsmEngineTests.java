@@ -0,0 +1,381 @@
+package rxfsm;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.Subscription;
+import rx.schedulers.Schedulers;
+import rx.schedulers.TestScheduler;
+import rx.subjects.*;
+
+public class FsmEngineTests {
+
+    @Test
+    public void routeEventsByKey() throws InterruptedException {
+        AtomicInteger entries = new AtomicInteger();
+        AtomicInteger t1Triggered = new AtomicInteger();
+        AtomicInteger t2Triggered = new AtomicInteger();
+
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+
+        FsmDefinition definition = Fsm.create()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withOnEntry(entries::incrementAndGet)
+                        .withTransition("/s2", t1, s -> t1Triggered.incrementAndGet()),
+                    new State("s2")
+                        .withTransition("/s1", t2, s -> t2Triggered.incrementAndGet()))
+                .define();
+
+        PublishSubject<KeyedEvent<Integer>> events = PublishSubject.create();
+        FsmEngine<Integer> engine = FsmEngine.create(definition, 4);
+        Subscription subscription = engine.start(events);
+
+        int keys = 1000;
+        for (int key = 0; key < keys; key++) {
+            events.onNext(new KeyedEvent<Integer>(key, t1, "a"));
+        }
+        for (int key = 0; key < keys; key++) {
+            // t1 is not handled in s2
+            events.onNext(new KeyedEvent<Integer>(key, t1, "b"));
+            events.onNext(new KeyedEvent<Integer>(key, t2, "c"));
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (engine.processedEvents() < 3 * keys && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        subscription.unsubscribe();
+
+        assertEquals(3 * keys, engine.processedEvents());
+        for (int shard = 0; shard < engine.shardCount(); shard++) {
+            assertEquals(0, engine.queueDepth(shard));
+        }
+        assertEquals(2 * keys, entries.get());
+        assertEquals(keys, t1Triggered.get());
+        assertEquals(keys, t2Triggered.get());
+    }
+
+    @Test
+    public void passivateLeastRecentlyUsedInstances() {
+        AtomicInteger entries = new AtomicInteger();
+
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+
+        FsmDefinition definition = Fsm.create()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withOnEntry(entries::incrementAndGet)
+                        .withTransition("/s2", t1, s -> {}),
+                    new State("s2")
+                        .withOnEntry(entries::incrementAndGet)
+                        .withTransition("/s1", t2, s -> {}))
+                .define();
+
+        InMemoryPassivationStore<Integer> store = new InMemoryPassivationStore<Integer>();
+        PublishSubject<KeyedEvent<Integer>> events = PublishSubject.create();
+        FsmEngine<Integer> engine = FsmEngine.<Integer>create(definition, 1, Schedulers.immediate())
+                .withPassivation(0, TimeUnit.SECONDS, 10, store);
+        Subscription subscription = engine.start(events);
+
+        int keys = 100;
+        for (int key = 0; key < keys; key++) {
+            events.onNext(new KeyedEvent<Integer>(key, t1, "a"));
+        }
+        // Restored in s2, whose entry action is not run again
+        for (int key = 0; key < keys; key++) {
+            events.onNext(new KeyedEvent<Integer>(key, t2, "b"));
+        }
+        subscription.unsubscribe();
+
+        assertEquals(3 * keys, entries.get());
+        assertEquals(10, engine.residentInstances());
+        assertEquals(keys - 10, store.size());
+        assertEquals(0, engine.passivationHits());
+        assertEquals(2 * keys, engine.passivationMisses());
+        assertEquals(2 * keys - 10, engine.passivations());
+    }
+
+    @Test
+    public void passivateIdleInstancesBehindTimedOutOnes() throws InterruptedException {
+        AtomicBoolean timedOut = new AtomicBoolean();
+
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+
+        FsmDefinition definition = Fsm.create()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withTransition("/s2", t1, s -> {})
+                        .withInternalTransition(t2, s -> {}),
+                    new State("s2")
+                        .withTimeout(500, TimeUnit.MILLISECONDS, "/s3", () -> timedOut.set(true)),
+                    new State("s3"))
+                .define();
+
+        HashedWheelTimer timer = new HashedWheelTimer(1, TimeUnit.MILLISECONDS, 64);
+        TestScheduler scheduler = Schedulers.test();
+        InMemoryPassivationStore<String> store = new InMemoryPassivationStore<String>();
+        PublishSubject<KeyedEvent<String>> events = PublishSubject.create();
+        FsmEngine<String> engine = FsmEngine.<String>create(definition, 1, scheduler, timer)
+                .withPassivation(300, TimeUnit.MILLISECONDS, 10, store);
+        Subscription subscription = engine.start(events);
+
+        // a is used before b, but its timeout makes it active again later
+        events.onNext(new KeyedEvent<String>("a", t1, "a"));
+        events.onNext(new KeyedEvent<String>("b", t2, "b"));
+        scheduler.triggerActions();
+        while (!timedOut.get()) {
+            Thread.sleep(10);
+            scheduler.triggerActions();
+        }
+        Thread.sleep(50);
+        scheduler.advanceTimeBy(300, TimeUnit.MILLISECONDS);
+
+        assertEquals(1, engine.residentInstances());
+        assertEquals(1, store.size());
+        assertEquals("b", store.keys().iterator().next());
+        subscription.unsubscribe();
+        timer.stop();
+    }
+
+    @Test
+    public void broadcastToAllInstances() {
+        AtomicInteger t2Triggered = new AtomicInteger();
+
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+
+        FsmDefinition definition = Fsm.create()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withTransition("/s2", t1, s -> {}),
+                    new State("s2")
+                        .withTransition("/s1", t2, s -> t2Triggered.incrementAndGet()))
+                .define();
+
+        InMemoryPassivationStore<Integer> store = new InMemoryPassivationStore<Integer>();
+        PublishSubject<KeyedEvent<Integer>> events = PublishSubject.create();
+        FsmEngine<Integer> engine = FsmEngine.<Integer>create(definition, 2, Schedulers.immediate())
+                .withPassivation(0, TimeUnit.SECONDS, 5000, store);
+        Subscription subscription = engine.start(events);
+
+        int keys = 10000;
+        for (int key = 0; key < keys; key++) {
+            events.onNext(new KeyedEvent<Integer>(key, t1, "a"));
+        }
+        assertEquals(5000, engine.residentInstances());
+
+        // Handled by the resident instances in parallel, and by the passivated ones as well
+        engine.broadcast(t2, "b");
+        engine.broadcast(t2, "c");
+        subscription.unsubscribe();
+
+        assertEquals(keys, t2Triggered.get());
+        assertEquals(5000, engine.residentInstances());
+        assertEquals(5000, store.size());
+    }
+
+    @Test
+    public void broadcastKeepsTheResidentLimit() {
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+        PublishSubject<String> t3 = PublishSubject.create();
+
+        FsmDefinition definition = Fsm.create()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withTransition("/s3", t1, s -> {})
+                        .withInternalTransition(t2, s -> {})
+                        .withInternalTransition(t3, s -> {}),
+                    new State("s2")
+                        .withTimeout(1, TimeUnit.MINUTES, "/s1", () -> {}),
+                    new State("s3")
+                        .withTransition("/s2", t2, s -> {}))
+                .define();
+
+        HashedWheelTimer timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 64);
+        InMemoryPassivationStore<Integer> store = new InMemoryPassivationStore<Integer>();
+        PublishSubject<KeyedEvent<Integer>> events = PublishSubject.create();
+        FsmEngine<Integer> engine = FsmEngine.<Integer>create(definition, 1, Schedulers.immediate(), timer)
+                .withPassivation(0, TimeUnit.SECONDS, 5000, store)
+                .withOccupancyIndex();
+        Subscription subscription = engine.start(events);
+
+        // The odd keys are passivated in s3, the even ones resident in s1
+        int keys = 10000;
+        for (int key = 1; key < keys; key += 2) {
+            events.onNext(new KeyedEvent<Integer>(key, t1, "a"));
+        }
+        for (int key = 0; key < keys; key += 2) {
+            events.onNext(new KeyedEvent<Integer>(key, t3, "b"));
+        }
+        assertEquals(5000, engine.residentInstances());
+        assertEquals(5000, engine.occupancy("/s3"));
+
+        // The odd keys enter s2, whose timeout keeps them resident, so the even keys are
+        // passivated instead to stay within the limit
+        engine.broadcast(t2, "c");
+        subscription.unsubscribe();
+        timer.stop();
+
+        assertEquals(5000, engine.residentInstances());
+        assertEquals(5000, store.size());
+        assertEquals(5000, engine.occupancy("/s1"));
+        assertEquals(5000, engine.occupancy("/s2"));
+        assertEquals(0, engine.occupancy("/s3"));
+        for (Integer key : store.keys()) {
+            assertEquals(0, key % 2);
+        }
+    }
+
+    @Test
+    public void occupancyIndex() {
+        PublishSubject<String> connect = PublishSubject.create();
+        PublishSubject<String> authenticate = PublishSubject.create();
+        PublishSubject<String> disconnect = PublishSubject.create();
+
+        FsmDefinition definition = Fsm.create()
+                .withInitialState("/disconnected")
+                .withTopStates(
+                    new State("disconnected")
+                        .withTransition("/connected", connect, s -> {}),
+                    new State("connected")
+                        .withTransition("/disconnected", disconnect, s -> {})
+                        .withInitialSubState(new State("authenticating")
+                            .withTransition("/connected/authenticated", authenticate, s -> {}))
+                        .withSubState(new State("authenticated")))
+                .define();
+
+        InMemoryPassivationStore<Integer> store = new InMemoryPassivationStore<Integer>();
+        PublishSubject<KeyedEvent<Integer>> events = PublishSubject.create();
+        FsmEngine<Integer> engine = FsmEngine.<Integer>create(definition, 2, Schedulers.immediate())
+                .withPassivation(0, TimeUnit.SECONDS, 50, store)
+                .withOccupancyIndex();
+        Subscription subscription = engine.start(events);
+
+        int keys = 100;
+        for (int key = 0; key < keys; key++) {
+            events.onNext(new KeyedEvent<Integer>(key, connect, "a"));
+        }
+        for (int key = 0; key < keys; key += 2) {
+            events.onNext(new KeyedEvent<Integer>(key, authenticate, "b"));
+        }
+        events.onNext(new KeyedEvent<Integer>(0, disconnect, "c"));
+        events.onNext(new KeyedEvent<Integer>(1, disconnect, "c"));
+        subscription.unsubscribe();
+
+        // Passivated instances are counted as well
+        assertEquals(2, engine.occupancy("/disconnected"));
+        assertEquals(98, engine.occupancy("/connected"));
+        assertEquals(49, engine.occupancy("/connected/authenticating"));
+        assertEquals(49, engine.occupancy("/connected/authenticated"));
+
+        List<Integer> disconnected = engine.occupants("/disconnected");
+        Collections.sort(disconnected);
+        assertEquals(Arrays.asList(0, 1), disconnected);
+        assertEquals(49, engine.occupants("/connected/authenticated").size());
+    }
+
+    @Test
+    public void occupancyIndexForgetsLostSnapshots() {
+        PublishSubject<String> connect = PublishSubject.create();
+        PublishSubject<String> disconnect = PublishSubject.create();
+
+        FsmDefinition definition = Fsm.create()
+                .withInitialState("/disconnected")
+                .withTopStates(
+                    new State("disconnected")
+                        .withTransition("/connected", connect, s -> {}),
+                    new State("connected")
+                        .withTransition("/disconnected", disconnect, s -> {}))
+                .define();
+
+        InMemoryPassivationStore<Integer> store = new InMemoryPassivationStore<Integer>();
+        PublishSubject<KeyedEvent<Integer>> events = PublishSubject.create();
+        FsmEngine<Integer> engine = FsmEngine.<Integer>create(definition, 1, Schedulers.immediate())
+                .withPassivation(0, TimeUnit.SECONDS, 1, store)
+                .withOccupancyIndex();
+        Subscription subscription = engine.start(events);
+
+        events.onNext(new KeyedEvent<Integer>(0, connect, "a"));
+        events.onNext(new KeyedEvent<Integer>(1, connect, "a"));
+        assertEquals(2, engine.occupancy("/connected"));
+
+        // Created again in its initial state, where disconnect is not handled
+        store.take(0);
+        events.onNext(new KeyedEvent<Integer>(0, disconnect, "b"));
+        assertEquals(1, engine.occupancy("/disconnected"));
+        assertEquals(1, engine.occupancy("/connected"));
+        assertEquals(Arrays.asList(1), engine.occupants("/connected"));
+
+        // Gone once a broadcast finds no snapshot
+        store.take(1);
+        engine.broadcast(connect, "c");
+        subscription.unsubscribe();
+
+        assertEquals(0, engine.occupancy("/disconnected"));
+        assertEquals(1, engine.occupancy("/connected"));
+        assertEquals(Arrays.asList(0), engine.occupants("/connected"));
+    }
+
+    @Test
+    public void occupancyIndexFollowsBroadcasts() {
+        PublishSubject<String> connect = PublishSubject.create();
+        PublishSubject<String> authenticate = PublishSubject.create();
+        PublishSubject<String> disconnect = PublishSubject.create();
+
+        FsmDefinition definition = Fsm.create()
+                .withInitialState("/disconnected")
+                .withTopStates(
+                    new State("disconnected")
+                        .withTransition("/connected", connect, s -> {}),
+                    new State("connected")
+                        .withTransition("/disconnected", disconnect, s -> {})
+                        .withInitialSubState(new State("authenticating")
+                            .withTransition("/connected/authenticated", authenticate, s -> {}))
+                        .withSubState(new State("authenticated")))
+                .define();
+
+        PublishSubject<KeyedEvent<Integer>> events = PublishSubject.create();
+        FsmEngine<Integer> engine = FsmEngine.<Integer>create(definition, 1, Schedulers.immediate())
+                .withOccupancyIndex();
+        Subscription subscription = engine.start(events);
+
+        // Enough instances for the broadcast to be handled in parallel, with ids spread over
+        // several chunks of the index
+        int keys = 10000;
+        for (int key = 0; key < keys; key++) {
+            events.onNext(new KeyedEvent<Integer>(key, connect, "a"));
+        }
+        events.onNext(new KeyedEvent<Integer>(keys - 1, disconnect, "b"));
+        engine.broadcast(authenticate, "c");
+        subscription.unsubscribe();
+
+        assertEquals(1, engine.occupancy("/disconnected"));
+        assertEquals(keys - 1, engine.occupancy("/connected"));
+        assertEquals(0, engine.occupancy("/connected/authenticating"));
+        assertEquals(keys - 1, engine.occupancy("/connected/authenticated"));
+
+        assertEquals(Arrays.asList(keys - 1), engine.occupants("/disconnected"));
+        List<Integer> authenticated = engine.occupants("/connected/authenticated");
+        Collections.sort(authenticated);
+        assertEquals(keys - 1, authenticated.size());
+        assertEquals(0, (int) authenticated.get(0));
+        assertEquals(keys - 2, (int) authenticated.get(keys - 2));
+    }
+
+}
@@ -0,0 +1,89 @@
+package rxfsm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import rx.subjects.*;
+
+public class FsmJournalTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> result = new ArrayList<String>();
+    private final PublishSubject<String> t1 = PublishSubject.create();
+    private final PublishSubject<String> t2 = PublishSubject.create();
+
+    private Fsm fsm(FsmJournal journal) {
+        return Fsm.create()
+                .withJournal(journal)
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withOnEntry(() -> result.add("enter s1"))
+                        .withTransition("/s2/s2_2", t1, s -> result.add("t1 triggered: " + s)),
+                    new State("s2")
+                        .withOnEntry(() -> result.add("enter s2"))
+                        .withInitialSubState(new State("s2_1"))
+                        .withSubState(new State("s2_2")
+                            .withOnEntry(() -> result.add("enter s2_2"))
+                            .withTransition("/s1", t2, s -> result.add("t2 triggered: " + s))));
+    }
+
+    @Test
+    public void recoverWithoutRunningActions() throws Exception {
+        Path directory = folder.getRoot().toPath();
+
+        // Small segments, so that there are checkpoints along the way
+        try (FsmJournal journal = FsmJournal.open(directory, 24 * 4, 1)) {
+            fsm(journal).activate();
+            for (int i = 0; i < 5; i++) {
+                t1.onNext("a");
+                t2.onNext("b");
+            }
+            t1.onNext("c");
+        }
+        t1.onCompleted();
+        t2.onCompleted();
+
+        result.clear();
+        try (FsmJournal journal = FsmJournal.open(directory, 24 * 4, 1)) {
+            Fsm fsm = fsm(journal);
+            fsm.recover();
+            assertEquals("/s2/s2_2", fsm.currentStatePath());
+            assertEquals(new ArrayList<String>(), result);
+        }
+
+        File[] segments = folder.getRoot().listFiles();
+        assertTrue(segments.length <= 2);
+    }
+
+    @Test
+    public void tornRecordsAreIgnored() throws Exception {
+        Path directory = folder.getRoot().toPath();
+
+        try (FsmJournal journal = FsmJournal.open(directory, 1024, 16)) {
+            fsm(journal).activate();
+            t1.onNext("a");
+        }
+
+        File[] segments = folder.getRoot().listFiles();
+        assertEquals(1, segments.length);
+        Files.write(segments[0].toPath(), new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }, StandardOpenOption.APPEND);
+
+        try (FsmJournal journal = FsmJournal.open(directory, 1024, 16)) {
+            assertEquals(2, journal.sequence());
+            assertEquals(48, Files.size(segments[0].toPath()));
+        }
+    }
+}
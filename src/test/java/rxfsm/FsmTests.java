@@ -1,11 +1,20 @@
 package rxfsm;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.Test;
 
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import rx.Observable;
 import rx.subjects.*;
 
 public class FsmTests {
@@ -49,6 +58,15 @@ public class FsmTests {
 
     @Test
     public void switchSubStates() {
+        switchSubStates(Fsm.create());
+    }
+
+    @Test
+    public void switchSubStatesWithPersistentSubscriptions() {
+        switchSubStates(Fsm.create().withPersistentSubscriptions());
+    }
+
+    private static void switchSubStates(Fsm base) {
         List<String> result = new ArrayList<String>();
 
         PublishSubject<String> t1 = PublishSubject.create();
@@ -92,7 +110,7 @@ public class FsmTests {
                 .withTransition("/s1", t3, s -> result.add("t3 triggered from s2: " + s));
 
 
-        Fsm fsm = Fsm.create()
+        Fsm fsm = base
             .withInitialState("/s1")
             .withTopStates(s1, s2);
 
@@ -155,10 +173,849 @@ public class FsmTests {
         assertEquals(expected, result);
     }
 
+    @Test
+    public void persistentSubscriptionsSubscribeOnce() {
+        List<String> result = new ArrayList<String>();
+        int[] subscriptions = new int[1];
+
+        PublishSubject<String> subject = PublishSubject.create();
+        rx.Observable<String> t1 = subject.doOnSubscribe(() -> subscriptions[0]++);
+
+        Fsm fsm = Fsm.create()
+                .withPersistentSubscriptions()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withTransition("/s2", t1, s -> result.add("t1 triggered from s1: " + s)),
+                    new State("s2")
+                        .withTransition("/s1", t1, s -> result.add("t1 triggered from s2: " + s)));
+
+        fsm.activate();
+
+        subject.onNext("a");
+        subject.onNext("b");
+        subject.onNext("c");
+
+        assertEquals(Arrays.asList(
+                "t1 triggered from s1: a", "t1 triggered from s2: b", "t1 triggered from s1: c"), result);
+        assertEquals(1, subscriptions[0]);
+    }
+
+    @Test
+    public void effectiveTransitionsHonorOverrides() {
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+
+        Fsm fsm = Fsm.create()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withTransition("/s2", t1, s -> {})
+                        .withTransition("/s2", t2, s -> {})
+                        .withInitialSubState(new State("s1_1"))
+                        .withSubState(new State("s1_2")
+                            .withTransition("/s1/s1_1", t1, s -> {})),
+                    new State("s2"));
+
+        fsm.activate();
+
+        List<Transition> s1_1 = fsm.effectiveTransitions("/s1/s1_1");
+        assertEquals(2, s1_1.size());
+        assertEquals("/s2", s1_1.get(0).pathToTargetState());
+        assertEquals("/s2", s1_1.get(1).pathToTargetState());
+
+        List<Transition> s1_2 = fsm.effectiveTransitions("/s1/s1_2");
+        assertEquals(2, s1_2.size());
+        assertEquals(t1, s1_2.get(0).event());
+        assertEquals("/s1/s1_1", s1_2.get(0).pathToTargetState());
+        assertEquals(t2, s1_2.get(1).event());
+
+        assertEquals(0, fsm.effectiveTransitions("/s2").size());
+    }
+
+    @Test
+    public void eventsEmittedByActionsAreHandledAfterTheTransition() {
+        List<String> result = new ArrayList<String>();
+
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+
+        Fsm fsm = Fsm.create()
+                .withPersistentSubscriptions()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withOnExit(() -> result.add("exit s1"))
+                        .withTransition("/s2", t1, s -> {
+                            result.add("t1 triggered: " + s);
+                            t2.onNext("b");
+                        }),
+                    new State("s2")
+                        .withOnEntry(() -> result.add("enter s2"))
+                        .withTransition("/s1", t2, s -> result.add("t2 triggered: " + s)));
+
+        fsm.activate();
+
+        t1.onNext("a");
+
+        assertEquals(Arrays.asList("t1 triggered: a", "exit s1", "enter s2", "t2 triggered: b"), result);
+    }
+
+    @Test
+    public void eventsAreHandledAfterAnActionThrows() {
+        List<String> result = new ArrayList<String>();
+
+        Fsm fsm = Fsm.create()
+                .withInitialState("/closed")
+                .withTopStates(
+                    new State("closed")
+                        .withTransition("/open", Signal.OPEN, n -> {
+                            if (n == 0) {
+                                throw new IllegalStateException("failed");
+                            }
+                            result.add("open: " + n);
+                        }),
+                    new State("open"));
+
+        fsm.activate();
+        try {
+            fsm.fire(Signal.OPEN, 0);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        fsm.fire(Signal.OPEN, 1);
+
+        assertEquals(Arrays.asList("open: 1"), result);
+        assertEquals("/open", fsm.currentStatePath());
+    }
+
+    @Test
+    public void eventsAreHandledAfterAnExitActionThrows() {
+        AtomicInteger exits = new AtomicInteger();
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+
+        Fsm fsm = Fsm.create()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withOnExit(() -> {
+                            if (exits.incrementAndGet() == 1) {
+                                throw new IllegalStateException("failed");
+                            }
+                        })
+                        .withTransition("/s2", t1, s -> {}),
+                    new State("s2")
+                        .withTransition("/s1", t2, s -> {}));
+
+        fsm.activate();
+        try {
+            t1.onNext("a");
+            fail();
+        } catch (RuntimeException e) {
+            // Passed on by the subscription to t1
+        }
+        // Still in s1, and subscribed to its events again
+        assertEquals("/s1", fsm.currentStatePath());
+        t1.onNext("b");
+        assertEquals("/s2", fsm.currentStatePath());
+        t2.onNext("c");
+        assertEquals("/s1", fsm.currentStatePath());
+    }
+
+    @Test
+    public void eventsPostedByAThrowingActionAreHandled() {
+        Fsm[] fsm = new Fsm[1];
+        fsm[0] = Fsm.create()
+                .withInitialState("/closed")
+                .withTopStates(
+                    new State("closed")
+                        .withTransition("/open", Signal.OPEN, n -> {
+                            fsm[0].fire(Signal.CLOSE, 0);
+                            throw new IllegalStateException("failed");
+                        })
+                        .withTransition("/closed/broken", Signal.CLOSE, n -> {})
+                        .withInitialSubState(new State("ok"))
+                        .withSubState(new State("broken")),
+                    new State("open"));
+
+        fsm[0].activate();
+        try {
+            fsm[0].fire(Signal.OPEN, 0);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        // Handled before the exception was passed on, rather than left in the queue
+        assertEquals("/closed/broken", fsm[0].currentStatePath());
+    }
+
+    @Test
+    public void eventsFromManyThreadsAreHandledOneAtATime() throws InterruptedException {
+        int threads = 4;
+        int eventsPerThread = 10000;
+        int[] handled = new int[1]; // Deliberately not thread safe
+
+        List<PublishSubject<Integer>> subjects = new ArrayList<PublishSubject<Integer>>();
+        State s1 = new State("s1");
+        for (int i = 0; i < threads; i++) {
+            PublishSubject<Integer> subject = PublishSubject.create();
+            subjects.add(subject);
+            s1 = s1.withInternalTransition(subject, n -> handled[0]++);
+        }
+
+        Fsm fsm = Fsm.create()
+                .withPersistentSubscriptions()
+                .withInitialState("/s1")
+                .withTopStates(s1);
+        fsm.activate();
+
+        List<Thread> producers = new ArrayList<Thread>();
+        for (PublishSubject<Integer> subject : subjects) {
+            producers.add(new Thread(() -> {
+                for (int n = 0; n < eventsPerThread; n++) {
+                    subject.onNext(n);
+                }
+            }));
+        }
+        for (Thread producer : producers) {
+            producer.start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertEquals(threads * eventsPerThread, handled[0]);
+    }
+
+    @Test
+    public void executeOnScheduler() throws InterruptedException {
+        Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        CountDownLatch done = new CountDownLatch(1);
+
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+
+        FsmEventLoops eventLoops = FsmEventLoops.create(1);
+        Fsm fsm = Fsm.create()
+                .withScheduler(eventLoops)
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withOnEntry(() -> threads.add(Thread.currentThread().getName()))
+                        .withOnExit(() -> threads.add(Thread.currentThread().getName()))
+                        .withTransition("/s2", t1, s -> threads.add(Thread.currentThread().getName())),
+                    new State("s2")
+                        .withOnEntry(() -> threads.add(Thread.currentThread().getName()))
+                        .withTransition("/s1", t2, s -> done.countDown(), s -> threads.add(Thread.currentThread().getName()) || true));
+
+        fsm.activate();
+
+        // The subscriptions are made on the event loop as well
+        while (!t1.hasObservers()) {
+            Thread.sleep(1);
+        }
+        t1.onNext("a");
+        while (!t2.hasObservers()) {
+            Thread.sleep(1);
+        }
+        t2.onNext("b");
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Collections.singleton("rxfsm-event-loop-0"), threads);
+        eventLoops.unsubscribe();
+    }
+
+    @Test
+    public void recordMetrics() {
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+
+        StripedFsmMetrics metrics = new StripedFsmMetrics();
+        Fsm fsm = Fsm.create()
+                .withMetrics(metrics)
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withTransition("/s2", t1, s -> {}),
+                    new State("s2")
+                        .withTransition("/s1", t2, s -> {}, s -> s.equals("c")));
+
+        fsm.activate();
+
+        t1.onNext("a");
+        t2.onNext("b");
+        t2.onNext("c");
+        t1.onNext("d");
+
+        assertEquals(2, metrics.transitionCount("/s1", t1));
+        assertEquals(1, metrics.transitionCount("/s2", t2));
+
+        Map<String, Long> snapshot = metrics.snapshot();
+        assertEquals(Long.valueOf(2), snapshot.get("transitions{source=\"/s1\",target=\"/s2\",event=\"/s1#0\"}"));
+        assertEquals(Long.valueOf(2), snapshot.get("time_in_state_count{state=\"/s1\"}"));
+        assertEquals(Long.valueOf(1), snapshot.get("time_in_state_count{state=\"/s2\"}"));
+        assertEquals(4, snapshot.get("entry_action_count{state=\"/s2\"}") + snapshot.get("entry_action_count{state=\"/s1\"}"));
+        assertEquals(Long.valueOf(2), snapshot.get("guard_count{source=\"/s2\",target=\"/s1\",event=\"/s2#0\"}"));
+
+        String text = metrics.toPrometheusText();
+        assertTrue(text.contains("# TYPE rxfsm_transitions_total counter\n"));
+        assertTrue(text.contains("rxfsm_transitions_total{source=\"/s2\",target=\"/s1\",event=\"/s2#0\"} 1\n"));
+        assertTrue(text.contains("rxfsm_guard_seconds_count{source=\"/s2\",target=\"/s1\",event=\"/s2#0\"} 2\n"));
+        assertTrue(text.contains("rxfsm_time_in_state_seconds_bucket{state=\"/s1\",le=\"+Inf\"} 2\n"));
+
+        // A duration of exactly the upper bound of a bucket is counted in it
+        assertEquals(0, StripedFsmMetrics.bucket(1));
+        assertEquals(1, StripedFsmMetrics.bucket(2));
+        assertEquals(2, StripedFsmMetrics.bucket(3));
+        assertEquals(10, StripedFsmMetrics.bucket(1024));
+        assertEquals(11, StripedFsmMetrics.bucket(1025));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void metricsAreKeptForLeafStates() {
+        StripedFsmMetrics metrics = new StripedFsmMetrics();
+        PublishSubject<String> t1 = PublishSubject.create();
+        Fsm.create()
+                .withMetrics(metrics)
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withTransition("/s1", t1, s -> {})
+                        .withInitialSubState(new State("s1_1")))
+                .activate();
+
+        metrics.transitionCount("/s1", t1);
+    }
+
+    @Test
+    public void observeStateChanges() {
+        List<String> result = new ArrayList<String>();
+
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+
+        Fsm fsm = Fsm.create()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withTransition("/s2/s2_1", t1, s -> {})
+                        .withInternalTransition(t2, s -> {}),
+                    new State("s2")
+                        .withInitialSubState(new State("s2_1")
+                            .withTransition("/s1", t2, s -> {})));
+
+        fsm.activate();
+        assertEquals("/s1", fsm.currentStatePath());
+
+        fsm.stateChanges().subscribe(c -> result.add(c.toString()));
+
+        t2.onNext("a");
+        t1.onNext("b");
+        assertEquals("/s2/s2_1", fsm.currentStatePath());
+        t2.onNext("c");
+
+        assertEquals(Arrays.asList("/s1 -> /s2/s2_1 (event 0: b)", "/s2/s2_1 -> /s1 (event 1: c)"), result);
+    }
+
+    @Test
+    public void stateChangeBackpressure() {
+        assertEquals(Arrays.asList("a", "b"), slowStateChangeSubscriber(StateChangeBackpressure.DROP));
+        assertEquals(Arrays.asList("a", "c"), slowStateChangeSubscriber(StateChangeBackpressure.LATEST));
+        assertEquals(Arrays.asList("a", "error"), slowStateChangeSubscriber(StateChangeBackpressure.FAIL));
+    }
+
+    // Emits three state changes, of which a subscriber with a buffer of one only requests the first
+    // until all have been emitted
+    private static List<String> slowStateChangeSubscriber(StateChangeBackpressure backpressure) {
+        List<String> result = new ArrayList<String>();
+        PublishSubject<String> t1 = PublishSubject.create();
+
+        Fsm fsm = Fsm.create()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withTransition("/s2", t1, s -> {}),
+                    new State("s2")
+                        .withTransition("/s1", t1, s -> {}));
+        fsm.activate();
+
+        class SlowSubscriber extends rx.Subscriber<StateChange> {
+            @Override
+            public void onStart() {
+                request(1);
+            }
+
+            @Override
+            public void onNext(StateChange stateChange) {
+                result.add((String) stateChange.getValue());
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                result.add("error");
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+
+            void requestMore() {
+                request(1);
+            }
+        }
+
+        SlowSubscriber subscriber = new SlowSubscriber();
+        fsm.stateChanges(backpressure, 1).subscribe(subscriber);
+
+        t1.onNext("a");
+        t1.onNext("b");
+        t1.onNext("c");
+        subscriber.requestMore();
+        return result;
+    }
+
+    @Test
+    public void orthogonalRegions() {
+        List<String> result = new ArrayList<String>();
+
+        PublishSubject<String> e1 = PublishSubject.create();
+        PublishSubject<String> e2 = PublishSubject.create();
+        PublishSubject<String> off = PublishSubject.create();
+
+        Fsm fsm = Fsm.create()
+                .withInitialState("/device")
+                .withTopStates(
+                    new State("device")
+                        .withOnEntry(() -> result.add("enter device"))
+                        .withOnExit(() -> result.add("exit device"))
+                        .withTransition("/off", off, s -> result.add("off triggered: " + s))
+                        .withRegions(
+                            new State("r1")
+                                .withInitialSubState(new State("a")
+                                    .withOnEntry(() -> result.add("enter a"))
+                                    .withOnExit(() -> result.add("exit a"))
+                                    .withTransition("/r1/b", e1, s -> result.add("e1 triggered: " + s)))
+                                .withSubState(new State("b")
+                                    .withOnEntry(() -> result.add("enter b"))
+                                    .withOnExit(() -> result.add("exit b"))),
+                            new State("r2")
+                                .withInitialSubState(new State("x")
+                                    .withOnEntry(() -> result.add("enter x"))
+                                    .withOnExit(() -> result.add("exit x"))
+                                    .withTransition("/r2/y", e2, s -> result.add("e2 triggered: " + s)))
+                                .withSubState(new State("y")
+                                    // Handled by the region before the device
+                                    .withInternalTransition(off, s -> result.add("off handled by y: " + s), s -> s.equals("b")))),
+                    new State("off")
+                        .withTransition("/device", e1, s -> {}));
+
+        fsm.activate();
+        assertEquals(Arrays.asList("/device/r1/a", "/device/r2/x"), fsm.currentStatePaths());
+
+        e1.onNext("a");
+        e2.onNext("b");
+        assertEquals(Arrays.asList("/device/r1/b", "/device/r2/y"), fsm.currentStatePaths());
+
+        off.onNext("b");
+        assertEquals("/device", fsm.currentStatePath());
+        off.onNext("c");
+        assertEquals(Arrays.asList("/off"), fsm.currentStatePaths());
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("enter device");
+        expected.add("enter a");
+        expected.add("enter x");
+        expected.add("e1 triggered: a");
+        expected.add("exit a");
+        expected.add("enter b");
+        expected.add("e2 triggered: b");
+        expected.add("exit x");
+        expected.add("off handled by y: b");
+        expected.add("off triggered: c");
+        expected.add("exit b");
+        expected.add("exit device");
+
+        assertEquals(expected, result);
+    }
+
+    @Test
+    public void parallelRegions() {
+        AtomicInteger r1Handled = new AtomicInteger();
+        AtomicInteger r2Handled = new AtomicInteger();
+        List<String> result = new ArrayList<String>();
+
+        PublishSubject<String> start = PublishSubject.create();
+        PublishSubject<String> e1 = PublishSubject.create();
+        PublishSubject<String> e2 = PublishSubject.create();
+        PublishSubject<String> off = PublishSubject.create();
+
+        Fsm fsm = Fsm.create()
+                .withPersistentSubscriptions()
+                .withParallelRegions(new ForkJoinPool(2))
+                .withInitialState("/off")
+                .withTopStates(
+                    new State("off")
+                        // The events are queued while the transition is handled
+                        .withTransition("/device", start, s -> {
+                            for (int i = 0; i < 100; i++) {
+                                e1.onNext("a");
+                                e2.onNext("b");
+                            }
+                            off.onNext("c");
+                        }),
+                    new State("device")
+                        .withOnExit(() -> result.add("exit device: " + r1Handled.get() + ", " + r2Handled.get()))
+                        .withTransition("/off", off, s -> {})
+                        .withRegions(
+                            new State("r1")
+                                .withInternalTransition(e1, s -> r1Handled.incrementAndGet()),
+                            new State("r2")
+                                .withInternalTransition(e2, s -> r2Handled.incrementAndGet())));
+
+        fsm.activate();
+        start.onNext("start");
+
+        assertEquals("/off", fsm.currentStatePath());
+        assertEquals(Arrays.asList("exit device: 100, 100"), result);
+    }
+
+    @Test
+    public void transitionToHistory() {
+        List<String> result = new ArrayList<String>();
+
+        PublishSubject<String> toB2 = PublishSubject.create();
+        PublishSubject<String> out = PublishSubject.create();
+        PublishSubject<String> shallow = PublishSubject.create();
+        PublishSubject<String> deep = PublishSubject.create();
+
+        Fsm fsm = Fsm.create()
+                .withInitialState("/s2")
+                .withTopStates(
+                    new State("s1")
+                        .withTransition("/s2", out, s -> {})
+                        .withInitialSubState(new State("a")
+                            .withTransition("/s1/b/b2", toB2, s -> {}))
+                        .withSubState(new State("b")
+                            .withOnEntry(() -> result.add("enter b"))
+                            .withOnExit(() -> result.add("exit b"))
+                            .withInitialSubState(new State("b1")
+                                .withTransition("/s1/b/b2", toB2, s -> {}))
+                            .withSubState(new State("b2")
+                                .withOnEntry(() -> result.add("enter b2"))
+                                .withOnExit(() -> result.add("exit b2"))
+                                // History of the current state's parent resumes the state itself
+                                .withTransition("/s1/b/H", shallow, s -> {}))),
+                    new State("s2")
+                        .withTransition("/s1/H", shallow, s -> {})
+                        .withTransition("/s1/H*", deep, s -> {}));
+
+        fsm.activate();
+
+        // Without history the initial sub state is entered
+        deep.onNext("a");
+        assertEquals("/s1/a", fsm.currentStatePath());
+
+        toB2.onNext("b");
+        out.onNext("c");
+        shallow.onNext("d");
+        assertEquals("/s1/b/b1", fsm.currentStatePath());
+
+        toB2.onNext("e");
+        out.onNext("f");
+        result.clear();
+        deep.onNext("g");
+        assertEquals("/s1/b/b2", fsm.currentStatePath());
+        assertEquals(Arrays.asList("enter b", "enter b2"), result);
+
+        result.clear();
+        shallow.onNext("h");
+        assertEquals("/s1/b/b2", fsm.currentStatePath());
+        assertEquals(Arrays.asList("exit b2", "enter b2"), result);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void historyRequiresSubStates() {
+        Fsm.create()
+            .withInitialState("/s1")
+            .withTopStates(
+                new State("s1")
+                    .withTransition("/s2/H", PublishSubject.create(), s -> {}),
+                new State("s2"))
+            .define();
+    }
+
+    enum Signal { OPEN, CLOSE, DATA }
+
+    @Test
+    public void fireCodes() {
+        List<String> result = new ArrayList<String>();
+
+        Fsm fsm = Fsm.create()
+                .withInitialState("/closed")
+                .withTopStates(
+                    new State("closed")
+                        .withTransition("/open", Signal.OPEN, n -> result.add("open: " + n)),
+                    new State("open")
+                        .withTransition("/closed", Signal.CLOSE, n -> result.add("close: " + n))
+                        .withInternalTransition(Signal.DATA, n -> result.add("data: " + n), n -> n > 0));
+
+        fsm.activate();
+        fsm.fire(Signal.DATA, 1);
+        fsm.fire(Signal.OPEN, 2);
+        fsm.fire(Signal.DATA, 0);
+        fsm.fire(Signal.DATA, 3);
+        // Unknown codes are ignored, as are the same codes fired as ints or by another enum
+        fsm.fire(42, 4);
+        fsm.fire(Signal.CLOSE.ordinal(), 6);
+        fsm.fire(Command.values()[Signal.CLOSE.ordinal()], 7);
+        assertEquals("/open", fsm.currentStatePath());
+        fsm.fire(Signal.CLOSE, 5);
+
+        assertEquals(Arrays.asList("open: 2", "data: 3", "close: 5"), result);
+        assertEquals("/closed", fsm.currentStatePath());
+    }
+
+    enum Command { START, STOP }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void codesOfDifferentEnumsAreRejected() {
+        Fsm.create()
+            .withInitialState("/closed")
+            .withTopStates(
+                new State("closed")
+                    .withTransition("/open", Signal.OPEN, n -> {}),
+                new State("open")
+                    .withTransition("/closed", Command.START, n -> {}))
+            .define();
+    }
+
+    @Test
+    public void deferredEvents() {
+        List<String> result = new ArrayList<String>();
+
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+
+        Fsm fsm = Fsm.create()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withDeferredEvent(t2)
+                        .withTransition("/s2", t1, s -> result.add("t1 triggered: " + s)),
+                    new State("s2")
+                        .withTransition("/s3", t2, s -> result.add("t2 triggered: " + s)),
+                    new State("s3")
+                        .withInternalTransition(t2, s -> result.add("t2 triggered internal transition: " + s)));
+
+        fsm.activate();
+        t2.onNext("a");
+        t2.onNext("b");
+        assertEquals("/s1", fsm.currentStatePath());
+        assertEquals(Collections.emptyList(), result);
+
+        // Both deferred events are handled once s2 has been entered, the second one in s3
+        t1.onNext("c");
+        assertEquals("/s3", fsm.currentStatePath());
+        assertEquals(Arrays.asList("t1 triggered: c", "t2 triggered: a", "t2 triggered internal transition: b"), result);
+    }
+
+    @Test
+    public void deferredEventOverflow() {
+        List<String> result = new ArrayList<String>();
+
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+
+        Fsm fsm = Fsm.create()
+                .withDeferredEvents(2, DeferredEventOverflow.DROP_OLDEST)
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withDeferredEvent(t2)
+                        .withTransition("/s2", t1, s -> {}),
+                    new State("s2")
+                        .withInternalTransition(t2, s -> result.add(s)));
+
+        fsm.activate();
+        t2.onNext("a");
+        t2.onNext("b");
+        t2.onNext("c");
+        assertEquals(1, fsm.deferredEventOverflows());
+
+        t1.onNext("d");
+        assertEquals(Arrays.asList("b", "c"), result);
+    }
+
+    @Test
+    public void timeouts() throws InterruptedException {
+        List<String> result = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(1);
+        PublishSubject<String> t1 = PublishSubject.create();
+
+        HashedWheelTimer timer = new HashedWheelTimer(1, TimeUnit.MILLISECONDS, 64);
+        Fsm fsm = Fsm.create()
+                .withTimer(timer)
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withTimeout(5, TimeUnit.SECONDS, "/s3", () -> result.add("s1 timed out"))
+                        .withTransition("/s2", t1, s -> result.add("t1 triggered: " + s)),
+                    new State("s2")
+                        .withTimeout(20, TimeUnit.MILLISECONDS, "/s3", () -> result.add("s2 timed out")),
+                    new State("s3")
+                        .withOnEntry(done::countDown));
+
+        fsm.activate();
+        // Leaving s1 cancels its timeout
+        t1.onNext("a");
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("t1 triggered: a", "s2 timed out"), result);
+        timer.stop();
+    }
+
+    @Test
+    public void asyncActions() {
+        List<String> result = new ArrayList<String>();
+
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+        PublishSubject<Void> saved = PublishSubject.create();
+        PublishSubject<Void> sent = PublishSubject.create();
+
+        Fsm fsm = Fsm.create()
+                .withPersistentSubscriptions()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withOnEntry(() -> result.add("enter s1"))
+                        .withTransition("/s2", t1, s -> result.add("t1 triggered: " + s)),
+                    new State("s2")
+                        .withOnEntryAsync(() -> {
+                            result.add("saving");
+                            return saved;
+                        })
+                        .withOnExit(() -> result.add("exit s2"))
+                        .withTransitionAsync("/s1", t2, s -> {
+                            result.add("sending " + s);
+                            return sent;
+                        }));
+
+        fsm.activate();
+        t1.onNext("a");
+        // Queued until the entry action of s2 completes
+        t2.onNext("b");
+        assertEquals(Arrays.asList("enter s1", "t1 triggered: a", "saving"), result);
+        assertEquals("/s1", fsm.currentStatePath());
+
+        saved.onCompleted();
+        assertEquals(Arrays.asList("enter s1", "t1 triggered: a", "saving", "sending b"), result);
+        assertEquals("/s2", fsm.currentStatePath());
+
+        sent.onCompleted();
+        assertEquals(Arrays.asList("enter s1", "t1 triggered: a", "saving", "sending b", "exit s2", "enter s1"), result);
+        assertEquals("/s1", fsm.currentStatePath());
+    }
+
+    @Test
+    public void failedAsyncActionsAbandonTheStateChange() {
+        List<Throwable> errors = new ArrayList<Throwable>();
+        AtomicInteger exits = new AtomicInteger();
+
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+        PublishSubject<Void> exited = PublishSubject.create();
+
+        Fsm fsm = Fsm.create()
+                .withActionErrorHandler(errors::add)
+                .withInitialState("/a")
+                .withTopStates(
+                    new State("a")
+                        .withOnExitAsync(() -> exits.incrementAndGet() == 1 ? exited : Observable.<Void>empty())
+                        .withTransition("/b", t1, s -> {}),
+                    new State("b")
+                        .withTransition("/a", t2, s -> {}));
+
+        fsm.activate();
+        t1.onNext("x");
+        // Queued until the exit action of a completes
+        t2.onNext("y");
+        exited.onError(new IllegalStateException("failed"));
+
+        assertEquals(1, errors.size());
+        assertEquals("failed", errors.get(0).getMessage());
+        assertEquals("/a", fsm.currentStatePath());
+
+        // Events are handled, and subscribed to, again
+        t1.onNext("z");
+        assertEquals("/b", fsm.currentStatePath());
+        t2.onNext("w");
+        assertEquals("/a", fsm.currentStatePath());
+    }
+
+    @Test
+    public void actionExecutor() throws InterruptedException {
+        List<String> result = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+
+        PublishSubject<String> t1 = PublishSubject.create();
+        PublishSubject<String> t2 = PublishSubject.create();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Fsm fsm = Fsm.create()
+                .withActionExecutor(executor)
+                .withPersistentSubscriptions()
+                .withInitialState("/s1")
+                .withTopStates(
+                    new State("s1")
+                        .withTransition("/s2", t1, s -> result.add("t1 triggered: " + s)),
+                    new State("s2")
+                        .withOnEntry(() -> {
+                            // Blocks a thread of the executor, not the one emitting events
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                throw new IllegalStateException(e);
+                            }
+                            result.add("enter s2");
+                        })
+                        .withTransition("/s1", t2, s -> {
+                            result.add("t2 triggered: " + s);
+                            done.countDown();
+                        }));
+
+        fsm.activate();
+        t1.onNext("a");
+        t2.onNext("b");
+        // Neither call blocked, the entry action of s2 is still waiting
+        assertTrue(!result.contains("enter s2"));
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("t1 triggered: a", "enter s2", "t2 triggered: b"), result);
+        executor.shutdown();
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void topStatesAreRequired() {
         State s = new State("s");
         Fsm.create().withInitialState("s").activate();
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void transitionTargetsAreVerifiedOnActivation() {
+        PublishSubject<String> t1 = PublishSubject.create();
+
+        Fsm.create()
+            .withInitialState("/s1")
+            .withTopStates(
+                new State("s1")
+                    .withTransition("/s3", t1, s -> {}),
+                new State("s2"))
+            .activate();
+    }
+
 }
@@ -0,0 +1,69 @@
+package rxfsm;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import rx.subjects.*;
+
+public class MappedInstanceStoreTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final PublishSubject<String> t1 = PublishSubject.create();
+    private final PublishSubject<String> t2 = PublishSubject.create();
+
+    private FsmDefinition definition(String... extraStates) {
+        State[] topStates = new State[2 + extraStates.length];
+        topStates[0] = new State("s1")
+            .withTransition("/s2", t1, s -> {});
+        topStates[1] = new State("s2")
+            .withTransition("/s1", t2, s -> {});
+        for (int i = 0; i < extraStates.length; i++) {
+            topStates[2 + i] = new State(extraStates[i]);
+        }
+
+        return Fsm.create()
+                .withInitialState("/s1")
+                .withTopStates(topStates)
+                .define();
+    }
+
+    @Test
+    public void instancesSurviveReopening() throws Exception {
+        File file = new File(folder.getRoot(), "instances");
+        FsmDefinition definition = definition();
+
+        try (MappedInstanceStore store = MappedInstanceStore.open(definition, file.toPath(), 3, 8)) {
+            for (int i = 0; i < 3; i++) {
+                assertEquals(i, store.add());
+                store.putLong(i, 0, 100 + i);
+            }
+            store.dispatch(1, definition.eventId(t1), "a");
+            store.dispatch(2, definition.eventId(t2), "b");
+            store.force();
+        }
+
+        try (MappedInstanceStore store = MappedInstanceStore.open(definition(), file.toPath(), 0, 8)) {
+            assertEquals(3, store.size());
+            assertEquals(3, store.capacity());
+            assertEquals("/s1", store.getCurrentStatePath(0));
+            assertEquals("/s2", store.getCurrentStatePath(1));
+            assertEquals("/s1", store.getCurrentStatePath(2));
+            assertEquals(102, store.getLong(2, 0));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void storesAreBoundToTheirHierarchy() throws Exception {
+        File file = new File(folder.getRoot(), "instances");
+
+        MappedInstanceStore.open(definition(), file.toPath(), 1, 0).close();
+        MappedInstanceStore.open(definition("s3"), file.toPath(), 1, 0);
+    }
+}
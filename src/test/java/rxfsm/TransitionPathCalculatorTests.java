@@ -43,6 +43,16 @@ public class TransitionPathCalculatorTests {
         TransitionPath path3 = TransitionPathCalculator.calculateTransitionPath(stateConfig3, stateConfig4);
         assertEquals(Arrays.asList(s1_1_1, s1_1, s1), path3.getStatesToExit());
         assertEquals(Arrays.asList(s2, s2_1), path3.getStatesToEnter());
+
+        // Transition from a nested state to a state whose configuration is contained in the
+        // source configuration (and back) should exit and enter the states below it
+        TransitionPath path4 = TransitionPathCalculator.calculateTransitionPath(stateConfig3, stateConfig1);
+        assertEquals(Arrays.asList(s1_1_1, s1_1), path4.getStatesToExit());
+        assertEquals(emptyList, path4.getStatesToEnter());
+
+        TransitionPath path5 = TransitionPathCalculator.calculateTransitionPath(emptyList, stateConfig4);
+        assertEquals(emptyList, path5.getStatesToExit());
+        assertEquals(Arrays.asList(s2, s2_1), path5.getStatesToEnter());
     }
 
 }